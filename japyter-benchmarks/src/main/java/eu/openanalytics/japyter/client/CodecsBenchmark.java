@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+/**
+ * Compares binding message content through an intermediate {@link Map}, as done before
+ * {@link Codecs}, with binding it directly. Run with <code>-Djapyter.json.afterburner=false</code>
+ * to measure without bytecode-accelerated binding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CodecsBenchmark
+{
+    @Param({"64", "4096"})
+    public int textLength;
+
+    private byte[] rawExecuteReply;
+    private byte[] rawStream;
+    private ExecuteRequest executeRequest;
+    private Protocol protocol;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final StringBuilder text = new StringBuilder(textLength);
+        for (int i = 0; i < textLength; i++)
+        {
+            text.append((char) ('a' + i % 26));
+        }
+
+        rawExecuteReply = JSON_OBJECT_MAPPER.writeValueAsBytes(new ExecuteReply().withStatus(
+            ExecuteReply.Status.OK).withExecutionCount(42));
+        rawStream = JSON_OBJECT_MAPPER.writeValueAsBytes(new Stream().withName("stdout").withText(
+            text.toString()));
+        executeRequest = new ExecuteRequest().withCode(text.toString()).withSilent(false);
+        protocol = new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha256");
+    }
+
+    @Benchmark
+    public ExecuteReply decodeReplyThroughMap() throws IOException
+    {
+        final Map<?, ?> content = JSON_OBJECT_MAPPER.readValue(rawExecuteReply, Map.class);
+        return JSON_OBJECT_MAPPER.convertValue(content, ExecuteReply.class);
+    }
+
+    @Benchmark
+    public ExecuteReply decodeReplyDirectly() throws IOException
+    {
+        return Codecs.readContent(new Message().withRawContent(rawExecuteReply), ExecuteReply.class);
+    }
+
+    @Benchmark
+    public Stream decodeStreamThroughMap() throws IOException
+    {
+        final Map<?, ?> content = JSON_OBJECT_MAPPER.readValue(rawStream, Map.class);
+        return JSON_OBJECT_MAPPER.convertValue(content, Stream.class);
+    }
+
+    @Benchmark
+    public Stream decodeStreamDirectly() throws IOException
+    {
+        return Codecs.readContent(new Message().withRawContent(rawStream), Stream.class);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object encodeRequestThroughMap() throws IOException
+    {
+        final Message message = new Message(Protocol.RequestMessageType.EXECUTE_REQUEST);
+        message.withContent(JSON_OBJECT_MAPPER.convertValue(executeRequest, Map.class));
+        return protocol.toFrames(message);
+    }
+
+    @Benchmark
+    public Object encodeRequestDirectly() throws IOException
+    {
+        final Message message = new Message(Protocol.RequestMessageType.EXECUTE_REQUEST);
+        message.withContent(executeRequest);
+        return protocol.toFrames(message);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(CodecsBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
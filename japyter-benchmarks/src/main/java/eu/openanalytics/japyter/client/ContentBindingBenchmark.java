@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Reply;
+import eu.openanalytics.japyter.model.gen.Request;
+
+/**
+ * Measures binding the content of every message type of the model: converting it from a
+ * {@link Map}, reading it from raw JSON and turning typed content back into a {@link Map} through
+ * {@link Message#getContent()}. The content of each type comes from <code>content-samples.json</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentBindingBenchmark
+{
+    private static final String MODEL_PACKAGE = "eu.openanalytics.japyter.model.gen.";
+
+    @Param({"ClearOutput", "CompleteReply", "CompleteRequest", "ConnectReply", "DataPub", "DisplayData", "Error",
+            "ExecuteInput", "ExecuteReply", "ExecuteRequest", "ExecuteResult", "HistoryReply", "HistoryRequest",
+            "InputReply", "InputRequest", "InspectReply", "InspectRequest", "IsCompleteReply", "IsCompleteRequest",
+            "KernelInfoReply", "ShutdownReply", "ShutdownRequest", "Status", "Stream"})
+    public String contentType;
+
+    private Class<?> contentClass;
+    private Map<String, Object> mapContent;
+    private byte[] rawContent;
+    private Object typedContent;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException, ClassNotFoundException
+    {
+        contentClass = Class.forName(MODEL_PACKAGE + contentType);
+
+        try (InputStream samples = ContentBindingBenchmark.class.getResourceAsStream("content-samples.json"))
+        {
+            mapContent = (Map<String, Object>) JSON_OBJECT_MAPPER.readValue(samples, Map.class).get(contentType);
+        }
+
+        rawContent = JSON_OBJECT_MAPPER.writeValueAsBytes(mapContent);
+        typedContent = JSON_OBJECT_MAPPER.convertValue(mapContent, contentClass);
+    }
+
+    @Benchmark
+    public Object convertValue()
+    {
+        return JSON_OBJECT_MAPPER.convertValue(mapContent, contentClass);
+    }
+
+    @Benchmark
+    public Object readMapContent() throws IOException
+    {
+        return Codecs.readContent(new Message().withContent(mapContent), contentClass);
+    }
+
+    @Benchmark
+    public Object readRawContent() throws IOException
+    {
+        return Codecs.readContent(new Message().withRawContent(rawContent), contentClass);
+    }
+
+    @Benchmark
+    public Map<String, Object> typedContentAsMap()
+    {
+        final Message message = new Message();
+
+        if (typedContent instanceof Request)
+        {
+            message.withContent((Request) typedContent);
+        }
+        else if (typedContent instanceof Reply)
+        {
+            message.withContent((Reply) typedContent);
+        }
+        else
+        {
+            message.withContent((Broadcast) typedContent);
+        }
+
+        return message.getContent();
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ContentBindingBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+/**
+ * Measures a round of concurrent conversations, each a blocking {@link Shell#execute} call from its
+ * own thread through its own client. Channels and callers run on platform threads, or on virtual
+ * threads, or callers run on virtual threads while channels are served by event loops. The virtual
+ * modes require running the benchmark on Java 21 or later.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark
+{
+    private static final int KERNEL_COUNT = 4;
+    private static final int EVENT_LOOPS = 2;
+
+    @Param({"platform", "virtual", "virtual-event-loops"})
+    public String mode;
+
+    @Param({"16", "128"})
+    public int conversations;
+
+    private List<MockKernel> mockKernels;
+    private JapyterRuntime runtime;
+    private List<Japyter> clients;
+    private ExecutorService callers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        final boolean virtual = mode.startsWith("virtual");
+        final boolean eventLoops = mode.endsWith("event-loops");
+        if (virtual && !VirtualThreads.isAvailable())
+        {
+            throw new IllegalStateException("The virtual mode requires Java 21 or later");
+        }
+
+        mockKernels = new ArrayList<>();
+        for (int i = 0; i < KERNEL_COUNT; i++)
+        {
+            mockKernels.add(new MockKernel());
+        }
+
+        runtime = JapyterRuntime.builder()
+            .withVirtualThreads(virtual)
+            .withEventLoops(eventLoops ? EVENT_LOOPS : 0)
+            .build();
+
+        clients = new ArrayList<>();
+        for (int i = 0; i < conversations; i++)
+        {
+            clients.add(Japyter.fromConfig(mockKernels.get(i % KERNEL_COUNT).getConfig())
+                .withHeartbeatPeriodMillis(0)
+                .withRuntime(runtime)
+                .build());
+        }
+
+        callers = virtual ? VirtualThreads.newThreadPerTaskExecutor("caller-") : Executors.newFixedThreadPool(
+            conversations);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        callers.shutdownNow();
+
+        for (final Japyter client : clients)
+        {
+            client.close();
+        }
+        runtime.close();
+
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            mockKernel.close();
+        }
+    }
+
+    @Benchmark
+    public int concurrentBlockingExecutions() throws Exception
+    {
+        final List<Future<ExecuteReply>> replies = new ArrayList<>(conversations);
+
+        for (final Japyter client : clients)
+        {
+            replies.add(callers.submit(new Callable<ExecuteReply>()
+            {
+                @Override
+                public ExecuteReply call() throws IOException
+                {
+                    return client.getShell().execute(new ExecuteRequest().withCode("1+1"));
+                }
+            }));
+        }
+
+        int completed = 0;
+        for (final Future<ExecuteReply> reply : replies)
+        {
+            completed += reply.get().getStatus() == ExecuteReply.Status.OK ? 1 : 0;
+        }
+        return completed;
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ExecutionModeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+
+/**
+ * Measures routing a received status broadcast to a growing number of listeners, subscribed to all
+ * broadcasts or to status broadcasts only. Each message is decoded from its frames, as it is when
+ * received, so the content is bound once per message whatever the number of listeners.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IoPubRoutingBenchmark
+{
+    private static final class CountingListener implements BroadcastListener
+    {
+        private int count;
+
+        @Override
+        public void handle(final Broadcast b)
+        {
+            count++;
+        }
+    }
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int listenerCount;
+
+    @Param({"all", "typed"})
+    public String subscription;
+
+    private Session session;
+    private IoPub ioPub;
+    private CountingListener[] listeners;
+    private List<byte[]> frames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        final Protocol protocol = new Protocol();
+        session = new Session("benchmark", protocol, 1000, 1);
+        // nothing listens on this port, so the channel never receives anything by itself
+        ioPub = new IoPub("tcp://127.0.0.1:1", session);
+
+        listeners = new CountingListener[listenerCount];
+        for (int i = 0; i < listenerCount; i++)
+        {
+            listeners[i] = new CountingListener();
+
+            if ("typed".equals(subscription))
+            {
+                ioPub.subscribe(BroadcastType.STATUS, listeners[i]);
+            }
+            else
+            {
+                ioPub.subscribe(listeners[i]);
+            }
+        }
+
+        final Message status = new Message().withContent(new Status().withExecutionState(ExecutionState.BUSY));
+        status.getHeader().setMsgType(BroadcastType.STATUS.toString());
+        frames = protocol.toFrames(status);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        session.close();
+    }
+
+    @Benchmark
+    public int route() throws IOException
+    {
+        ioPub.route(session.getProtocol().fromFrames(frames));
+        return listeners[0].count;
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(IoPubRoutingBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+/**
+ * Measures encoding a message to its wire frames and decoding it back, with and without an HMAC
+ * signature, for code of increasing size. Decoding is lazy, so it is measured alone, which covers
+ * signature verification, and followed by binding the content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProtocolBenchmark
+{
+    @Param({"none", "hmac-sha256"})
+    public String signatureScheme;
+
+    @Param({"64", "4096", "262144"})
+    public int payloadSize;
+
+    private Protocol protocol;
+    private Message message;
+    private List<byte[]> frames;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        protocol = "none".equals(signatureScheme) ? new Protocol() : new Protocol(
+            "f32beb57-4bc5-4cd0-8689-aa90b774ddc0", signatureScheme);
+
+        final StringBuilder code = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++)
+        {
+            code.append((char) ('a' + i % 26));
+        }
+
+        message = new Message(RequestMessageType.EXECUTE_REQUEST).withContent(new ExecuteRequest().withCode(
+            code.toString()).withSilent(false).withStoreHistory(true));
+        frames = protocol.toFrames(message);
+    }
+
+    @Benchmark
+    public List<byte[]> toFrames() throws IOException
+    {
+        return protocol.toFrames(message);
+    }
+
+    @Benchmark
+    public Message fromFrames() throws IOException
+    {
+        return protocol.fromFrames(frames);
+    }
+
+    @Benchmark
+    public ExecuteRequest fromFramesAndReadContent() throws IOException
+    {
+        return Codecs.readContent(protocol.fromFrames(frames), ExecuteRequest.class);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(ProtocolBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
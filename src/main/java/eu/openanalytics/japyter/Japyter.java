@@ -14,24 +14,36 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 
 import org.apache.commons.codec.digest.HmacAlgorithms;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import eu.openanalytics.japyter.client.BatchExecutor;
+import eu.openanalytics.japyter.client.CellResult;
 import eu.openanalytics.japyter.client.Control;
+import eu.openanalytics.japyter.client.Execution;
+import eu.openanalytics.japyter.client.ExtraBufferAllocator;
 import eu.openanalytics.japyter.client.Heartbeat;
 import eu.openanalytics.japyter.client.IoPub;
+import eu.openanalytics.japyter.client.JapyterRuntime;
+import eu.openanalytics.japyter.client.MimeFilter;
+import eu.openanalytics.japyter.client.PhiAccrualFailureDetector;
 import eu.openanalytics.japyter.client.Protocol;
+import eu.openanalytics.japyter.client.ReplyFuture;
 import eu.openanalytics.japyter.client.Session;
 import eu.openanalytics.japyter.client.Shell;
 import eu.openanalytics.japyter.client.Stdin;
 import eu.openanalytics.japyter.client.Stdin.StdinHandler;
+import eu.openanalytics.japyter.metrics.MetricsRegistry;
 import eu.openanalytics.japyter.model.gen.Config;
 import eu.openanalytics.japyter.model.gen.ConnectReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
 
 /**
  * The main entry point to <b>Japyter</b>, a Java client library for Jupyter. <b>Japyter</b>
@@ -47,7 +59,19 @@ public final class Japyter implements Closeable
         private int receiveTimeoutMillis = 3000; // good old Erlang default timeout
         private StdinHandler stdinHandler;
         private int heartbeatPeriodMillis = 10000;
+        private double heartbeatPhiThreshold = PhiAccrualFailureDetector.DEFAULT_THRESHOLD;
+        private long heartbeatAcceptablePauseMillis = PhiAccrualFailureDetector.DEFAULT_ACCEPTABLE_PAUSE_MILLIS;
         private int zmqIoThreads = 1;
+        private int ioPubVerificationThreads = 0;
+        private int streamCoalescingMaxChars = 0;
+        private long streamCoalescingWindowMillis = 0;
+        private int earlyMessageCapacity = 0;
+        private long earlyMessageRetentionMillis = 0;
+        private JapyterRuntime runtime;
+        private MetricsRegistry metrics = MetricsRegistry.NOOP;
+        private boolean virtualThreads = false;
+        private boolean automaticReconnection = true;
+        private ExtraBufferAllocator extraBufferAllocator = ExtraBufferAllocator.HEAP;
 
         private Builder(final Config config)
         {
@@ -94,9 +118,23 @@ public final class Japyter implements Closeable
             return this;
         }
 
+        /**
+         * Tune how the kernel is declared down from the heartbeat echoes: once the phi accrual
+         * suspicion level reaches <code>phiThreshold</code>, where an echo can be
+         * <code>acceptablePauseMillis</code> later than the mean interval between echoes before the
+         * suspicion rises quickly. With a period of 100ms, the defaults of 8 and 300ms detect a dead
+         * kernel in about 700ms while tolerating pauses of half a second.
+         */
+        public Builder withHeartbeatFailureDetection(final double phiThreshold, final long acceptablePauseMillis)
+        {
+            this.heartbeatPhiThreshold = phiThreshold;
+            this.heartbeatAcceptablePauseMillis = acceptablePauseMillis;
+            return this;
+        }
+
         /**
          * Set the number of I/O threads available to the ZeroMQ context. 1 is the minimum. Defaults
-         * to 1.
+         * to 1. Ignored when a shared runtime is used.
          */
         public Builder withZmqIoThreads(final int zmqIoThreads)
         {
@@ -104,6 +142,105 @@ public final class Japyter implements Closeable
             return this;
         }
 
+        /**
+         * Set the number of worker threads that decode and verify the HMAC signature of IoPub
+         * messages, so the IoPub receive loop isn't tied up when output is heavy. Messages are
+         * still delivered to listeners in the order they were received. 0 verifies on the receive
+         * loop. Defaults to 0.
+         */
+        public Builder withIoPubVerificationThreads(final int ioPubVerificationThreads)
+        {
+            this.ioPubVerificationThreads = ioPubVerificationThreads;
+            return this;
+        }
+
+        /**
+         * Merge consecutive IoPub stream messages that have the same name and parent message ID,
+         * up to <code>maxChars</code> characters or for at most <code>windowMillis</code>, so
+         * listeners receive fewer, larger chunks of output. Disabled by default.
+         */
+        public Builder withStreamCoalescing(final int maxChars, final long windowMillis)
+        {
+            this.streamCoalescingMaxChars = maxChars;
+            this.streamCoalescingWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Start receiving IoPub messages as soon as the client is built and keep the most recent
+         * ones, up to <code>capacity</code> messages and for at most
+         * <code>retentionMillis</code>, so executions submitted before their outputs are listened
+         * to don't lose them. Disabled by default.
+         *
+         * @see IoPub#enableEarlyMessageBuffer(int, long)
+         */
+        public Builder withEarlyMessageBuffer(final int capacity, final long retentionMillis)
+        {
+            this.earlyMessageCapacity = capacity;
+            this.earlyMessageRetentionMillis = retentionMillis;
+            return this;
+        }
+
+        /**
+         * A {@link JapyterRuntime} shared with other clients, which then use the same ZeroMQ
+         * context and executors. The runtime is not closed with the client. Optional: by default
+         * each client has its own.
+         */
+        public Builder withRuntime(final JapyterRuntime runtime)
+        {
+            this.runtime = runtime;
+            return this;
+        }
+
+        /**
+         * Run the channel receive loops, heartbeat pings and Stdin handlers on virtual threads, which
+         * requires Java 21 or later. Ignored when a shared runtime is used, which must then be
+         * configured with {@link JapyterRuntime.Builder#withVirtualThreads(boolean)}. On its own,
+         * this is slower than platform threads: it only pays off in a shared runtime that also uses
+         * {@link JapyterRuntime.Builder#withEventLoops(int)}. Defaults to false.
+         */
+        public Builder withVirtualThreads(final boolean virtualThreads)
+        {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * The registry that receives the measurements of the client, for example a
+         * {@link eu.openanalytics.japyter.metrics.JapyterMetrics}. Ignored when a shared runtime is
+         * used, which must then be configured with
+         * {@link JapyterRuntime.Builder#withMetrics(MetricsRegistry)}. Defaults to no measuring.
+         */
+        public Builder withMetrics(final MetricsRegistry metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Reconnect all channels when the heartbeat detects that the kernel is down, or a request
+         * can't be sent, for example because the kernel has restarted. Idempotent requests waiting
+         * for a reply are then sent again and the others fail. Defaults to true.
+         *
+         * @see Japyter#reconnect()
+         */
+        public Builder withAutomaticReconnection(final boolean automaticReconnection)
+        {
+            this.automaticReconnection = automaticReconnection;
+            return this;
+        }
+
+        /**
+         * Hold received extra buffers in direct memory from <code>offHeapThresholdBytes</code>
+         * bytes and in mapped files from <code>spillThresholdBytes</code>. Listeners keeping them
+         * must retain the message. By default all buffers stay on the heap.
+         */
+        public Builder withOffHeapExtraBuffers(final int offHeapThresholdBytes, final int spillThresholdBytes)
+        {
+            this.extraBufferAllocator = new ExtraBufferAllocator(offHeapThresholdBytes, spillThresholdBytes, null);
+            return this;
+        }
+
         /**
          * Builds a new {@link Japyter} instance and an associated client session.
          *
@@ -111,29 +248,84 @@ public final class Japyter implements Closeable
          */
         public Japyter build()
         {
+            final boolean ownsRuntime = runtime == null;
+            final JapyterRuntime sessionRuntime = ownsRuntime ? JapyterRuntime.builder()
+                .withZmqIoThreads(zmqIoThreads)
+                .withVirtualThreads(virtualThreads)
+                .withMetrics(metrics)
+                .build() : runtime;
+
             return new Japyter(config, userName, receiveTimeoutMillis, stdinHandler, heartbeatPeriodMillis,
-                zmqIoThreads);
+                heartbeatPhiThreshold, heartbeatAcceptablePauseMillis, automaticReconnection, sessionRuntime,
+                ownsRuntime, ioPubVerificationThreads, streamCoalescingMaxChars, streamCoalescingWindowMillis,
+                earlyMessageCapacity, earlyMessageRetentionMillis, extraBufferAllocator);
         }
     }
 
-    public static final ObjectMapper JSON_OBJECT_MAPPER = new ObjectMapper();
+    /**
+     * System property that disables bytecode-accelerated JSON binding when set to false, which is
+     * otherwise used when the Jackson Afterburner module is on the classpath.
+     */
+    public static final String AFTERBURNER_PROPERTY = "japyter.json.afterburner";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Japyter.class);
+    private static final String AFTERBURNER_MODULE_CLASS = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+    public static final ObjectMapper JSON_OBJECT_MAPPER = newJsonObjectMapper();
 
     private final Config config;
+    private final JapyterRuntime runtime;
+    private final boolean ownsRuntime;
     private final Session session;
     private final Shell shell;
     private final Control control;
     private final IoPub ioPub;
     private final Stdin stdin;
     private final Heartbeat heartbeat;
+    private BatchExecutor batchExecutor;
+
+    private static ObjectMapper newJsonObjectMapper()
+    {
+        final ObjectMapper objectMapper = new ObjectMapper();
+
+        if (!Boolean.parseBoolean(System.getProperty(AFTERBURNER_PROPERTY, "true")))
+        {
+            return objectMapper;
+        }
+
+        try
+        {
+            objectMapper.registerModule((Module) Class.forName(AFTERBURNER_MODULE_CLASS).getDeclaredConstructor().newInstance());
+            LOGGER.info("Bytecode-accelerated JSON binding enabled");
+        }
+        catch (final ClassNotFoundException cnfe)
+        {
+            LOGGER.debug("Jackson Afterburner not found, using reflection-based JSON binding");
+        }
+        catch (final ReflectiveOperationException | LinkageError e)
+        {
+            LOGGER.warn("Failed to enable bytecode-accelerated JSON binding", e);
+        }
+
+        return objectMapper;
+    }
 
     private Japyter(final Config config,
                     final String userName,
                     final int receiveTimeoutMillis,
                     final StdinHandler stdinHandler,
                     final int heartbeatPeriodMillis,
-                    final int zmqIoThreads)
+                    final double heartbeatPhiThreshold,
+                    final long heartbeatAcceptablePauseMillis,
+                    final boolean automaticReconnection,
+                    final JapyterRuntime runtime,
+                    final boolean ownsRuntime,
+                    final int ioPubVerificationThreads,
+                    final int streamCoalescingMaxChars,
+                    final long streamCoalescingWindowMillis,
+                    final int earlyMessageCapacity,
+                    final long earlyMessageRetentionMillis,
+                    final ExtraBufferAllocator extraBufferAllocator)
     {
         this.config = notNull(config, "config can't be null");
 
@@ -141,8 +333,12 @@ public final class Japyter implements Closeable
         Validate.notBlank(config.getIp(), "ip can't be empty");
 
         final Protocol protocol = new Protocol(config.getKey(), config.getSignatureScheme());
+        protocol.setExtraBufferAllocator(extraBufferAllocator);
 
-        session = new Session(userName, protocol, receiveTimeoutMillis, zmqIoThreads);
+        this.runtime = runtime;
+        this.ownsRuntime = ownsRuntime;
+        session = new Session(userName, protocol, receiveTimeoutMillis, runtime);
+        session.setAutomaticReconnection(automaticReconnection);
 
         shell = config.getShellPort() != null ? new Shell(getChannelAddress(config.getShellPort(), config),
             session) : null;
@@ -151,7 +347,17 @@ public final class Japyter implements Closeable
             config), session) : null;
 
         ioPub = config.getIopubPort() != null ? new IoPub(getChannelAddress(config.getIopubPort(), config),
-            session) : null;
+            session, ioPubVerificationThreads) : null;
+
+        if (ioPub != null && streamCoalescingMaxChars > 0)
+        {
+            ioPub.enableStreamCoalescing(streamCoalescingMaxChars, streamCoalescingWindowMillis);
+        }
+
+        if (ioPub != null && earlyMessageCapacity > 0)
+        {
+            ioPub.enableEarlyMessageBuffer(earlyMessageCapacity, earlyMessageRetentionMillis);
+        }
 
         if (config.getStdinPort() != null)
         {
@@ -171,7 +377,7 @@ public final class Japyter implements Closeable
         }
 
         heartbeat = config.getHbPort() != null ? new Heartbeat(getChannelAddress(config.getHbPort(), config),
-            session, heartbeatPeriodMillis) : null;
+            session, heartbeatPeriodMillis, heartbeatPhiThreshold, heartbeatAcceptablePauseMillis) : null;
     }
 
     private String getChannelAddress(final Integer channelPort, final Config config)
@@ -188,10 +394,108 @@ public final class Japyter implements Closeable
         return config;
     }
 
+    /**
+     * Reconnects all channels to the kernel, for example right after asking it to restart, rather
+     * than waiting for the heartbeat to detect that it went down.
+     *
+     * @see Session#reconnect()
+     */
+    public void reconnect()
+    {
+        session.reconnect();
+    }
+
+    /**
+     * Executes cells back to back, sending all the requests at once, and blocks until all are
+     * complete.
+     *
+     * @return the reply and outputs of each cell, in the order of the requests.
+     * @see BatchExecutor
+     */
+    public List<CellResult> executeBatch(final List<ExecuteRequest> requests) throws IOException
+    {
+        return getBatchExecutor().executeBatch(requests);
+    }
+
+    /**
+     * Executes cells back to back, like {@link #executeBatch(List)}, only decoding the MIME types
+     * accepted by the filter from their display data and execute results.
+     */
+    public List<CellResult> executeBatch(final List<ExecuteRequest> requests, final MimeFilter mimeFilter)
+        throws IOException
+    {
+        return getBatchExecutor().executeBatch(requests, mimeFilter);
+    }
+
+    /**
+     * Executes cells back to back, sending all the requests at once, and returns immediately with
+     * a future of the reply and outputs of each cell, in the order of the requests.
+     *
+     * @see BatchExecutor
+     */
+    public ReplyFuture<List<CellResult>> executeBatchAsync(final List<ExecuteRequest> requests)
+    {
+        return getBatchExecutor().executeBatchAsync(requests);
+    }
+
+    /**
+     * Executes cells back to back, like {@link #executeBatchAsync(List)}, only decoding the MIME
+     * types accepted by the filter from their display data and execute results.
+     */
+    public ReplyFuture<List<CellResult>> executeBatchAsync(final List<ExecuteRequest> requests,
+                                                           final MimeFilter mimeFilter)
+    {
+        return getBatchExecutor().executeBatchAsync(requests, mimeFilter);
+    }
+
+    /**
+     * Sends an execute request and returns immediately with a handle that streams its outputs and
+     * completes after the idle status that ends it.
+     *
+     * @see Execution
+     */
+    public Execution submit(final ExecuteRequest request)
+    {
+        return submit(request, MimeFilter.ALL);
+    }
+
+    /**
+     * Sends an execute request like {@link #submit(ExecuteRequest)}, only decoding the MIME types
+     * accepted by the filter from its display data and execute results.
+     */
+    public Execution submit(final ExecuteRequest request, final MimeFilter mimeFilter)
+    {
+        Validate.validState(shell != null, "No shell port has been configured");
+        Validate.validState(ioPub != null, "No IoPub port has been configured");
+
+        return shell.submit(request, ioPub, mimeFilter);
+    }
+
+    /**
+     * @return the {@link BatchExecutor}, created on first use because collecting outputs subscribes
+     *         to all IoPub topics.
+     */
+    private synchronized BatchExecutor getBatchExecutor()
+    {
+        Validate.validState(shell != null, "No shell port has been configured");
+
+        if (batchExecutor == null)
+        {
+            batchExecutor = new BatchExecutor(shell, ioPub);
+        }
+
+        return batchExecutor;
+    }
+
     @Override
     public void close() throws IOException
     {
         session.close();
+
+        if (ownsRuntime)
+        {
+            runtime.close();
+        }
     }
 
     /**
@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.openanalytics.japyter.client.Heartbeat;
+import eu.openanalytics.japyter.client.IoPub;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.client.ReplyFuture;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.client.ReplyFuture.Converter;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+
+/**
+ * A pool of {@link Japyter} clients, each connected to its own kernel, that dispatches executions
+ * to the least loaded healthy kernel. The load of a kernel is the number of executions the pool has
+ * sent to it and that haven't been replied yet or, if there are none, one if the kernel reports
+ * being busy, which accounts for work submitted by other clients. Kernels whose heartbeat is down
+ * are out of rotation until it is up again.
+ */
+public final class KernelPool implements Closeable
+{
+    /**
+     * A point in time snapshot of the pool activity.
+     */
+    public static final class Stats
+    {
+        private final int kernelCount;
+        private final int healthyKernelCount;
+        private final int busyKernelCount;
+        private final int outstandingCount;
+        private final int maxOutstandingPerKernel;
+        private final long submittedCount;
+        private final long completedCount;
+        private final long failedCount;
+        private final long rejectedCount;
+        private final double completedPerSecond;
+
+        private Stats(final List<PooledKernel> kernels,
+                      final long submittedCount,
+                      final long completedCount,
+                      final long failedCount,
+                      final long rejectedCount,
+                      final long elapsedNanos)
+        {
+            int healthy = 0, busy = 0, outstanding = 0, maxOutstanding = 0;
+
+            for (final PooledKernel kernel : kernels)
+            {
+                healthy += kernel.isHealthy() ? 1 : 0;
+                busy += kernel.isBusy() ? 1 : 0;
+
+                final int kernelOutstanding = kernel.outstandingCount.get();
+                outstanding += kernelOutstanding;
+                maxOutstanding = Math.max(maxOutstanding, kernelOutstanding);
+            }
+
+            this.kernelCount = kernels.size();
+            this.healthyKernelCount = healthy;
+            this.busyKernelCount = busy;
+            this.outstandingCount = outstanding;
+            this.maxOutstandingPerKernel = maxOutstanding;
+            this.submittedCount = submittedCount;
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.rejectedCount = rejectedCount;
+            this.completedPerSecond = elapsedNanos > 0 ? completedCount * 1e9 / elapsedNanos : 0;
+        }
+
+        public int getKernelCount()
+        {
+            return kernelCount;
+        }
+
+        public int getHealthyKernelCount()
+        {
+            return healthyKernelCount;
+        }
+
+        public int getBusyKernelCount()
+        {
+            return busyKernelCount;
+        }
+
+        /**
+         * @return the number of executions that have been sent and are waiting for their reply.
+         */
+        public int getOutstandingCount()
+        {
+            return outstandingCount;
+        }
+
+        /**
+         * @return the largest number of outstanding executions on a single kernel.
+         */
+        public int getMaxOutstandingPerKernel()
+        {
+            return maxOutstandingPerKernel;
+        }
+
+        public long getSubmittedCount()
+        {
+            return submittedCount;
+        }
+
+        public long getCompletedCount()
+        {
+            return completedCount;
+        }
+
+        public long getFailedCount()
+        {
+            return failedCount;
+        }
+
+        /**
+         * @return the number of executions that have been refused because no kernel was healthy.
+         */
+        public long getRejectedCount()
+        {
+            return rejectedCount;
+        }
+
+        /**
+         * @return the average number of completed executions per second since the pool creation.
+         */
+        public double getCompletedPerSecond()
+        {
+            return completedPerSecond;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ToStringBuilder.reflectionToString(this);
+        }
+    }
+
+    private static final class PooledKernel implements BroadcastListener
+    {
+        private final Japyter japyter;
+        private final AtomicInteger outstandingCount;
+        private volatile ExecutionState executionState;
+
+        private PooledKernel(final Japyter japyter)
+        {
+            this.japyter = japyter;
+            outstandingCount = new AtomicInteger();
+        }
+
+        @Override
+        public void handle(final Broadcast b)
+        {
+            executionState = ((Status) b).getExecutionState();
+        }
+
+        private boolean isHealthy()
+        {
+            final Heartbeat heartbeat = japyter.getHeartbeat();
+            return heartbeat == null || heartbeat.getState() != Heartbeat.State.DOWN;
+        }
+
+        private boolean isBusy()
+        {
+            return executionState == ExecutionState.BUSY;
+        }
+
+        private int getLoad()
+        {
+            final int outstanding = outstandingCount.get();
+
+            // a kernel busy without any outstanding execution is running work from another client
+            return outstanding > 0 ? outstanding : isBusy() ? 1 : 0;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KernelPool.class);
+
+    private final List<PooledKernel> kernels;
+    private final AtomicInteger rotation;
+    private final AtomicLong submittedCount;
+    private final AtomicLong completedCount;
+    private final AtomicLong failedCount;
+    private final AtomicLong rejectedCount;
+    private final long createdNanos;
+
+    public KernelPool()
+    {
+        kernels = new CopyOnWriteArrayList<>();
+        rotation = new AtomicInteger();
+        submittedCount = new AtomicLong();
+        completedCount = new AtomicLong();
+        failedCount = new AtomicLong();
+        rejectedCount = new AtomicLong();
+        createdNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds a client to the pool, which then owns it and closes it when it is closed itself. The
+     * client must have a {@link eu.openanalytics.japyter.client.Shell} channel, and an
+     * {@link IoPub} channel for the pool to know when its kernel is busy.
+     */
+    public void add(final Japyter japyter)
+    {
+        notNull(japyter, "japyter can't be null");
+        Validate.notNull(japyter.getShell(), "japyter must have a shell channel");
+
+        final PooledKernel kernel = new PooledKernel(japyter);
+
+        final IoPub ioPub = japyter.getIoPub();
+        if (ioPub != null)
+        {
+            ioPub.subscribe(BroadcastType.STATUS, kernel);
+        }
+
+        kernels.add(kernel);
+
+        LOGGER.info("Added kernel to pool, now counting {} kernels", kernels.size());
+    }
+
+    /**
+     * @return the clients in this pool.
+     */
+    public List<Japyter> getKernels()
+    {
+        final List<Japyter> japyters = new ArrayList<>();
+        for (final PooledKernel kernel : kernels)
+        {
+            japyters.add(kernel.japyter);
+        }
+        return japyters;
+    }
+
+    /**
+     * Sends an execution request to the least loaded healthy kernel. The returned future fails
+     * with an {@link IOException} if no kernel is healthy.
+     */
+    public ReplyFuture<ExecuteReply> execute(final ExecuteRequest request)
+    {
+        final PooledKernel kernel = selectLeastLoaded();
+
+        if (kernel == null)
+        {
+            rejectedCount.incrementAndGet();
+
+            final ReplyFuture<ExecuteReply> rejected = new ReplyFuture<>();
+            rejected.fail(new IOException("No healthy kernel available in the pool of " + kernels.size()));
+            return rejected;
+        }
+
+        kernel.outstandingCount.incrementAndGet();
+        submittedCount.incrementAndGet();
+
+        final ReplyFuture<ExecuteReply> reply = kernel.japyter.getShell().executeAsync(request);
+
+        reply.addCallback(new Callback<ExecuteReply>()
+        {
+            @Override
+            public void onSuccess(final ExecuteReply result)
+            {
+                kernel.outstandingCount.decrementAndGet();
+                completedCount.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                kernel.outstandingCount.decrementAndGet();
+                failedCount.incrementAndGet();
+            }
+        });
+
+        // so callers observe up to date counters once the future they get is done
+        return reply.transform(new Converter<ExecuteReply, ExecuteReply>()
+        {
+            @Override
+            public ExecuteReply convert(final ExecuteReply source)
+            {
+                return source;
+            }
+        });
+    }
+
+    /**
+     * @return the client of the least loaded healthy kernel, or null if no kernel is healthy.
+     */
+    public Japyter selectKernel()
+    {
+        final PooledKernel kernel = selectLeastLoaded();
+        return kernel != null ? kernel.japyter : null;
+    }
+
+    private PooledKernel selectLeastLoaded()
+    {
+        final Object[] candidates = kernels.toArray();
+        if (candidates.length == 0)
+        {
+            return null;
+        }
+
+        // start from a rotating position so equally loaded kernels take turns
+        final int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % candidates.length;
+
+        PooledKernel selected = null;
+        int selectedLoad = Integer.MAX_VALUE;
+
+        for (int i = 0; i < candidates.length; i++)
+        {
+            final PooledKernel kernel = (PooledKernel) candidates[(start + i) % candidates.length];
+
+            if (!kernel.isHealthy())
+            {
+                continue;
+            }
+
+            final int load = kernel.getLoad();
+            if (load < selectedLoad)
+            {
+                selected = kernel;
+                selectedLoad = load;
+            }
+        }
+
+        return selected;
+    }
+
+    public Stats getStats()
+    {
+        return new Stats(kernels, submittedCount.get(), completedCount.get(), failedCount.get(),
+            rejectedCount.get(), System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * Closes all the clients in this pool.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        IOException firstFailure = null;
+
+        for (final PooledKernel kernel : kernels)
+        {
+            try
+            {
+                kernel.japyter.close();
+            }
+            catch (final IOException ioe)
+            {
+                LOGGER.error("Failed to close kernel client", ioe);
+                firstFailure = firstFailure == null ? ioe : firstFailure;
+            }
+        }
+
+        kernels.clear();
+
+        if (firstFailure != null)
+        {
+            throw firstFailure;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples a listener from the thread that receives messages: events are queued in a bounded
+ * queue, owned by this listener only, and delivered in order, one at a time, by tasks run on the
+ * provided executor. What happens when the queue is full is defined by an {@link OverflowPolicy}.
+ */
+public abstract class AbstractAsyncListener<T>
+{
+    public enum OverflowPolicy
+    {
+        /**
+         * Blocks the receiving thread until there is room in the queue, which eventually pushes
+         * back on the kernel.
+         */
+        BLOCK,
+        /**
+         * Drops the oldest queued event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Drops the new event.
+         */
+        DROP_NEWEST,
+        /**
+         * Merges the new event with the most recently queued one, using a {@link Coalescer}, or
+         * drops the oldest queued event if they can't be merged.
+         */
+        COALESCE
+    }
+
+    public interface Coalescer<T>
+    {
+        /**
+         * @return an event that replaces both provided events, or null if they can't be merged.
+         */
+        T coalesce(T queued, T received);
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractAsyncListener.class);
+    private static final int MAX_DELIVERIES_PER_TASK = 64;
+
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Coalescer<T> coalescer;
+    private final Deque<T> queue;
+    private final Runnable deliveryTask;
+    private final AtomicLong droppedCount;
+    private final AtomicLong coalescedCount;
+    private boolean delivering;
+
+    protected AbstractAsyncListener(final Executor executor,
+                                    final int capacity,
+                                    final OverflowPolicy overflowPolicy,
+                                    final Coalescer<T> coalescer)
+    {
+        Validate.isTrue(capacity > 0, "capacity must be a positive integer");
+        Validate.isTrue(overflowPolicy != OverflowPolicy.COALESCE || coalescer != null,
+            "a coalescer is required by the COALESCE overflow policy");
+
+        this.executor = notNull(executor, "executor can't be null");
+        this.capacity = capacity;
+        this.overflowPolicy = notNull(overflowPolicy, "overflowPolicy can't be null");
+        this.coalescer = coalescer;
+
+        queue = new ArrayDeque<>(capacity);
+        droppedCount = new AtomicLong();
+        coalescedCount = new AtomicLong();
+
+        deliveryTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliverQueued();
+            }
+        };
+    }
+
+    protected abstract void deliver(T event);
+
+    /**
+     * Queues an event for delivery, applying the overflow policy if the queue is full.
+     */
+    protected void enqueue(final T event)
+    {
+        synchronized (queue)
+        {
+            if (!makeRoomFor(event))
+            {
+                return;
+            }
+
+            queue.addLast(event);
+
+            if (delivering)
+            {
+                return;
+            }
+
+            delivering = true;
+        }
+
+        scheduleDelivery();
+    }
+
+    /**
+     * @return true if the event should be queued, false if it has been dropped or coalesced.
+     */
+    private boolean makeRoomFor(final T event)
+    {
+        while (queue.size() >= capacity)
+        {
+            switch (overflowPolicy)
+            {
+                case BLOCK :
+                    if (!awaitRoom())
+                    {
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    break;
+
+                case DROP_NEWEST :
+                    droppedCount.incrementAndGet();
+                    return false;
+
+                case COALESCE :
+                    final T coalesced = coalescer.coalesce(queue.peekLast(), event);
+                    if (coalesced != null)
+                    {
+                        queue.pollLast();
+                        queue.addLast(coalesced);
+                        coalescedCount.incrementAndGet();
+                        return false;
+                    }
+                    // can't be merged: fallback to dropping the oldest
+                    queue.pollFirst();
+                    droppedCount.incrementAndGet();
+                    break;
+
+                default :
+                    queue.pollFirst();
+                    droppedCount.incrementAndGet();
+                    break;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean awaitRoom()
+    {
+        try
+        {
+            queue.wait();
+            return true;
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleDelivery()
+    {
+        try
+        {
+            executor.execute(deliveryTask);
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            synchronized (queue)
+            {
+                droppedCount.addAndGet(queue.size());
+                queue.clear();
+                queue.notifyAll();
+                delivering = false;
+            }
+
+            LOGGER.error("Dropping queued events as the delivery executor rejected them", ree);
+        }
+    }
+
+    private void deliverQueued()
+    {
+        for (int i = 0; i < MAX_DELIVERIES_PER_TASK; i++)
+        {
+            final T event;
+
+            synchronized (queue)
+            {
+                event = queue.pollFirst();
+
+                if (event == null)
+                {
+                    delivering = false;
+                    return;
+                }
+
+                queue.notifyAll();
+            }
+
+            try
+            {
+                deliver(event);
+            }
+            catch (final Throwable t)
+            {
+                LOGGER.error("Listener failed to handle: " + event, t);
+            }
+        }
+
+        // give other listeners sharing the executor a chance to run
+        scheduleDelivery();
+    }
+
+    /**
+     * @return the number of events waiting to be delivered.
+     */
+    public int getQueueDepth()
+    {
+        synchronized (queue)
+        {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return the number of events that have been dropped because the queue was full.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of events that have been merged with a queued event because the queue was
+     *         full.
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+}
@@ -24,7 +24,7 @@ public abstract class AbstractChannel implements Closeable
 
     private final String address;
     private final Session session;
-    private final Socket zmqSocket;
+    private volatile Socket zmqSocket;
 
     public AbstractChannel(final String address, final Session session)
     {
@@ -55,10 +55,33 @@ public abstract class AbstractChannel implements Closeable
         return zmqSocket;
     }
 
+    /**
+     * Replaces the ZeroMQ socket with a new one connected to the same address, discarding any
+     * message in flight. This is how a socket that can't recover from a lost message, like a REQ
+     * socket waiting for a reply that will never come, is put back in a usable state.
+     *
+     * @return the new socket.
+     */
+    protected Socket reconnect()
+    {
+        zmqSocket = session.reconnect(this);
+        return zmqSocket;
+    }
+
     protected Session getSession()
     {
         return session;
     }
 
+    /**
+     * Called, from any thread, when the session has lost the connection to the kernel. Replaces the
+     * socket by default: channels whose socket is used by another thread must override this to
+     * replace it from there.
+     */
+    protected void onConnectionLost()
+    {
+        reconnect();
+    }
+
     protected abstract int getZmqSocketType();
 }
@@ -11,6 +11,8 @@ package eu.openanalytics.japyter.client;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.zeromq.ZMQ.Socket;
+
 public abstract class AbstractRunningChannel extends AbstractChannel
 {
     private final AtomicBoolean running;
@@ -47,4 +49,30 @@ public abstract class AbstractRunningChannel extends AbstractChannel
     {
         running.set(true);
     }
+
+    /**
+     * Replaces the socket from its event loop, unless stopped by then, and runs a task there.
+     */
+    void reconnectOnEventLoop(final EventLoop eventLoop, final Runnable afterReconnect)
+    {
+        eventLoop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!isRunning())
+                {
+                    return;
+                }
+
+                final Socket lostSocket = getZmqSocket();
+                eventLoop.replace(lostSocket, reconnect());
+
+                if (afterReconnect != null)
+                {
+                    afterReconnect.run();
+                }
+            }
+        });
+    }
 }
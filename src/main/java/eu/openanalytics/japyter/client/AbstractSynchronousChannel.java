@@ -8,33 +8,205 @@
 
 package eu.openanalytics.japyter.client;
 
-import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.client.ReplyFuture.Converter;
 import eu.openanalytics.japyter.model.Message;
 import eu.openanalytics.japyter.model.gen.Reply;
 import eu.openanalytics.japyter.model.gen.Request;
 
-public abstract class AbstractSynchronousChannel extends AbstractChannel
+/**
+ * A request/reply channel with pipelined requests, whose replies are matched by parent message ID.
+ */
+public abstract class AbstractSynchronousChannel extends AbstractRunningChannel
 {
+    private final class ReplyHandler implements EventLoop.Handler
+    {
+        @Override
+        public void onReadable() throws IOException
+        {
+            receiveAndDispatch();
+        }
+
+        @Override
+        public long getMillisUntilTimer()
+        {
+            return -1L;
+        }
+
+        @Override
+        public void onTimer()
+        {
+            // no timer
+        }
+
+        @Override
+        public void onUnregistered()
+        {
+            failAllPending(new IOException("Channel stopped before a reply was received"));
+
+            getLogger().info("Stopped");
+        }
+    }
+
+    private static final class PendingRequest
+    {
+        private final Message message;
+        private final ReplyFuture<Message> replyFuture;
+        // only accessed by the event loop
+        private boolean sent;
+        private long sentNanos;
+
+        private PendingRequest(final Message message, final ReplyFuture<Message> replyFuture)
+        {
+            this.message = message;
+            this.replyFuture = replyFuture;
+        }
+
+        private boolean isIdempotent()
+        {
+            return RequestMessageType.fromValue(message.getHeader().getMsgType()).isIdempotent();
+        }
+    }
+
+    private final EventLoop eventLoop;
+    private final AtomicBoolean sendScheduled;
+    private final Runnable sendPendingTask;
+    private final Runnable replayInFlightTask;
+    private final Queue<PendingRequest> outbox;
+    private final ConcurrentMap<String, PendingRequest> inFlight;
+
     public AbstractSynchronousChannel(final String address, final Session session)
     {
-        super(address, session);
+        super(address, session, true);
+
+        outbox = new ConcurrentLinkedQueue<>();
+        inFlight = new ConcurrentHashMap<>();
+
+        sendScheduled = new AtomicBoolean(false);
+        sendPendingTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sendScheduled.set(false);
+                sendPending();
+            }
+        };
+
+        replayInFlightTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                replayInFlight();
+            }
+        };
+
+        eventLoop = session.startEventLoop(this);
+        eventLoop.register(getZmqSocket(), new ReplyHandler());
+    }
+
+    @Override
+    public void stop()
+    {
+        super.stop();
+
+        eventLoop.unregister(getZmqSocket());
     }
 
+    @Override
+    protected void onConnectionLost()
+    {
+        reconnectOnEventLoop(eventLoop, replayInFlightTask);
+    }
+
+    /**
+     * Sends a message and blocks until its reply is received or the session receive timeout
+     * expires.
+     */
     public Message send(final Message message) throws IOException
     {
-        getSession().send(message, getZmqSocket());
+        return await(sendAsync(message));
+    }
+
+    /**
+     * Queues a message for sending and returns right away with a future of its reply.
+     */
+    public ReplyFuture<Message> sendAsync(final Message message)
+    {
+        final String msgId = message.getHeader().getMsgId();
+        final ReplyFuture<Message> replyFuture = new ReplyFuture<>();
+
+        if (!isRunning())
+        {
+            replyFuture.fail(new IOException("Channel is stopped, can't send message ID: " + msgId));
+            return replyFuture;
+        }
+
+        final PendingRequest pendingRequest = new PendingRequest(message, replyFuture);
+
+        if (inFlight.putIfAbsent(msgId, pendingRequest) != null)
+        {
+            replyFuture.fail(new IOException("A message with the same ID is already in flight: " + msgId));
+            return replyFuture;
+        }
+
+        replyFuture.addCallback(new Callback<Message>()
+        {
+            @Override
+            public void onSuccess(final Message reply)
+            {
+                inFlight.remove(msgId, pendingRequest);
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                inFlight.remove(msgId, pendingRequest);
+            }
+        });
 
-        getLogger().info("Sent message ID: {}", message.getHeader().getMsgId());
+        outbox.add(pendingRequest);
 
-        return getSession().receive(getZmqSocket());
+        // a single task sends all the requests queued by then
+        if (sendScheduled.compareAndSet(false, true))
+        {
+            eventLoop.execute(sendPendingTask);
+        }
+
+        return replyFuture;
     }
 
-    @SuppressWarnings("unchecked")
     protected <T extends Reply> T send(final RequestMessageType type, final Request content) throws IOException
+    {
+        return await(this.<T> sendAsync(type, content));
+    }
+
+    protected <T extends Reply> T send(final RequestMessageType type) throws IOException
+    {
+        return send(type, null);
+    }
+
+    protected <T extends Reply> T send(final Request content) throws IOException
+    {
+        return send(RequestMessageType.fromRequestContentClass(content.getClass()), content);
+    }
+
+    protected <T extends Reply> ReplyFuture<T> sendAsync(final RequestMessageType type, final Request content)
     {
         final Message request = new Message(type);
         if (content != null)
@@ -42,21 +214,211 @@ public abstract class AbstractSynchronousChannel extends AbstractChannel
             request.withContent(content);
         }
 
-        final Message reply = send(request);
+        return sendAsync(request, type);
+    }
 
-        final Reply replyValue = JSON_OBJECT_MAPPER.convertValue(reply.getContent(),
-            type.getReplyContentClass());
+    /**
+     * Sends a request built by the caller and converts its reply to the reply content class.
+     */
+    protected <T extends Reply> ReplyFuture<T> sendAsync(final Message request, final RequestMessageType type)
+    {
+        return sendAsync(request).transform(new Converter<Message, T>()
+        {
+            @SuppressWarnings("unchecked")
+            @Override
+            public T convert(final Message reply) throws IOException
+            {
+                return (T) getSession().readContent(reply, type.getReplyContentClass());
+            }
+        });
+    }
 
-        return (T) replyValue;
+    protected <T extends Reply> ReplyFuture<T> sendAsync(final RequestMessageType type)
+    {
+        return sendAsync(type, null);
     }
 
-    protected <T extends Reply> T send(final RequestMessageType type) throws IOException
+    protected <T extends Reply> ReplyFuture<T> sendAsync(final Request content)
     {
-        return send(type, null);
+        return sendAsync(RequestMessageType.fromRequestContentClass(content.getClass()), content);
     }
 
-    protected <T extends Reply> T send(final Request content) throws IOException
+    /**
+     * @return the number of requests sent, or about to be, that are still waiting for their reply.
+     */
+    public int getInFlightCount()
     {
-        return send(RequestMessageType.fromRequestContentClass(content.getClass()), content);
+        return inFlight.size();
+    }
+
+    /**
+     * @throws IllegalStateException if called from the event loop of this channel.
+     */
+    private <T> T await(final ReplyFuture<T> replyFuture) throws IOException
+    {
+        if (eventLoop.inEventLoop())
+        {
+            replyFuture.cancel(false);
+            throw new IllegalStateException("Blocking calls can't be made from the event loop serving "
+                                            + getClass().getSimpleName() + ", use sendAsync instead");
+        }
+
+        return await(replyFuture, getSession().getReceiveTimeoutMillis());
+    }
+
+    /**
+     * Waits for a reply future, cancelling it if it times out or the wait is interrupted.
+     *
+     * @param receiveTimeoutMillis the time to wait, or a negative value to wait forever.
+     */
+    static <T> T await(final ReplyFuture<T> replyFuture, final int receiveTimeoutMillis) throws IOException
+    {
+        try
+        {
+            if (receiveTimeoutMillis < 0)
+            {
+                return replyFuture.get();
+            }
+
+            return replyFuture.get(receiveTimeoutMillis, MILLISECONDS);
+        }
+        catch (final TimeoutException te)
+        {
+            replyFuture.cancel(false);
+            throw new IOException("No reply received after waiting " + receiveTimeoutMillis + "ms", te);
+        }
+        catch (final InterruptedException ie)
+        {
+            replyFuture.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for reply");
+        }
+        catch (final CancellationException ce)
+        {
+            throw new IOException("Request has been cancelled", ce);
+        }
+        catch (final ExecutionException ee)
+        {
+            if (ee.getCause() instanceof IOException)
+            {
+                throw (IOException) ee.getCause();
+            }
+
+            throw new IOException("Failed to receive reply", ee.getCause());
+        }
+    }
+
+    private void sendPending()
+    {
+        PendingRequest pendingRequest;
+
+        while ((pendingRequest = outbox.poll()) != null)
+        {
+            if (pendingRequest.replyFuture.isDone())
+            {
+                // cancelled or timed-out before it could be sent
+                continue;
+            }
+
+            send(pendingRequest);
+        }
+    }
+
+    private void send(final PendingRequest pendingRequest)
+    {
+        try
+        {
+            getSession().send(this, pendingRequest.message);
+            pendingRequest.sent = true;
+            pendingRequest.sentNanos = System.nanoTime();
+
+            getLogger().info("Sent message ID: {}", pendingRequest.message.getHeader().getMsgId());
+        }
+        catch (final Session.SocketSendException sse)
+        {
+            pendingRequest.replyFuture.fail(sse);
+            getSession().connectionLost(this);
+        }
+        catch (final Throwable t)
+        {
+            pendingRequest.replyFuture.fail(t);
+        }
+    }
+
+    /**
+     * Sends again, over the new socket, the idempotent requests that were sent over the lost one
+     * and fails the others, whose replies won't come.
+     */
+    private void replayInFlight()
+    {
+        for (final PendingRequest pendingRequest : inFlight.values())
+        {
+            // requests not sent yet are still in the outbox and will go over the new socket
+            if (!pendingRequest.sent || pendingRequest.replyFuture.isDone())
+            {
+                continue;
+            }
+
+            final String msgId = pendingRequest.message.getHeader().getMsgId();
+
+            if (pendingRequest.isIdempotent())
+            {
+                getLogger().info("Replaying message ID: {}", msgId);
+                send(pendingRequest);
+            }
+            else
+            {
+                pendingRequest.replyFuture.fail(new IOException(
+                    "Connection to the kernel lost before a reply was received for message ID: " + msgId));
+            }
+        }
+    }
+
+    private void receiveAndDispatch() throws IOException
+    {
+        final Message reply = getSession().poll(this);
+
+        if (reply == null)
+        {
+            return;
+        }
+
+        final String parentMsgId;
+        try
+        {
+            parentMsgId = reply.peekParentMsgId();
+        }
+        catch (final Message.DecodingException de)
+        {
+            throw de.toIOException();
+        }
+
+        final PendingRequest pendingRequest = parentMsgId != null ? inFlight.remove(parentMsgId) : null;
+
+        if (pendingRequest == null)
+        {
+            getLogger().warn("Dropping reply with no matching request in flight, parent message ID: {}",
+                parentMsgId);
+            return;
+        }
+
+        getSession().getMetrics().replyReceived(Session.getChannelName(this),
+            pendingRequest.message.getHeader().getMsgType(), System.nanoTime() - pendingRequest.sentNanos);
+
+        pendingRequest.replyFuture.complete(reply);
+    }
+
+    private void failAllPending(final IOException ioe)
+    {
+        PendingRequest pendingRequest;
+        while ((pendingRequest = outbox.poll()) != null)
+        {
+            pendingRequest.replyFuture.fail(ioe);
+        }
+
+        for (final PendingRequest inFlightRequest : inFlight.values())
+        {
+            inFlightRequest.replyFuture.fail(ioe);
+        }
     }
 }
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.util.concurrent.Executor;
+
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Status;
+
+/**
+ * A {@link BroadcastListener} that hands broadcasts over to another listener asynchronously, so a
+ * slow listener can't stall the receiving of broadcasts for all the others.
+ */
+public class AsyncBroadcastListener extends AbstractAsyncListener<Broadcast> implements BroadcastListener
+{
+    /**
+     * Coalesces status broadcasts by keeping the most recent one, as it supersedes the queued one.
+     * Other broadcasts, like streams, errors and display data, are output that would be lost, so
+     * they are never coalesced: the oldest queued broadcast is dropped instead, and counted as
+     * such. Streams are best merged upstream, with {@link IoPub#enableStreamCoalescing(int, long)}.
+     */
+    public static final Coalescer<Broadcast> KEEP_LATEST_OF_SAME_TYPE = new Coalescer<Broadcast>()
+    {
+        @Override
+        public Broadcast coalesce(final Broadcast queued, final Broadcast received)
+        {
+            return queued instanceof Status && received instanceof Status ? received : null;
+        }
+    };
+
+    private final BroadcastListener delegate;
+
+    public AsyncBroadcastListener(final BroadcastListener delegate,
+                                  final Executor executor,
+                                  final int capacity,
+                                  final OverflowPolicy overflowPolicy)
+    {
+        this(delegate, executor, capacity, overflowPolicy, KEEP_LATEST_OF_SAME_TYPE);
+    }
+
+    public AsyncBroadcastListener(final BroadcastListener delegate,
+                                  final Executor executor,
+                                  final int capacity,
+                                  final OverflowPolicy overflowPolicy,
+                                  final Coalescer<Broadcast> coalescer)
+    {
+        super(executor, capacity, overflowPolicy, coalescer);
+
+        this.delegate = notNull(delegate, "delegate can't be null");
+    }
+
+    @Override
+    public void handle(final Broadcast b)
+    {
+        enqueue(b);
+    }
+
+    @Override
+    protected void deliver(final Broadcast b)
+    {
+        delegate.handle(b);
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.util.concurrent.Executor;
+
+import eu.openanalytics.japyter.client.IoPub.MessageListener;
+import eu.openanalytics.japyter.model.Message;
+
+/**
+ * A {@link MessageListener} that hands messages over to another listener asynchronously, so a slow
+ * listener can't stall the receiving of messages for all the others.
+ */
+public class AsyncMessageListener extends AbstractAsyncListener<Message> implements MessageListener
+{
+    private final MessageListener delegate;
+
+    public AsyncMessageListener(final MessageListener delegate,
+                                final Executor executor,
+                                final int capacity,
+                                final OverflowPolicy overflowPolicy)
+    {
+        this(delegate, executor, capacity, overflowPolicy, null);
+    }
+
+    public AsyncMessageListener(final MessageListener delegate,
+                                final Executor executor,
+                                final int capacity,
+                                final OverflowPolicy overflowPolicy,
+                                final Coalescer<Message> coalescer)
+    {
+        super(executor, capacity, overflowPolicy, coalescer);
+
+        this.delegate = notNull(delegate, "delegate can't be null");
+    }
+
+    @Override
+    public void handle(final Message m)
+    {
+        enqueue(m);
+    }
+
+    @Override
+    protected void deliver(final Message m)
+    {
+        delegate.handle(m);
+    }
+}
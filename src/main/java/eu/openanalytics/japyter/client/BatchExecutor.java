@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.openanalytics.japyter.client.IoPub.MessageListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+
+/**
+ * Executes batches of cells with pipelined submission: all the requests of a batch are queued on
+ * the shell channel at once, so the kernel runs the cells back to back instead of waiting for a
+ * round trip to the client between them. Outputs published on IoPub are matched to their cell by
+ * parent message ID, and a cell is complete once both its reply and the idle status that ends its
+ * execution have been received.
+ * <p>
+ * When a cell fails and its request doesn't turn <code>stop_on_error</code> off, the later cells
+ * of the batch are cancelled: the requests not sent yet never will be and the kernel aborts the
+ * others. Outputs are collected from the first batch on, so outputs of that batch published before
+ * the IoPub subscription reaches the kernel may be missed.
+ */
+public class BatchExecutor
+{
+    private final class Cell implements Callback<ExecuteReply>
+    {
+        private final List<Cell> batch;
+        private final int index;
+        private final ExecuteRequest request;
+        private final MimeFilter mimeFilter;
+        private final Message message;
+        private final ReplyFuture<CellResult> resultFuture;
+        // guarded by this
+        private final List<Broadcast> outputs;
+        private ReplyFuture<ExecuteReply> replyFuture;
+        private ExecuteReply reply;
+        private boolean idle;
+
+        private Cell(final List<Cell> batch,
+                     final int index,
+                     final ExecuteRequest request,
+                     final MimeFilter mimeFilter)
+        {
+            this.batch = batch;
+            this.index = index;
+            this.request = request;
+            this.mimeFilter = mimeFilter;
+
+            message = new Message(RequestMessageType.EXECUTE_REQUEST).withContent(request);
+            resultFuture = new ReplyFuture<>();
+            outputs = new ArrayList<>();
+            // without IoPub, the reply alone completes the cell
+            idle = ioPub == null;
+        }
+
+        private String getMsgId()
+        {
+            return message.getHeader().getMsgId();
+        }
+
+        private void send()
+        {
+            final ReplyFuture<ExecuteReply> sentReplyFuture;
+
+            synchronized (this)
+            {
+                if (resultFuture.isDone())
+                {
+                    // cancelled by a previous cell of the batch while the requests were queued
+                    return;
+                }
+
+                sentReplyFuture = shell.sendAsync(message, RequestMessageType.EXECUTE_REQUEST);
+                replyFuture = sentReplyFuture;
+            }
+
+            sentReplyFuture.addCallback(this);
+        }
+
+        @Override
+        public void onSuccess(final ExecuteReply executeReply)
+        {
+            if (executeReply.getStatus() == ExecuteReply.Status.ERROR
+                && !Boolean.FALSE.equals(request.getStopOnError()))
+            {
+                for (int i = index + 1; i < batch.size(); i++)
+                {
+                    batch.get(i).cancel();
+                }
+            }
+
+            final CellResult result;
+            synchronized (this)
+            {
+                reply = executeReply;
+                result = getResultIfComplete();
+            }
+
+            complete(result);
+        }
+
+        @Override
+        public void onFailure(final Throwable t)
+        {
+            if (!(t instanceof CancellationException))
+            {
+                resultFuture.fail(t);
+            }
+        }
+
+        private synchronized void outputReceived(final Broadcast output)
+        {
+            outputs.add(output);
+        }
+
+        private void idleReceived()
+        {
+            final CellResult result;
+            synchronized (this)
+            {
+                idle = true;
+                result = getResultIfComplete();
+            }
+
+            complete(result);
+        }
+
+        private void cancel()
+        {
+            final ReplyFuture<ExecuteReply> sentReplyFuture;
+            final CellResult result;
+            synchronized (this)
+            {
+                sentReplyFuture = replyFuture;
+                result = new CellResult(request, reply, new ArrayList<>(outputs), true);
+            }
+
+            if (sentReplyFuture != null)
+            {
+                sentReplyFuture.cancel(false);
+            }
+
+            resultFuture.complete(result);
+        }
+
+        private CellResult getResultIfComplete()
+        {
+            return reply != null && idle ? new CellResult(request, reply, new ArrayList<>(outputs), false) : null;
+        }
+
+        private void complete(final CellResult result)
+        {
+            if (result != null)
+            {
+                resultFuture.complete(result);
+            }
+        }
+    }
+
+    /**
+     * Hands the outputs and idle status of running cells to them, ignoring all other messages.
+     */
+    private final class OutputRouter implements MessageListener
+    {
+        @Override
+        public void handle(final Message m)
+        {
+            final String parentMsgId = m.peekParentMsgId();
+            final Cell cell = parentMsgId != null ? runningCells.get(parentMsgId) : null;
+
+            if (cell == null)
+            {
+                return;
+            }
+
+            final String msgType = m.peekMsgType();
+            final BroadcastType broadcastType = BroadcastType.fromValue(msgType);
+
+            try
+            {
+                if (broadcastType == BroadcastType.STATUS)
+                {
+                    if (shell.getSession().readContent(m, Status.class).getExecutionState() == ExecutionState.IDLE)
+                    {
+                        cell.idleReceived();
+                    }
+                }
+                else if (broadcastType != BroadcastType.EXECUTE_INPUT)
+                {
+                    final boolean hasMimeBundle = broadcastType != null && broadcastType.hasMimeBundle();
+                    cell.outputReceived(shell.getSession().readContent(m, BroadcastType.classFromValue(msgType),
+                        hasMimeBundle ? cell.mimeFilter : MimeFilter.ALL));
+                }
+            }
+            catch (final IOException ioe)
+            {
+                LOGGER.error("Dropping output that failed decoding for message ID: {}", parentMsgId, ioe);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchExecutor.class);
+
+    private final Shell shell;
+    private final IoPub ioPub;
+    private final ConcurrentMap<String, Cell> runningCells;
+
+    /**
+     * @param ioPub the channel the outputs are collected from, or null to collect none.
+     */
+    public BatchExecutor(final Shell shell, final IoPub ioPub)
+    {
+        this.shell = Validate.notNull(shell, "shell can't be null");
+        this.ioPub = ioPub;
+
+        runningCells = new ConcurrentHashMap<>();
+
+        if (ioPub != null)
+        {
+            ioPub.subscribe(new OutputRouter());
+        }
+    }
+
+    /**
+     * Executes cells back to back and blocks until all are complete. Each cell must complete
+     * within the session receive timeout after the previous one.
+     *
+     * @return the result of each cell, in the order of the requests.
+     */
+    public List<CellResult> executeBatch(final List<ExecuteRequest> requests) throws IOException
+    {
+        return executeBatch(requests, MimeFilter.ALL);
+    }
+
+    /**
+     * Executes cells back to back and blocks until all are complete, only decoding the MIME types
+     * accepted by the filter from their display data and execute results.
+     *
+     * @see #executeBatch(List)
+     */
+    public List<CellResult> executeBatch(final List<ExecuteRequest> requests, final MimeFilter mimeFilter)
+        throws IOException
+    {
+        final List<Cell> cells = submit(requests, mimeFilter);
+        final List<CellResult> results = new ArrayList<>(cells.size());
+        final int receiveTimeoutMillis = shell.getSession().getReceiveTimeoutMillis();
+
+        try
+        {
+            for (final Cell cell : cells)
+            {
+                results.add(AbstractSynchronousChannel.await(cell.resultFuture, receiveTimeoutMillis));
+            }
+        }
+        catch (final IOException ioe)
+        {
+            cancel(cells);
+            throw ioe;
+        }
+
+        return results;
+    }
+
+    /**
+     * Queues cells for execution and returns immediately with a future of their results, in the
+     * order of the requests. The future fails as soon as a cell does, and cancelling it cancels the
+     * cells that are not complete yet.
+     */
+    public ReplyFuture<List<CellResult>> executeBatchAsync(final List<ExecuteRequest> requests)
+    {
+        return executeBatchAsync(requests, MimeFilter.ALL);
+    }
+
+    /**
+     * Queues cells for execution and returns immediately with a future of their results, only
+     * decoding the MIME types accepted by the filter from their display data and execute results.
+     *
+     * @see #executeBatchAsync(List)
+     */
+    public ReplyFuture<List<CellResult>> executeBatchAsync(final List<ExecuteRequest> requests,
+                                                           final MimeFilter mimeFilter)
+    {
+        final List<Cell> cells = submit(requests, mimeFilter);
+        final ReplyFuture<List<CellResult>> batchFuture = new ReplyFuture<>();
+        final AtomicInteger remainingCells = new AtomicInteger(cells.size());
+
+        if (cells.isEmpty())
+        {
+            batchFuture.complete(new ArrayList<CellResult>());
+            return batchFuture;
+        }
+
+        for (final Cell cell : cells)
+        {
+            cell.resultFuture.addCallback(new Callback<CellResult>()
+            {
+                @Override
+                public void onSuccess(final CellResult result)
+                {
+                    if (remainingCells.decrementAndGet() == 0)
+                    {
+                        batchFuture.complete(getResults(cells));
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable t)
+                {
+                    batchFuture.fail(t);
+                }
+            });
+        }
+
+        batchFuture.addCallback(new Callback<List<CellResult>>()
+        {
+            @Override
+            public void onSuccess(final List<CellResult> results)
+            {
+                // NOOP
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                cancel(cells);
+            }
+        });
+
+        return batchFuture;
+    }
+
+    /**
+     * @return the number of cells whose reply or idle status is still expected.
+     */
+    public int getRunningCellCount()
+    {
+        return runningCells.size();
+    }
+
+    private List<Cell> submit(final List<ExecuteRequest> requests, final MimeFilter mimeFilter)
+    {
+        Validate.noNullElements(requests, "requests can't be null or contain null elements");
+        Validate.notNull(mimeFilter, "mimeFilter can't be null");
+
+        final List<Cell> cells = new ArrayList<>(requests.size());
+        for (final ExecuteRequest request : requests)
+        {
+            cells.add(new Cell(cells, cells.size(), request, mimeFilter));
+        }
+
+        // all cells are known before any request is sent, so no output goes unmatched
+        for (final Cell cell : cells)
+        {
+            final String msgId = cell.getMsgId();
+            runningCells.put(msgId, cell);
+
+            cell.resultFuture.addCallback(new Callback<CellResult>()
+            {
+                @Override
+                public void onSuccess(final CellResult result)
+                {
+                    runningCells.remove(msgId, cell);
+                }
+
+                @Override
+                public void onFailure(final Throwable t)
+                {
+                    runningCells.remove(msgId, cell);
+                }
+            });
+        }
+
+        for (final Cell cell : cells)
+        {
+            cell.send();
+        }
+
+        return cells;
+    }
+
+    private static List<CellResult> getResults(final List<Cell> cells)
+    {
+        final List<CellResult> results = new ArrayList<>(cells.size());
+
+        for (final Cell cell : cells)
+        {
+            try
+            {
+                results.add(cell.resultFuture.get());
+            }
+            catch (final Exception e)
+            {
+                // all cells are complete by now
+                throw new IllegalStateException("Cell not complete: " + cell.getMsgId(), e);
+            }
+        }
+
+        return results;
+    }
+
+    private static void cancel(final List<Cell> cells)
+    {
+        for (final Cell cell : cells)
+        {
+            cell.cancel();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.util.Collections;
+import java.util.List;
+
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+/**
+ * The outcome of one cell of a batch: its reply and the outputs the kernel published on IoPub
+ * while executing it, in the order they have been received.
+ */
+public final class CellResult
+{
+    private final ExecuteRequest request;
+    private final ExecuteReply reply;
+    private final List<Broadcast> outputs;
+    private final boolean cancelled;
+
+    CellResult(final ExecuteRequest request,
+               final ExecuteReply reply,
+               final List<Broadcast> outputs,
+               final boolean cancelled)
+    {
+        this.request = request;
+        this.reply = reply;
+        this.outputs = Collections.unmodifiableList(outputs);
+        this.cancelled = cancelled;
+    }
+
+    public ExecuteRequest getRequest()
+    {
+        return request;
+    }
+
+    /**
+     * @return the reply of the kernel, or null if the cell has been cancelled before it arrived.
+     */
+    public ExecuteReply getReply()
+    {
+        return reply;
+    }
+
+    /**
+     * @return the stream, display, result, error and clear output broadcasts of the cell; status
+     *         and execute input broadcasts are left out.
+     */
+    public List<Broadcast> getOutputs()
+    {
+        return outputs;
+    }
+
+    /**
+     * @return true if the cell has been cancelled because a previous cell of the batch failed.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CellResult [request=" + request + ", reply=" + reply + ", outputs=" + outputs + ", cancelled="
+               + cancelled + "]";
+    }
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.model.LazyMimeValue;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+
+/**
+ * Binds message content directly between JSON and the model classes.
+ */
+public final class Codecs
+{
+    private static final String MIME_BUNDLE_FIELD = "data";
+
+    private static final ConcurrentMap<Class<?>, ObjectReader> READERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+
+    static
+    {
+        register(Map.class);
+
+        for (final RequestMessageType requestMessageType : RequestMessageType.values())
+        {
+            if (requestMessageType.getRequestContentClass() != null)
+            {
+                register(requestMessageType.getRequestContentClass());
+            }
+            register(requestMessageType.getReplyContentClass());
+        }
+
+        for (final BroadcastType broadcastType : BroadcastType.values())
+        {
+            register(broadcastType.getBroadcastClass());
+        }
+        register(Broadcast.class);
+    }
+
+    private Codecs()
+    {
+        // utility class
+    }
+
+    private static void register(final Class<?> contentClass)
+    {
+        READERS.put(contentClass, JSON_OBJECT_MAPPER.reader(contentClass));
+        WRITERS.put(contentClass, JSON_OBJECT_MAPPER.writerFor(contentClass));
+    }
+
+    /**
+     * Reads the content of a message as the provided class, converting only {@link Map} content.
+     */
+    public static <T> T readContent(final Message message, final Class<T> contentClass) throws IOException
+    {
+        notNull(contentClass, "contentClass can't be null");
+
+        final Object typedContent = message.getTypedContent();
+        if (contentClass.isInstance(typedContent))
+        {
+            return contentClass.cast(typedContent);
+        }
+
+        final byte[] rawContent = message.getRawContent();
+        if (rawContent != null)
+        {
+            return getReader(contentClass).readValue(rawContent);
+        }
+
+        return JSON_OBJECT_MAPPER.convertValue(message.getContent(), contentClass);
+    }
+
+    /**
+     * Reads content holding a MIME bundle, skipping the entries the filter rejects while parsing.
+     */
+    public static <T> T readContent(final Message message, final Class<T> contentClass, final MimeFilter mimeFilter)
+        throws IOException
+    {
+        notNull(mimeFilter, "mimeFilter can't be null");
+
+        final byte[] rawContent = message.getRawContent();
+        if (mimeFilter.isPassThrough() || rawContent == null || contentClass.isInstance(message.getTypedContent()))
+        {
+            return readContent(message, contentClass);
+        }
+
+        try (JsonParser parser = JSON_OBJECT_MAPPER.getFactory().createParser(rawContent))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                return getReader(contentClass).readValue(rawContent);
+            }
+
+            // without codec, lazy values are buffered as embedded objects instead of being serialized
+            final TokenBuffer projected = new TokenBuffer(null, false);
+            projected.writeStartObject();
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                final String fieldName = parser.getCurrentName();
+                projected.writeFieldName(fieldName);
+
+                if (parser.nextToken() == JsonToken.START_OBJECT && MIME_BUNDLE_FIELD.equals(fieldName))
+                {
+                    projectMimeBundle(parser, rawContent, mimeFilter, projected);
+                }
+                else
+                {
+                    projected.copyCurrentStructure(parser);
+                }
+            }
+
+            projected.writeEndObject();
+            return getReader(contentClass).readValue(projected.asParser());
+        }
+    }
+
+    private static void projectMimeBundle(final JsonParser parser,
+                                          final byte[] rawContent,
+                                          final MimeFilter mimeFilter,
+                                          final TokenBuffer projected) throws IOException
+    {
+        projected.writeStartObject();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            final String mimeType = parser.getCurrentName();
+            final JsonToken valueToken = parser.nextToken();
+
+            if (!mimeFilter.accepts(mimeType))
+            {
+                // a string the parser hasn't read yet is skipped over when moving to the next token
+                parser.skipChildren();
+                continue;
+            }
+
+            projected.writeFieldName(mimeType);
+
+            final LazyMimeValue lazyValue = valueToken == JsonToken.VALUE_STRING ? toLazyValue(parser, rawContent,
+                mimeType, mimeFilter.getLazyThresholdBytes()) : null;
+
+            if (lazyValue != null)
+            {
+                projected.writeObject(lazyValue);
+            }
+            else
+            {
+                projected.copyCurrentStructure(parser);
+            }
+        }
+
+        projected.writeEndObject();
+    }
+
+    private static LazyMimeValue toLazyValue(final JsonParser parser,
+                                             final byte[] rawContent,
+                                             final String mimeType,
+                                             final int lazyThresholdBytes)
+    {
+        if (lazyThresholdBytes == Integer.MAX_VALUE)
+        {
+            return null;
+        }
+
+        // the parser stops right after the opening quote of a string it hasn't read yet
+        final long start = parser.getCurrentLocation().getByteOffset();
+        if (start <= 0L || start > rawContent.length || rawContent[(int) start - 1] != '"')
+        {
+            return null;
+        }
+
+        int end = (int) start;
+        while (end < rawContent.length && rawContent[end] != '"')
+        {
+            end += rawContent[end] == '\\' ? 2 : 1;
+        }
+
+        if (end >= rawContent.length || end - start < lazyThresholdBytes)
+        {
+            return null;
+        }
+
+        return new LazyMimeValue(mimeType, rawContent, (int) start, end);
+    }
+
+    /**
+     * Writes the content of a message, binding typed content directly to JSON.
+     */
+    public static void writeContent(final Message message, final JsonGenerator generator) throws IOException
+    {
+        final Object typedContent = message.getTypedContent();
+
+        if (typedContent != null)
+        {
+            getWriter(typedContent.getClass()).writeValue(generator, typedContent);
+        }
+        else
+        {
+            getWriter(Map.class).writeValue(generator, message.getContent());
+        }
+    }
+
+    public static ObjectReader getReader(final Class<?> contentClass)
+    {
+        final ObjectReader reader = READERS.get(contentClass);
+        if (reader != null)
+        {
+            return reader;
+        }
+
+        final ObjectReader newReader = JSON_OBJECT_MAPPER.reader(contentClass);
+        final ObjectReader existingReader = READERS.putIfAbsent(contentClass, newReader);
+        return existingReader != null ? existingReader : newReader;
+    }
+
+    public static ObjectWriter getWriter(final Class<?> contentClass)
+    {
+        final ObjectWriter writer = WRITERS.get(contentClass);
+        if (writer != null)
+        {
+            return writer;
+        }
+
+        final ObjectWriter newWriter = JSON_OBJECT_MAPPER.writerFor(contentClass);
+        final ObjectWriter existingWriter = WRITERS.putIfAbsent(contentClass, newWriter);
+        return existingWriter != null ? existingWriter : newWriter;
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable, reusable byte buffer into which the JSON frames of a message are serialized back to
+ * back, so they can be signed in place before being copied once into the frames handed over to
+ * ZeroMQ.
+ */
+final class EncodingBuffer extends OutputStream
+{
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    void reset()
+    {
+        size = 0;
+
+        // don't hold on to the memory used by an exceptionally large message
+        if (buffer.length > MAX_RETAINED_CAPACITY)
+        {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    byte[] array()
+    {
+        return buffer;
+    }
+
+    byte[] copyOfRange(final int from, final int to)
+    {
+        return Arrays.copyOfRange(buffer, from, to);
+    }
+
+    @Override
+    public void write(final int b)
+    {
+        ensureCapacity(size + 1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+    {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, buffer, size, len);
+        size += len;
+    }
+
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * Serves the ZeroMQ sockets of its sessions, or of a single channel, from a single thread.
+ */
+final class EventLoop implements Runnable
+{
+    /**
+     * Reacts to the events of a registered socket, on the loop thread.
+     */
+    interface Handler
+    {
+        void onReadable() throws Exception;
+
+        /**
+         * @return the milliseconds until {@link #onTimer()} is due, or -1 if no timer is pending.
+         */
+        long getMillisUntilTimer();
+
+        void onTimer() throws Exception;
+
+        void onUnregistered();
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLoop.class);
+    private static final long UNREGISTER_TIMEOUT_MILLIS = 5000L;
+
+    private final String name;
+    private final boolean dedicated;
+    private final WakeUpSignal wakeUpSignal;
+    private final Queue<Runnable> tasks;
+    // only accessed by the loop thread
+    private final Map<Socket, Handler> handlers;
+    private boolean handlersChanged;
+    private final AtomicInteger assignedSessionCount;
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    EventLoop(final ZContext zmqContext, final String name, final boolean dedicated)
+    {
+        this.name = Validate.notBlank(name, "name can't be empty");
+        this.dedicated = dedicated;
+
+        wakeUpSignal = new WakeUpSignal(zmqContext);
+        tasks = new ConcurrentLinkedQueue<>();
+        handlers = new LinkedHashMap<>();
+        assignedSessionCount = new AtomicInteger();
+    }
+
+    /**
+     * Starts serving a socket, which must not be used from any other thread afterwards.
+     */
+    void register(final Socket socket, final Handler handler)
+    {
+        Validate.notNull(socket, "socket can't be null");
+        Validate.notNull(handler, "handler can't be null");
+
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handlers.put(socket, handler);
+                handlersChanged = true;
+            }
+        });
+    }
+
+    /**
+     * Stops serving a socket, waiting for the loop to be done with it unless called from there.
+     */
+    void unregister(final Socket socket)
+    {
+        final CountDownLatch unregistered = new CountDownLatch(1);
+
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    removeHandler(socket);
+                }
+                finally
+                {
+                    unregistered.countDown();
+                }
+            }
+        });
+
+        if (inEventLoop() || closed)
+        {
+            return;
+        }
+
+        try
+        {
+            if (!unregistered.await(UNREGISTER_TIMEOUT_MILLIS, MILLISECONDS))
+            {
+                LOGGER.error("Event loop {} didn't unregister socket after {}ms", name, UNREGISTER_TIMEOUT_MILLIS);
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            // Restore the interrupted status
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves a new socket with the handler of a replaced one. Must be called from the loop thread.
+     */
+    void replace(final Socket oldSocket, final Socket newSocket)
+    {
+        Validate.validState(inEventLoop(), "sockets can only be replaced from the event loop thread");
+
+        final Handler handler = handlers.remove(oldSocket);
+        Validate.validState(handler != null, "socket isn't registered with event loop %s", name);
+
+        handlers.put(newSocket, handler);
+        handlersChanged = true;
+    }
+
+    /**
+     * Runs a task on the loop thread, can be called from any thread.
+     */
+    void execute(final Runnable task)
+    {
+        if (closed)
+        {
+            LOGGER.debug("Event loop {} is closed, dropping task: {}", name, task);
+            return;
+        }
+
+        tasks.add(task);
+
+        if (!inEventLoop())
+        {
+            wakeUpSignal.signal();
+        }
+    }
+
+    boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    int getAssignedSessionCount()
+    {
+        return assignedSessionCount.get();
+    }
+
+    void assign()
+    {
+        assignedSessionCount.incrementAndGet();
+    }
+
+    void release()
+    {
+        assignedSessionCount.decrementAndGet();
+    }
+
+    /**
+     * Stops the loop, after which the handlers still registered are unregistered.
+     */
+    void close()
+    {
+        closed = true;
+
+        if (!inEventLoop())
+        {
+            wakeUpSignal.signal();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        thread = Thread.currentThread();
+        LOGGER.info("Event loop {} started", name);
+
+        Poller poller = null;
+        final List<Socket> polledSockets = new ArrayList<>();
+        final List<Handler> polledHandlers = new ArrayList<>();
+
+        try
+        {
+            while (!closed)
+            {
+                if (poller == null || handlersChanged)
+                {
+                    poller = newPoller(polledSockets, polledHandlers);
+                }
+
+                poller.poll(getPollTimeoutMillis());
+
+                if (poller.pollin(0))
+                {
+                    wakeUpSignal.clear();
+                }
+
+                runTasks();
+
+                for (int i = 1; i < polledHandlers.size(); i++)
+                {
+                    final Handler handler = polledHandlers.get(i);
+
+                    // skips handlers unregistered by a task run in this iteration
+                    if (poller.pollin(i) && handlers.get(polledSockets.get(i)) == handler)
+                    {
+                        onReadable(handler);
+                    }
+                }
+
+                runDueTimers();
+            }
+        }
+        finally
+        {
+            closed = true;
+
+            runTasks();
+            for (final Socket socket : new ArrayList<>(handlers.keySet()))
+            {
+                removeHandler(socket);
+            }
+
+            wakeUpSignal.close();
+            thread = null;
+
+            LOGGER.info("Event loop {} stopped", name);
+        }
+    }
+
+    private Poller newPoller(final List<Socket> polledSockets, final List<Handler> polledHandlers)
+    {
+        final Poller poller = new Poller(handlers.size() + 1);
+        polledSockets.clear();
+        polledHandlers.clear();
+
+        wakeUpSignal.register(poller);
+        polledSockets.add(null);
+        polledHandlers.add(null);
+
+        for (final Entry<Socket, Handler> registration : handlers.entrySet())
+        {
+            poller.register(registration.getKey(), Poller.POLLIN);
+            polledSockets.add(registration.getKey());
+            polledHandlers.add(registration.getValue());
+        }
+
+        handlersChanged = false;
+        return poller;
+    }
+
+    private long getPollTimeoutMillis()
+    {
+        if (!tasks.isEmpty())
+        {
+            return 0L;
+        }
+
+        long timeout = -1L;
+
+        for (final Handler handler : handlers.values())
+        {
+            final long millisUntilTimer = handler.getMillisUntilTimer();
+
+            if (millisUntilTimer >= 0 && (timeout < 0 || millisUntilTimer < timeout))
+            {
+                timeout = millisUntilTimer;
+            }
+        }
+
+        return timeout;
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (final Throwable t)
+            {
+                LOGGER.error("Event loop {} task failed", name, t);
+            }
+        }
+    }
+
+    private void onReadable(final Handler handler)
+    {
+        try
+        {
+            handler.onReadable();
+        }
+        catch (final Throwable t)
+        {
+            LOGGER.error("Event loop {} failed to handle readable socket", name, t);
+        }
+    }
+
+    private void runDueTimers()
+    {
+        for (final Handler handler : new ArrayList<>(handlers.values()))
+        {
+            if (handler.getMillisUntilTimer() != 0)
+            {
+                continue;
+            }
+
+            try
+            {
+                handler.onTimer();
+            }
+            catch (final Throwable t)
+            {
+                LOGGER.error("Event loop {} timer failed", name, t);
+            }
+        }
+    }
+
+    private void removeHandler(final Socket socket)
+    {
+        final Handler handler = handlers.remove(socket);
+
+        if (handler == null)
+        {
+            return;
+        }
+
+        handlersChanged = true;
+
+        try
+        {
+            handler.onUnregistered();
+        }
+        catch (final Throwable t)
+        {
+            LOGGER.error("Event loop {} failed to unregister handler", name, t);
+        }
+
+        if (dedicated && handlers.isEmpty())
+        {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,608 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.openanalytics.japyter.client.IoPub.MessageListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.client.ReactiveStreams.Publisher;
+import eu.openanalytics.japyter.client.ReactiveStreams.Subscriber;
+import eu.openanalytics.japyter.client.ReactiveStreams.Subscription;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Error;
+import eu.openanalytics.japyter.model.gen.ExecuteInput;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.ExecuteResult;
+import eu.openanalytics.japyter.model.gen.HistoryReply;
+import eu.openanalytics.japyter.model.gen.HistoryRequest;
+import eu.openanalytics.japyter.model.gen.HistoryRequest.HistAccessType;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+
+/**
+ * A submitted execution, tying its shell reply to its IoPub outputs, which are streamed by a
+ * {@link Publisher}. IoPub drops messages silently, so the {@link Gap}s found are reported.
+ */
+public class Execution
+{
+    public enum Gap
+    {
+        /** No busy status was received. */
+        MISSING_BUSY_STATUS,
+        /** No execute_input was received, although the kernel ran the code. */
+        MISSING_EXECUTE_INPUT,
+        /** The reply is an error but no error broadcast was received. */
+        MISSING_ERROR,
+        /** No idle status was received within the receive timeout that follows the reply. */
+        MISSING_IDLE_STATUS,
+        /** The execute_input or execute_result is for another execution count than the reply. */
+        EXECUTION_COUNT_MISMATCH
+    }
+
+    private final class OutputRouter implements MessageListener
+    {
+        @Override
+        public void handle(final Message m)
+        {
+            final BroadcastType broadcastType = BroadcastType.fromValue(m.peekMsgType());
+
+            try
+            {
+                if (broadcastType == BroadcastType.STATUS)
+                {
+                    final ExecutionState executionState = shell.getSession()
+                        .readContent(m, Status.class)
+                        .getExecutionState();
+
+                    if (executionState == ExecutionState.BUSY)
+                    {
+                        busyReceived();
+                    }
+                    else if (executionState == ExecutionState.IDLE)
+                    {
+                        idleReceived();
+                    }
+                }
+                else if (broadcastType == BroadcastType.EXECUTE_INPUT)
+                {
+                    executeInputReceived(shell.getSession().readContent(m, ExecuteInput.class));
+                }
+                else if (OUTPUT_TYPES.contains(broadcastType))
+                {
+                    final Broadcast output = shell.getSession().readContent(m, broadcastType.getBroadcastClass(),
+                        getMimeFilter(broadcastType));
+                    outputReceived(output);
+                    outputs.publish(output);
+                }
+            }
+            catch (final IOException ioe)
+            {
+                LOGGER.error("Dropping output that failed decoding for message ID: {}", getMsgId(), ioe);
+            }
+        }
+    }
+
+    /**
+     * Publishes outputs to a single subscriber, queuing those beyond its demand.
+     */
+    private static final class OutputPublisher implements Publisher<Broadcast>, Subscription
+    {
+        private final Queue<Broadcast> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Subscriber<? super Broadcast>> subscriber = new AtomicReference<>();
+        private final AtomicLong requested = new AtomicLong();
+        // the number of pending drain requests, only the thread that raises it from 0 drains
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private volatile boolean finished;
+        private volatile Throwable failure;
+        private volatile boolean cancelled;
+
+        @Override
+        public void subscribe(final Subscriber<? super Broadcast> newSubscriber)
+        {
+            if (newSubscriber == null)
+            {
+                throw new NullPointerException("subscriber can't be null");
+            }
+
+            if (!subscriber.compareAndSet(null, newSubscriber))
+            {
+                newSubscriber.onSubscribe(CANCELLED_SUBSCRIPTION);
+                newSubscriber.onError(new IllegalStateException("Outputs can only be subscribed to once"));
+                return;
+            }
+
+            newSubscriber.onSubscribe(this);
+            drain();
+        }
+
+        @Override
+        public void request(final long n)
+        {
+            if (n <= 0)
+            {
+                finish(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+
+            long current, updated;
+            do
+            {
+                current = requested.get();
+                updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+            }
+            while (!requested.compareAndSet(current, updated));
+
+            drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            drain();
+        }
+
+        private void publish(final Broadcast output)
+        {
+            if (!finished && !cancelled)
+            {
+                queued.add(output);
+                drain();
+            }
+        }
+
+        private void finish(final Throwable t)
+        {
+            if (!finished)
+            {
+                failure = t;
+                finished = true;
+                drain();
+            }
+        }
+
+        private void drain()
+        {
+            if (drainRequests.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            int missedDrainRequests = 1;
+            do
+            {
+                final Subscriber<? super Broadcast> currentSubscriber = subscriber.get();
+                if (currentSubscriber != null && emit(currentSubscriber))
+                {
+                    return;
+                }
+
+                missedDrainRequests = drainRequests.addAndGet(-missedDrainRequests);
+            }
+            while (missedDrainRequests != 0);
+        }
+
+        /**
+         * @return true if the subscription is over.
+         */
+        private boolean emit(final Subscriber<? super Broadcast> currentSubscriber)
+        {
+            long emitted = 0L;
+
+            while (!cancelled)
+            {
+                // read before polling, so an output published before finishing is never skipped
+                final boolean wasFinished = finished;
+
+                if (emitted == requested.get())
+                {
+                    if (wasFinished && (queued.isEmpty() || failure != null))
+                    {
+                        return terminate(currentSubscriber);
+                    }
+                    break;
+                }
+
+                final Broadcast output = failure == null ? queued.poll() : null;
+                if (output == null)
+                {
+                    if (wasFinished)
+                    {
+                        return terminate(currentSubscriber);
+                    }
+                    break;
+                }
+
+                currentSubscriber.onNext(output);
+                emitted++;
+            }
+
+            if (cancelled)
+            {
+                queued.clear();
+                return true;
+            }
+
+            if (emitted > 0L && requested.get() != Long.MAX_VALUE)
+            {
+                requested.addAndGet(-emitted);
+            }
+
+            return false;
+        }
+
+        private boolean terminate(final Subscriber<? super Broadcast> currentSubscriber)
+        {
+            cancelled = true;
+            queued.clear();
+
+            if (failure == null)
+            {
+                currentSubscriber.onComplete();
+            }
+            else
+            {
+                currentSubscriber.onError(failure);
+            }
+
+            return true;
+        }
+    }
+
+    private static final Subscription CANCELLED_SUBSCRIPTION = new Subscription()
+    {
+        @Override
+        public void request(final long n)
+        {
+            // NOOP
+        }
+
+        @Override
+        public void cancel()
+        {
+            // NOOP
+        }
+    };
+
+    private static final Set<BroadcastType> OUTPUT_TYPES = EnumSet.of(BroadcastType.STREAM,
+        BroadcastType.DISPLAY_DATA, BroadcastType.EXECUTE_RESULT, BroadcastType.ERROR);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Execution.class);
+
+    private final Shell shell;
+    private final IoPub ioPub;
+    private final ExecuteRequest request;
+    private final MimeFilter mimeFilter;
+    private final Message message;
+    private final OutputRouter outputRouter;
+    private final OutputPublisher outputs;
+    private final ReplyFuture<ExecuteReply> completionFuture;
+    private ReplyFuture<ExecuteReply> replyFuture;
+    // guarded by this
+    private ExecuteReply reply;
+    private boolean idle;
+    private boolean idleTimedOut;
+    private ScheduledFuture<?> idleTimeout;
+    private boolean busy;
+    private Integer inputExecutionCount;
+    private boolean executeInputReceived;
+    private boolean errorReceived;
+    private Integer resultExecutionCount;
+    private Set<Gap> gaps = Collections.emptySet();
+
+    Execution(final Shell shell, final IoPub ioPub, final ExecuteRequest request, final MimeFilter mimeFilter)
+    {
+        this.shell = shell;
+        this.ioPub = ioPub;
+        this.request = request;
+        this.mimeFilter = mimeFilter;
+
+        message = new Message(RequestMessageType.EXECUTE_REQUEST).withContent(request);
+        outputRouter = new OutputRouter();
+        outputs = new OutputPublisher();
+        completionFuture = new ReplyFuture<>();
+    }
+
+    Execution submit()
+    {
+        completionFuture.addCallback(new Callback<ExecuteReply>()
+        {
+            @Override
+            public void onSuccess(final ExecuteReply executeReply)
+            {
+                // the subscription has expired with the idle status
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                cancelIdleTimeout();
+                ioPub.unsubscribe(getMsgId(), outputRouter);
+                outputs.finish(t);
+            }
+        });
+
+        ioPub.subscribe(getMsgId(), outputRouter);
+
+        replyFuture = shell.sendAsync(message, RequestMessageType.EXECUTE_REQUEST);
+        replyFuture.addCallback(new Callback<ExecuteReply>()
+        {
+            @Override
+            public void onSuccess(final ExecuteReply executeReply)
+            {
+                replyReceived(executeReply);
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                completionFuture.fail(t);
+            }
+        });
+
+        return this;
+    }
+
+    public ExecuteRequest getRequest()
+    {
+        return request;
+    }
+
+    /**
+     * @return the ID of the request message, the parent message ID of the outputs.
+     */
+    public String getMsgId()
+    {
+        return message.getHeader().getMsgId();
+    }
+
+    /**
+     * @return a future of the reply, possibly done before the outputs.
+     */
+    public ReplyFuture<ExecuteReply> getReplyFuture()
+    {
+        return replyFuture;
+    }
+
+    /**
+     * @return a future of the reply, done after all outputs too or with a
+     * {@link Gap#MISSING_IDLE_STATUS} gap. Cancelling it stops collecting outputs.
+     */
+    public ReplyFuture<ExecuteReply> getCompletionFuture()
+    {
+        return completionFuture;
+    }
+
+    /**
+     * @return a single-subscriber publisher of the outputs, completing after the idle status.
+     */
+    public Publisher<Broadcast> getOutputs()
+    {
+        return outputs;
+    }
+
+    /**
+     * @return the gaps found in this execution, only known once it is complete.
+     */
+    public synchronized Set<Gap> getGaps()
+    {
+        return gaps;
+    }
+
+    /**
+     * Fetches the input and result of this execution from the kernel history.
+     *
+     * @throws IllegalStateException if the reply hasn't been received or has no execution count.
+     */
+    public ReplyFuture<HistoryReply> fetchHistory()
+    {
+        final ExecuteReply executeReply;
+        synchronized (this)
+        {
+            executeReply = reply;
+        }
+
+        Validate.validState(executeReply != null && executeReply.getExecutionCount() != null,
+            "The execution count of %s isn't known yet", getMsgId());
+
+        final int executionCount = executeReply.getExecutionCount();
+        return shell.historyAsync(new HistoryRequest().withHistAccessType(HistAccessType.RANGE)
+            .withSession(0)
+            .withStart(executionCount)
+            .withStop(executionCount + 1)
+            .withOutput(true)
+            .withRaw(true));
+    }
+
+    private MimeFilter getMimeFilter(final BroadcastType broadcastType)
+    {
+        return broadcastType.hasMimeBundle() ? mimeFilter : MimeFilter.ALL;
+    }
+
+    private synchronized void busyReceived()
+    {
+        busy = true;
+    }
+
+    private synchronized void executeInputReceived(final ExecuteInput executeInput)
+    {
+        executeInputReceived = true;
+        inputExecutionCount = executeInput.getExecutionCount();
+    }
+
+    private synchronized void outputReceived(final Broadcast output)
+    {
+        if (output instanceof Error)
+        {
+            errorReceived = true;
+        }
+        else if (output instanceof ExecuteResult)
+        {
+            resultExecutionCount = ((ExecuteResult) output).getExecutionCount();
+        }
+    }
+
+    private void replyReceived(final ExecuteReply executeReply)
+    {
+        final boolean complete;
+        synchronized (this)
+        {
+            reply = executeReply;
+            complete = idle;
+
+            final int receiveTimeoutMillis = shell.getSession().getReceiveTimeoutMillis();
+            if (!complete && receiveTimeoutMillis > 0)
+            {
+                idleTimeout = shell.getSession().schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        idleTimedOut();
+                    }
+                }, receiveTimeoutMillis);
+            }
+        }
+
+        if (complete)
+        {
+            complete(executeReply);
+        }
+    }
+
+    private void idleReceived()
+    {
+        final ExecuteReply executeReply;
+        synchronized (this)
+        {
+            if (idleTimedOut)
+            {
+                return;
+            }
+
+            idle = true;
+            executeReply = reply;
+
+            if (idleTimeout != null)
+            {
+                idleTimeout.cancel(false);
+            }
+        }
+
+        // all outputs precede the idle status on IoPub
+        outputs.finish(null);
+
+        if (executeReply != null)
+        {
+            complete(executeReply);
+        }
+    }
+
+    private void idleTimedOut()
+    {
+        final ExecuteReply executeReply;
+        synchronized (this)
+        {
+            if (idle || idleTimedOut)
+            {
+                return;
+            }
+
+            idleTimedOut = true;
+            executeReply = reply;
+        }
+
+        ioPub.unsubscribe(getMsgId(), outputRouter);
+        outputs.finish(null);
+        complete(executeReply);
+    }
+
+    private synchronized void cancelIdleTimeout()
+    {
+        // so an execution that failed or was cancelled isn't reported with gaps later on
+        idleTimedOut = true;
+
+        if (idleTimeout != null)
+        {
+            idleTimeout.cancel(false);
+        }
+    }
+
+    private void complete(final ExecuteReply executeReply)
+    {
+        final Set<Gap> foundGaps = findGaps(executeReply);
+
+        if (!foundGaps.isEmpty())
+        {
+            LOGGER.warn("Execution with message ID: {} is missing messages: {}", getMsgId(), foundGaps);
+
+            for (final Gap gap : foundGaps)
+            {
+                shell.getSession().getMetrics().outputGapDetected(gap.name());
+            }
+        }
+
+        completionFuture.complete(executeReply);
+    }
+
+    private synchronized Set<Gap> findGaps(final ExecuteReply executeReply)
+    {
+        final Set<Gap> foundGaps = EnumSet.noneOf(Gap.class);
+
+        if (!busy)
+        {
+            foundGaps.add(Gap.MISSING_BUSY_STATUS);
+        }
+        // an aborted request never ran, and a silent one isn't broadcast
+        if (!executeInputReceived && executeReply.getStatus() != ExecuteReply.Status.ABORT
+            && !Boolean.TRUE.equals(request.getSilent()))
+        {
+            foundGaps.add(Gap.MISSING_EXECUTE_INPUT);
+        }
+        if (!errorReceived && executeReply.getStatus() == ExecuteReply.Status.ERROR)
+        {
+            foundGaps.add(Gap.MISSING_ERROR);
+        }
+        if (idleTimedOut)
+        {
+            foundGaps.add(Gap.MISSING_IDLE_STATUS);
+        }
+        if (isMismatched(inputExecutionCount, executeReply) || isMismatched(resultExecutionCount, executeReply))
+        {
+            foundGaps.add(Gap.EXECUTION_COUNT_MISMATCH);
+        }
+
+        gaps = Collections.unmodifiableSet(foundGaps);
+        return gaps;
+    }
+
+    private static boolean isMismatched(final Integer executionCount, final ExecuteReply executeReply)
+    {
+        return executionCount != null && executeReply.getExecutionCount() != null
+               && !executionCount.equals(executeReply.getExecutionCount());
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+import eu.openanalytics.japyter.model.ExtraBuffer;
+import eu.openanalytics.japyter.model.ExtraBuffer.Storage;
+
+/**
+ * Moves the large extra buffers of received messages to direct memory or mapped files.
+ */
+public class ExtraBufferAllocator
+{
+    public static final ExtraBufferAllocator HEAP = new ExtraBufferAllocator(Integer.MAX_VALUE,
+        Integer.MAX_VALUE, null);
+
+    private final int offHeapThresholdBytes;
+    private final int spillThresholdBytes;
+    private final File spillDirectory;
+
+    /**
+     * @param offHeapThresholdBytes the size from which buffers are moved to direct memory.
+     * @param spillThresholdBytes the size from which buffers are spilled to a file instead.
+     * @param spillDirectory where spill files are created, or null for the temporary directory.
+     */
+    public ExtraBufferAllocator(final int offHeapThresholdBytes,
+                                final int spillThresholdBytes,
+                                final File spillDirectory)
+    {
+        Validate.isTrue(offHeapThresholdBytes >= 0, "offHeapThresholdBytes must be 0 or a positive integer");
+        Validate.isTrue(spillThresholdBytes >= 0, "spillThresholdBytes must be 0 or a positive integer");
+
+        this.offHeapThresholdBytes = offHeapThresholdBytes;
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Moves the heap buffers of a list that reach a threshold off heap, in place.
+     */
+    void allocate(final List<ExtraBuffer> extraBuffers) throws IOException
+    {
+        for (int i = 0; i < extraBuffers.size(); i++)
+        {
+            final ExtraBuffer extraBuffer = extraBuffers.get(i);
+
+            if (extraBuffer.getStorage() != Storage.HEAP)
+            {
+                continue;
+            }
+
+            if (extraBuffer.size() >= spillThresholdBytes)
+            {
+                extraBuffers.set(i, extraBuffer.spillTo(spillDirectory));
+            }
+            else if (extraBuffer.size() >= offHeapThresholdBytes)
+            {
+                extraBuffers.set(i, extraBuffer.toDirect());
+            }
+        }
+    }
+}
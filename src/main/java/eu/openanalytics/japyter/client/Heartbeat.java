@@ -8,15 +8,21 @@
 
 package eu.openanalytics.japyter.client;
 
-import static eu.openanalytics.japyter.client.Heartbeat.State.DOWN;
-import static eu.openanalytics.japyter.client.Heartbeat.State.UNKNOWN;
-import static eu.openanalytics.japyter.client.Heartbeat.State.UP;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
 
+import eu.openanalytics.japyter.metrics.LatencyHistogram;
+
+/**
+ * Pings the kernel and assesses its liveness with a {@link PhiAccrualFailureDetector}, so the
+ * session can reconnect when the kernel becomes suspected.
+ */
 public class Heartbeat extends AbstractRunningChannel
 {
     private class HeartbeatPinger implements Runnable
@@ -29,6 +35,12 @@ public class Heartbeat extends AbstractRunningChannel
                 return;
             }
 
+            if (eventLoop != null)
+            {
+                eventLoop.execute(pingTask);
+                return;
+            }
+
             try
             {
                 ping();
@@ -43,17 +55,154 @@ public class Heartbeat extends AbstractRunningChannel
         }
     }
 
+    /**
+     * Pings without blocking, from the event loop shared by the session.
+     */
+    private final class HeartbeatHandler implements EventLoop.Handler
+    {
+        private String pendingPayload;
+        private long sentNanos;
+
+        private void ping()
+        {
+            if (pendingPayload != null)
+            {
+                // the previous ping is still waiting for its echo
+                return;
+            }
+
+            final String pingPayload = randomUUID().toString();
+            sentNanos = System.nanoTime();
+            getZmqSocket().send(pingPayload);
+            pendingPayload = pingPayload;
+        }
+
+        @Override
+        public void onReadable()
+        {
+            final String echoedPayload = getZmqSocket().recvStr();
+            final String pingPayload = pendingPayload;
+            pendingPayload = null;
+
+            if (pingPayload != null)
+            {
+                handleEcho(pingPayload, echoedPayload, System.nanoTime() - sentNanos);
+            }
+        }
+
+        @Override
+        public long getMillisUntilTimer()
+        {
+            if (pendingPayload == null)
+            {
+                return -1L;
+            }
+
+            final long deadlineNanos = sentNanos + MILLISECONDS.toNanos(pingTimeoutMillis);
+            return Math.max(0L, NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+        }
+
+        @Override
+        public void onTimer()
+        {
+            final String pingPayload = pendingPayload;
+            pendingPayload = null;
+
+            if (isRunning())
+            {
+                final Socket missedSocket = getZmqSocket();
+                eventLoop.replace(missedSocket, reconnect());
+            }
+
+            handleEcho(pingPayload, null, System.nanoTime() - sentNanos);
+        }
+
+        @Override
+        public void onUnregistered()
+        {
+            getLogger().info("Stopped");
+        }
+    }
+
     public enum State
     {
         UNKNOWN, UP, DOWN
     };
 
-    private final AtomicReference<State> stateRef = new AtomicReference<State>(UNKNOWN);
+    private final int pingTimeoutMillis;
+    private final PhiAccrualFailureDetector failureDetector;
+    private final LatencyHistogram roundTripTimes;
+    private final AtomicLong missedPingCount;
+    private volatile boolean echoReceived;
+    // only accessed by the thread that pings
+    private boolean kernelSuspected;
+    private final EventLoop eventLoop;
+    private final Runnable pingTask;
 
     public Heartbeat(final String address, final Session session, final int heartbeatPeriodMillis)
+    {
+        this(address, session, heartbeatPeriodMillis, PhiAccrualFailureDetector.DEFAULT_THRESHOLD,
+            PhiAccrualFailureDetector.DEFAULT_ACCEPTABLE_PAUSE_MILLIS);
+    }
+
+    /**
+     * @param phiThreshold the suspicion level above which the kernel is {@link State#DOWN}.
+     * @param acceptablePauseMillis how late an echo can be before suspicion rises quickly.
+     */
+    public Heartbeat(final String address,
+                     final Session session,
+                     final int heartbeatPeriodMillis,
+                     final double phiThreshold,
+                     final long acceptablePauseMillis)
     {
         super(address, session, heartbeatPeriodMillis > 0);
 
+        final int receiveTimeoutMillis = session.getReceiveTimeoutMillis();
+        // an echo is missed when the next ping is due, or earlier with a shorter receive timeout
+        pingTimeoutMillis = receiveTimeoutMillis > 0 ? Math.min(receiveTimeoutMillis, heartbeatPeriodMillis)
+                                                     : heartbeatPeriodMillis;
+        failureDetector = isRunning() ? new PhiAccrualFailureDetector(phiThreshold, heartbeatPeriodMillis,
+            acceptablePauseMillis, PhiAccrualFailureDetector.DEFAULT_MIN_STD_DEVIATION_MILLIS,
+            PhiAccrualFailureDetector.DEFAULT_MAX_SAMPLE_SIZE, nowMillis()) : null;
+        roundTripTimes = new LatencyHistogram();
+        missedPingCount = new AtomicLong();
+
+        eventLoop = isRunning() ? session.getEventLoop() : null;
+
+        if (eventLoop != null)
+        {
+            final HeartbeatHandler handler = new HeartbeatHandler();
+            eventLoop.register(getZmqSocket(), handler);
+
+            pingTask = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        handler.ping();
+                    }
+                    catch (final Throwable t)
+                    {
+                        if (isRunning())
+                        {
+                            getLogger().error("Heartbeat ping failed", t);
+                        }
+                    }
+                }
+            };
+        }
+        else
+        {
+            pingTask = null;
+
+            if (isRunning())
+            {
+                getZmqSocket().setReceiveTimeOut(pingTimeoutMillis);
+            }
+        }
+
         if (isRunning())
         {
             getLogger().info("Scheduling hearbeat pinger every {}ms", heartbeatPeriodMillis);
@@ -65,9 +214,60 @@ public class Heartbeat extends AbstractRunningChannel
         }
     }
 
+    @Override
+    public void stop()
+    {
+        super.stop();
+
+        if (eventLoop != null)
+        {
+            eventLoop.unregister(getZmqSocket());
+        }
+    }
+
+    /**
+     * @return the liveness of the kernel, {@link State#UNKNOWN} if the pinger isn't running.
+     */
     public State getState()
     {
-        return stateRef.get();
+        if (!isRunning() || failureDetector == null)
+        {
+            return State.UNKNOWN;
+        }
+
+        if (!failureDetector.isAvailable(nowMillis()))
+        {
+            return State.DOWN;
+        }
+
+        return echoReceived ? State.UP : State.UNKNOWN;
+    }
+
+    /**
+     * @return the suspicion level that the kernel is down, 0 if the pinger is disabled.
+     */
+    public double getPhi()
+    {
+        return failureDetector != null ? failureDetector.phi(nowMillis()) : 0.0;
+    }
+
+    /**
+     * @return the round-trip times of the pings that have been echoed back.
+     */
+    public LatencyHistogram getRoundTripTimes()
+    {
+        return roundTripTimes;
+    }
+
+    public long getMissedPingCount()
+    {
+        return missedPingCount.get();
+    }
+
+    @Override
+    protected void onConnectionLost()
+    {
+        // the socket is already replaced after each missed ping
     }
 
     @Override
@@ -79,26 +279,58 @@ public class Heartbeat extends AbstractRunningChannel
     private void ping()
     {
         final String pingPayload = randomUUID().toString();
+        final long sentNanos = System.nanoTime();
         getZmqSocket().send(pingPayload);
         final String echoedPayload = getZmqSocket().recvStr();
 
+        if (echoedPayload == null && isRunning())
+        {
+            reconnect().setReceiveTimeOut(pingTimeoutMillis);
+        }
+
+        handleEcho(pingPayload, echoedPayload, System.nanoTime() - sentNanos);
+    }
+
+    /**
+     * Feeds the failure detector with an echoed payload, null if none came back in time.
+     */
+    private void handleEcho(final String pingPayload, final String echoedPayload, final long roundTripNanos)
+    {
         getLogger().debug("Sent ping payload: {}, received back: {}", pingPayload, echoedPayload);
 
         if (echoedPayload == null)
         {
-            stateRef.set(DOWN);
+            missedPingCount.incrementAndGet();
+
+            final double phi = getPhi();
+            getLogger().warn("No heartbeat echo within {}ms, phi is {}", pingTimeoutMillis, phi);
 
-            throw new IllegalStateException("Kernel heartbeat failed");
+            if (!kernelSuspected && phi >= failureDetector.getThreshold() && isRunning())
+            {
+                kernelSuspected = true;
+                getSession().connectionLost(this);
+            }
         }
         else if (!pingPayload.equals(echoedPayload))
         {
-            stateRef.set(UNKNOWN);
-
             throw new IllegalArgumentException("Kernel hearbeat is inconsistent");
         }
         else
         {
-            stateRef.set(UP);
+            roundTripTimes.recordNanos(roundTripNanos);
+            failureDetector.heartbeat(nowMillis());
+            echoReceived = true;
+
+            if (kernelSuspected)
+            {
+                kernelSuspected = false;
+                getLogger().info("Kernel heartbeat is back, {} pings missed so far", missedPingCount.get());
+            }
         }
     }
+
+    private static long nowMillis()
+    {
+        return NANOSECONDS.toMillis(System.nanoTime());
+    }
 }
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.codec.digest.HmacUtils.getInitializedMac;
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import org.apache.commons.codec.digest.HmacAlgorithms;
+
+/**
+ * Computes and verifies hex encoded HMAC signatures of message frames. Each thread uses its own
+ * initialized {@link Mac}, cloned from a prototype so the provider lookup and key setup happen only
+ * once, and its own digest and hex buffers so verification doesn't allocate.
+ */
+public class HmacSigner
+{
+    private final class SigningState
+    {
+        private final Mac mac;
+        private final byte[] digest;
+        private final byte[] hex;
+
+        private SigningState()
+        {
+            mac = newMac();
+            digest = new byte[mac.getMacLength()];
+            hex = new byte[digest.length * 2];
+        }
+    }
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Protocol.ENCODING);
+
+    private final HmacAlgorithms hmacAlgorithm;
+    private final byte[] hmacKey;
+    private final Mac prototypeMac;
+    private final ThreadLocal<SigningState> signingStates;
+
+    public HmacSigner(final byte[] hmacKey, final HmacAlgorithms hmacAlgorithm)
+    {
+        this.hmacAlgorithm = notNull(hmacAlgorithm, "hmacAlgorithm can't be null");
+        this.hmacKey = notNull(hmacKey, "hmacKey can't be null").clone();
+
+        prototypeMac = getInitializedMac(hmacAlgorithm, this.hmacKey);
+
+        signingStates = new ThreadLocal<SigningState>()
+        {
+            @Override
+            protected SigningState initialValue()
+            {
+                return new SigningState();
+            }
+        };
+    }
+
+    private Mac newMac()
+    {
+        try
+        {
+            synchronized (prototypeMac)
+            {
+                return (Mac) prototypeMac.clone();
+            }
+        }
+        catch (final CloneNotSupportedException cnse)
+        {
+            return getInitializedMac(hmacAlgorithm, hmacKey);
+        }
+    }
+
+    /**
+     * @return a newly allocated hex encoded signature of the frames serialized back to back in the
+     *         provided buffer region, which is the same as the signature of these frames.
+     */
+    public byte[] sign(final byte[] buffer, final int offset, final int length)
+    {
+        final SigningState state = signingStates.get();
+        state.mac.update(buffer, offset, length);
+        computeHex(state);
+        return Arrays.copyOf(state.hex, state.hex.length);
+    }
+
+    /**
+     * Verifies in constant time that the provided hex encoded signature matches the provided
+     * frames.
+     */
+    public boolean verify(final byte[] signature, final List<byte[]> frames)
+    {
+        final SigningState state = computeHex(frames);
+        return constantTimeEquals(state.hex, signature);
+    }
+
+    private SigningState computeHex(final List<byte[]> frames)
+    {
+        final SigningState state = signingStates.get();
+
+        for (final byte[] frame : frames)
+        {
+            state.mac.update(frame);
+        }
+
+        computeHex(state);
+        return state;
+    }
+
+    private void computeHex(final SigningState state)
+    {
+        try
+        {
+            state.mac.doFinal(state.digest, 0);
+        }
+        catch (final ShortBufferException sbe)
+        {
+            throw new IllegalStateException("Digest buffer too small for: " + hmacAlgorithm, sbe);
+        }
+
+        for (int i = 0; i < state.digest.length; i++)
+        {
+            final int b = state.digest[i] & 0xFF;
+            state.hex[2 * i] = HEX_DIGITS[b >>> 4];
+            state.hex[2 * i + 1] = HEX_DIGITS[b & 0x0F];
+        }
+    }
+
+    private static boolean constantTimeEquals(final byte[] expected, final byte[] actual)
+    {
+        if (actual == null || actual.length != expected.length)
+        {
+            return false;
+        }
+
+        int result = 0;
+        for (int i = 0; i < expected.length; i++)
+        {
+            result |= expected[i] ^ actual[i];
+        }
+        return result == 0;
+    }
+}
@@ -8,42 +8,93 @@
 
 package eu.openanalytics.japyter.client;
 
-import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
-import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
-
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.lang3.Validate;
 import org.zeromq.ZMQ;
 
 import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.metrics.MetricsRegistry;
 import eu.openanalytics.japyter.model.Message;
 import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
 
 public class IoPub extends AbstractRunningChannel
 {
-    private class IoPubPoller implements Runnable
+    private final class IoPubHandler implements EventLoop.Handler
     {
         @Override
-        public void run()
+        public void onReadable() throws IOException, InterruptedException
+        {
+            pollAndDispatch();
+        }
+
+        @Override
+        public long getMillisUntilTimer()
+        {
+            return getMillisUntilStreamFlush();
+        }
+
+        @Override
+        public void onTimer() throws IOException
+        {
+            flushDueStreams();
+        }
+
+        @Override
+        public void onUnregistered()
+        {
+            flushPendingStreams();
+
+            getLogger().info("Stopped");
+        }
+    }
+
+    /**
+     * Verifies a message on the worker pool, then has the event loop route it in order.
+     */
+    private final class VerificationTask extends FutureTask<Message>
+    {
+        private VerificationTask(final List<byte[]> frames)
         {
-            while (isRunning())
+            super(new Callable<Message>()
             {
-                try
-                {
-                    pollAndRoute();
-                }
-                catch (final Throwable t)
+                @Override
+                public Message call() throws IOException
                 {
-                    if (isRunning())
-                    {
-                        getLogger().error("Polling and routing to subscriber failed", t);
-                    }
+                    return getSession().getProtocol().fromFrames(frames);
                 }
-            }
+            });
+        }
 
-            getLogger().info("Stopped");
+        @Override
+        protected void done()
+        {
+            if (drainScheduled.compareAndSet(false, true))
+            {
+                eventLoop.execute(drainVerifiedTask);
+            }
         }
     }
 
@@ -52,25 +103,118 @@ public class IoPub extends AbstractRunningChannel
         // marker interface
     }
 
+    /**
+     * Receives decoded broadcasts, shared by all listeners so they must not be modified.
+     */
     public interface BroadcastListener extends Listener
     {
         void handle(Broadcast b);
     }
 
+    /**
+     * Receives shared messages, which listeners that keep them after handling must retain.
+     */
     public interface MessageListener extends Listener
     {
         void handle(Message m);
     }
 
-    private final List<Listener> listeners;
+    private static final String ALL_TOPICS = "";
+    private static final int MAX_MESSAGES_IN_VERIFICATION = 1024;
+
+    private volatile EventLoop eventLoop;
+    private final AtomicBoolean topicsChanged;
+    private final Runnable updateTopicsTask;
+    // only accessed by the event loop, which owns the socket
+    private final Set<String> subscribedTopics;
+    private final List<MessageListener> messageListeners;
+    // listeners to the messages of a single request, by the message ID of that request
+    private final ConcurrentMap<String, MessageListener> parentListeners;
+    // parent message IDs whose listener is being handed buffered messages by the event loop
+    private final Set<String> replayingParents;
+    // set once all topics must be received whatever listeners are subscribed
+    private volatile boolean allTopicsRequired;
+    private volatile MessageRingBuffer earlyMessages;
+    private volatile StreamCoalescer streamCoalescer;
+    private final List<BroadcastListener> broadcastListeners;
+    private final Map<BroadcastType, List<BroadcastListener>> typedBroadcastListeners;
+    // the MIME types wanted by the listeners to all broadcasts, and by those to each type
+    private MimeFilter broadcastMimeFilter;
+    private final Map<BroadcastType, MimeFilter> typedMimeFilters;
+    // replaced as a whole when listeners change, as the event loop reads it without locking
+    private volatile Map<BroadcastType, MimeFilter> decodingMimeFilters;
+    private final Executor verificationPool;
+    // only accessed by the event loop
+    private final Queue<Future<Message>> verifiedMessages;
+    private final AtomicBoolean drainScheduled;
+    private final Runnable drainVerifiedTask;
 
     public IoPub(final String address, final Session session)
+    {
+        this(address, session, 0);
+    }
+
+    /**
+     * @param verificationThreads the threads verifying received messages, 0 to do it on receipt.
+     */
+    public IoPub(final String address, final Session session, final int verificationThreads)
     {
         super(address, session, false);
 
-        listeners = new CopyOnWriteArrayList<>();
+        Validate.isTrue(verificationThreads >= 0, "verificationThreads must be 0 or a positive integer");
+
+        messageListeners = new CopyOnWriteArrayList<>();
+        parentListeners = new ConcurrentHashMap<>();
+        replayingParents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        broadcastListeners = new CopyOnWriteArrayList<>();
 
-        getZmqSocket().subscribe(EMPTY_BYTE_ARRAY);
+        // all keys are present upfront so the map is never structurally modified after construction
+        typedBroadcastListeners = new EnumMap<>(BroadcastType.class);
+        for (final BroadcastType broadcastType : BroadcastType.values())
+        {
+            typedBroadcastListeners.put(broadcastType, new CopyOnWriteArrayList<BroadcastListener>());
+        }
+
+        broadcastMimeFilter = MimeFilter.NONE;
+        typedMimeFilters = new EnumMap<>(BroadcastType.class);
+        for (final BroadcastType broadcastType : BroadcastType.values())
+        {
+            typedMimeFilters.put(broadcastType, MimeFilter.NONE);
+        }
+        updateDecodingMimeFilters();
+
+        if (verificationThreads > 0)
+        {
+            verificationPool = session.newWorkerPool(verificationThreads);
+            verifiedMessages = new ArrayDeque<>();
+        }
+        else
+        {
+            verificationPool = null;
+            verifiedMessages = null;
+        }
+
+        drainScheduled = new AtomicBoolean(false);
+        drainVerifiedTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drainScheduled.set(false);
+                routeVerified();
+            }
+        };
+
+        topicsChanged = new AtomicBoolean(false);
+        updateTopicsTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                updateTopics();
+            }
+        };
+        subscribedTopics = new HashSet<>();
     }
 
     @Override
@@ -79,64 +223,573 @@ public class IoPub extends AbstractRunningChannel
         return ZMQ.SUB;
     }
 
+    /**
+     * Merges consecutive stream messages with the same name and parent until they reach
+     * <code>maxChars</code> or <code>windowMillis</code>. Must be called before subscribing.
+     */
+    public synchronized void enableStreamCoalescing(final int maxChars, final long windowMillis)
+    {
+        Validate.validState(!isRunning(), "Stream coalescing must be enabled before subscribing listeners");
+
+        streamCoalescer = new StreamCoalescer(maxChars, windowMillis, new StreamCoalescer.MessageSink()
+        {
+            @Override
+            public void accept(final Message message) throws IOException
+            {
+                routeToListeners(message);
+            }
+        });
+    }
+
+    /**
+     * Keeps recent messages, so listeners subscribing late to a request get its earlier ones.
+     * Must be called before subscribing, and after enabling stream coalescing.
+     */
+    public synchronized void enableEarlyMessageBuffer(final int capacity, final long retentionMillis)
+    {
+        Validate.validState(!isRunning(), "The early message buffer must be enabled before subscribing listeners");
+
+        earlyMessages = new MessageRingBuffer(capacity, retentionMillis);
+        allTopicsRequired = true;
+        listenersChanged();
+    }
+
+    /**
+     * @return the number of messages held by the early message buffer.
+     */
+    public int getEarlyMessageCount()
+    {
+        final MessageRingBuffer currentEarlyMessages = earlyMessages;
+        return currentEarlyMessages != null ? currentEarlyMessages.size(System.nanoTime()) : 0;
+    }
+
+    @Override
+    public void stop()
+    {
+        super.stop();
+
+        if (eventLoop != null)
+        {
+            eventLoop.unregister(getZmqSocket());
+        }
+    }
+
+    @Override
+    protected void onConnectionLost()
+    {
+        final EventLoop currentEventLoop = eventLoop;
+
+        if (currentEventLoop == null)
+        {
+            // nothing is subscribed yet and ZeroMQ reconnects the idle socket by itself
+            return;
+        }
+
+        reconnectOnEventLoop(currentEventLoop, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // the new socket has no subscriptions yet
+                subscribedTopics.clear();
+                topicsChanged.set(true);
+                updateTopics();
+            }
+        });
+    }
+
+    /**
+     * Subscribes a listener to all broadcasts.
+     */
     public synchronized void subscribe(final BroadcastListener broadcastListener)
     {
-        doSubscribe(broadcastListener);
+        subscribe(broadcastListener, MimeFilter.ALL);
+    }
+
+    /**
+     * Subscribes a listener to all broadcasts, decoding only the MIME types accepted by the filter.
+     */
+    public synchronized void subscribe(final BroadcastListener broadcastListener, final MimeFilter mimeFilter)
+    {
+        Validate.notNull(mimeFilter, "mimeFilter can't be null");
+
+        broadcastListeners.add(Validate.notNull(broadcastListener, "broadcastListener can't be null"));
+        broadcastMimeFilter = broadcastMimeFilter.union(mimeFilter);
+        updateDecodingMimeFilters();
+        listenersChanged();
+    }
+
+    /**
+     * Subscribes a listener to broadcasts of a single type, not decoding the others for it.
+     */
+    public synchronized void subscribe(final BroadcastType broadcastType, final BroadcastListener broadcastListener)
+    {
+        subscribe(broadcastType, broadcastListener, MimeFilter.ALL);
+    }
+
+    /**
+     * Subscribes a listener to broadcasts of a single type, with a MIME filter.
+     */
+    public synchronized void subscribe(final BroadcastType broadcastType,
+                                       final BroadcastListener broadcastListener,
+                                       final MimeFilter mimeFilter)
+    {
+        Validate.notNull(broadcastType, "broadcastType can't be null");
+        Validate.notNull(mimeFilter, "mimeFilter can't be null");
+
+        typedBroadcastListeners.get(broadcastType).add(
+            Validate.notNull(broadcastListener, "broadcastListener can't be null"));
+        typedMimeFilters.put(broadcastType, typedMimeFilters.get(broadcastType).union(mimeFilter));
+        updateDecodingMimeFilters();
+        listenersChanged();
     }
 
     public synchronized void subscribe(final MessageListener messageListener)
     {
-        doSubscribe(messageListener);
+        messageListeners.add(Validate.notNull(messageListener, "messageListener can't be null"));
+        listenersChanged();
+    }
+
+    /**
+     * Subscribes a listener to the messages of a single request, until its idle status.
+     *
+     * @throws IllegalStateException if a listener is already subscribed to that request.
+     */
+    public synchronized void subscribe(final String parentMsgId, final MessageListener messageListener)
+    {
+        Validate.notBlank(parentMsgId, "parentMsgId can't be blank");
+        Validate.notNull(messageListener, "messageListener can't be null");
+
+        // subscriptions are only added while holding the lock, so the check holds until the put
+        Validate.validState(!parentListeners.containsKey(parentMsgId),
+            "A listener is already subscribed to parent message ID: %s", parentMsgId);
+
+        if (earlyMessages == null)
+        {
+            parentListeners.put(parentMsgId, messageListener);
+        }
+        else
+        {
+            // received messages are held back until the buffered ones have been replayed
+            replayingParents.add(parentMsgId);
+            parentListeners.put(parentMsgId, messageListener);
+            eventLoop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    replayEarlyMessages(parentMsgId, messageListener);
+                }
+            });
+        }
+
+        if (!allTopicsRequired)
+        {
+            allTopicsRequired = true;
+            listenersChanged();
+        }
+    }
+
+    /**
+     * Unsubscribes a listener to the messages of a single request before its subscription expires.
+     */
+    public void unsubscribe(final String parentMsgId, final MessageListener messageListener)
+    {
+        Validate.notNull(parentMsgId, "parentMsgId can't be null");
+        Validate.notNull(messageListener, "messageListener can't be null");
+
+        parentListeners.remove(parentMsgId, messageListener);
+    }
+
+    public int getParentListenerCount()
+    {
+        return parentListeners.size();
     }
 
-    private synchronized void doSubscribe(final Listener listener)
+    /**
+     * Unsubscribes a message listener, leaving the socket subscribed to its topics.
+     */
+    public void unsubscribe(final MessageListener messageListener)
     {
-        listeners.add(listener);
+        messageListeners.remove(Validate.notNull(messageListener, "messageListener can't be null"));
+    }
 
-        if (isRunning())
+    private void updateDecodingMimeFilters()
+    {
+        final Map<BroadcastType, MimeFilter> newDecodingMimeFilters = new EnumMap<>(BroadcastType.class);
+
+        for (final Entry<BroadcastType, MimeFilter> typedMimeFilter : typedMimeFilters.entrySet())
+        {
+            newDecodingMimeFilters.put(typedMimeFilter.getKey(), broadcastMimeFilter.union(typedMimeFilter.getValue()));
+        }
+
+        decodingMimeFilters = newDecodingMimeFilters;
+    }
+
+    private void listenersChanged()
+    {
+        topicsChanged.set(true);
+
+        if (!isRunning())
+        {
+            start();
+
+            eventLoop = getSession().startEventLoop(this);
+            eventLoop.register(getZmqSocket(), new IoPubHandler());
+        }
+
+        eventLoop.execute(updateTopicsTask);
+    }
+
+    /**
+     * Subscribes the socket to the topics the listeners need, all of them for message listeners.
+     */
+    private void updateTopics()
+    {
+        if (!topicsChanged.compareAndSet(true, false))
         {
             return;
         }
 
-        start();
+        final Set<String> topics = getRequiredTopics();
+
+        // subscribe before unsubscribing so no wanted message is missed in between
+        for (final String topic : topics)
+        {
+            if (subscribedTopics.add(topic))
+            {
+                getZmqSocket().subscribe(topic.getBytes(Protocol.ENCODING));
+            }
+        }
+
+        for (final Iterator<String> i = subscribedTopics.iterator(); i.hasNext();)
+        {
+            final String topic = i.next();
+            if (!topics.contains(topic))
+            {
+                getZmqSocket().unsubscribe(topic.getBytes(Protocol.ENCODING));
+                i.remove();
+            }
+        }
 
-        getSession().execute(new IoPubPoller());
+        getLogger().info("Subscribed to topics: {}", subscribedTopics);
+    }
+
+    private Set<String> getRequiredTopics()
+    {
+        if (!messageListeners.isEmpty() || !broadcastListeners.isEmpty() || allTopicsRequired)
+        {
+            return Collections.singleton(ALL_TOPICS);
+        }
+
+        final Set<String> topics = new HashSet<>();
+
+        for (final Entry<BroadcastType, List<BroadcastListener>> typedListeners : typedBroadcastListeners.entrySet())
+        {
+            if (!typedListeners.getValue().isEmpty())
+            {
+                topics.addAll(typedListeners.getKey().getTopicPrefixes());
+            }
+        }
+
+        if (!topics.isEmpty())
+        {
+            // messages published without any topic start with the delimiter
+            topics.add(Protocol.DELIMITER);
+        }
+
+        return topics;
+    }
+
+    private void pollAndDispatch() throws IOException, InterruptedException
+    {
+        if (verificationPool == null)
+        {
+            pollAndRoute();
+        }
+        else
+        {
+            pollAndVerify();
+        }
     }
 
     private void pollAndRoute() throws IOException
     {
-        final Message maybeMessage = getSession().poll(getZmqSocket());
+        final Message maybeMessage = getSession().poll(this);
 
         if (maybeMessage == null)
         {
             return;
         }
 
-        for (final Listener listener : listeners)
+        route(maybeMessage);
+    }
+
+    private void pollAndVerify() throws IOException, InterruptedException
+    {
+        final List<byte[]> maybeFrames = getSession().pollFrames(this);
+
+        if (maybeFrames == null)
+        {
+            return;
+        }
+
+        if (verifiedMessages.size() >= MAX_MESSAGES_IN_VERIFICATION)
         {
-            route(maybeMessage, listener);
+            // waits when verification can't keep up, which pushes back on the kernel
+            routeVerified(verifiedMessages.poll());
         }
+
+        final VerificationTask verificationTask = new VerificationTask(maybeFrames);
+        verifiedMessages.add(verificationTask);
+        verificationPool.execute(verificationTask);
     }
 
-    private void route(final Message message, final Listener listener)
+    private void routeVerified()
     {
-        if (listener instanceof MessageListener)
+        Future<Message> verifiedMessage;
+
+        while ((verifiedMessage = verifiedMessages.peek()) != null && verifiedMessage.isDone())
         {
-            ((MessageListener) listener).handle(message);
+            verifiedMessages.poll();
+
+            try
+            {
+                routeVerified(verifiedMessage);
+            }
+            catch (final Throwable t)
+            {
+                getLogger().error("Routing to subscriber failed", t);
+            }
         }
-        else
+    }
+
+    private void routeVerified(final Future<Message> verifiedMessage) throws IOException, InterruptedException
+    {
+        try
+        {
+            route(verifiedMessage.get());
+        }
+        catch (final ExecutionException ee)
+        {
+            getLogger().error("Dropping message that failed decoding or verification", ee.getCause());
+        }
+        catch (final CancellationException ce)
+        {
+            getLogger().debug("Dropping message whose verification has been cancelled");
+        }
+    }
+
+    /**
+     * Routes a received message, from the event loop or from benchmarks.
+     */
+    void route(final Message message) throws IOException
+    {
+        try
+        {
+            if (streamCoalescer != null)
+            {
+                streamCoalescer.offer(message);
+            }
+            else
+            {
+                routeToListeners(message);
+            }
+        }
+        catch (final Message.DecodingException de)
+        {
+            throw de.toIOException();
+        }
+    }
+
+    private long getMillisUntilStreamFlush()
+    {
+        return streamCoalescer != null ? streamCoalescer.getMillisUntilFlush() : -1L;
+    }
+
+    private void flushDueStreams() throws IOException
+    {
+        if (streamCoalescer != null)
+        {
+            streamCoalescer.flushIfDue();
+        }
+    }
+
+    private void flushPendingStreams()
+    {
+        if (streamCoalescer == null)
+        {
+            return;
+        }
+
+        try
+        {
+            streamCoalescer.flush();
+        }
+        catch (final IOException | RuntimeException e)
         {
-            final Class<? extends Broadcast> broadcastClass = BroadcastType.classFromValue(message.getHeader()
-                .getMsgType());
+            getLogger().error("Failed to flush pending stream output", e);
+        }
+    }
+
+    /**
+     * Dispatches a message, then releases the reference held while doing so.
+     */
+    private void routeToListeners(final Message message) throws IOException
+    {
+        try
+        {
+            final MessageRingBuffer currentEarlyMessages = earlyMessages;
+            if (currentEarlyMessages != null)
+            {
+                currentEarlyMessages.add(message, System.nanoTime());
+            }
+
+            final MetricsRegistry metrics = getSession().getMetrics();
+
+            if (metrics == MetricsRegistry.NOOP)
+            {
+                dispatchToListeners(message);
+                return;
+            }
+
+            final long startNanos = System.nanoTime();
+            try
+            {
+                dispatchToListeners(message);
+            }
+            finally
+            {
+                metrics.listenersDispatched(Session.getChannelName(this), message.peekMsgType(),
+                    System.nanoTime() - startNanos);
+            }
+        }
+        finally
+        {
+            message.release();
+        }
+    }
+
+    private void dispatchToParentListener(final Message message) throws IOException
+    {
+        if (parentListeners.isEmpty())
+        {
+            return;
+        }
+
+        final String parentMsgId = message.peekParentMsgId();
+        final MessageListener parentListener = parentMsgId != null ? parentListeners.get(parentMsgId) : null;
+
+        // a listener still replaying will find the message in the early message buffer
+        if (parentListener == null || replayingParents.contains(parentMsgId))
+        {
+            return;
+        }
+
+        handleParentMessage(parentMsgId, parentListener, message);
+    }
+
+    /**
+     * Replays the buffered messages of a request, from the event loop.
+     */
+    private void replayEarlyMessages(final String parentMsgId, final MessageListener parentListener)
+    {
+        List<Message> messages = Collections.emptyList();
+        try
+        {
+            messages = earlyMessages.getByParentMsgId(parentMsgId, System.nanoTime());
+            for (final Message message : messages)
+            {
+                if (parentListeners.get(parentMsgId) != parentListener
+                    || !handleParentMessage(parentMsgId, parentListener, message))
+                {
+                    break;
+                }
+            }
+        }
+        catch (final Throwable t)
+        {
+            getLogger().error("Replaying early messages failed for parent message ID: {}", parentMsgId, t);
+        }
+        finally
+        {
+            replayingParents.remove(parentMsgId);
 
-            if (getLogger().isDebugEnabled())
+            for (final Message message : messages)
             {
-                getLogger().debug("Selected broadcast class: {} for message: {}", broadcastClass, message);
+                message.release();
             }
+        }
+    }
+
+    /**
+     * @return false if the message was the idle status that ends the subscription.
+     */
+    private boolean handleParentMessage(final String parentMsgId,
+                                        final MessageListener parentListener,
+                                        final Message message) throws IOException
+    {
+        // expires before handing the idle status, so the listener sees itself unsubscribed
+        final boolean idle = BroadcastType.fromValue(message.peekMsgType()) == BroadcastType.STATUS
+                             && getSession().readContent(message, Status.class).getExecutionState() == ExecutionState.IDLE;
+        if (idle)
+        {
+            parentListeners.remove(parentMsgId, parentListener);
+        }
+
+        parentListener.handle(message);
+        return !idle;
+    }
+
+    /**
+     * Dispatches a message, decoding its content at most once and only if needed.
+     */
+    private void dispatchToListeners(final Message message) throws IOException
+    {
+        for (final MessageListener messageListener : messageListeners)
+        {
+            messageListener.handle(message);
+        }
+
+        dispatchToParentListener(message);
 
-            final Broadcast broadcast = JSON_OBJECT_MAPPER.convertValue(message.getContent(), broadcastClass);
+        final BroadcastType broadcastType = BroadcastType.fromValue(message.peekMsgType());
 
-            ((BroadcastListener) listener).handle(broadcast);
+        List<BroadcastListener> typedListeners = Collections.emptyList();
+        // fallback to generic Broadcast class for unsupported types
+        Class<? extends Broadcast> broadcastClass = Broadcast.class;
+        MimeFilter mimeFilter = MimeFilter.ALL;
+
+        if (broadcastType != null)
+        {
+            typedListeners = typedBroadcastListeners.get(broadcastType);
+            broadcastClass = broadcastType.getBroadcastClass();
+            if (broadcastType.hasMimeBundle())
+            {
+                mimeFilter = decodingMimeFilters.get(broadcastType);
+            }
+        }
+
+        if (broadcastListeners.isEmpty() && typedListeners.isEmpty())
+        {
+            return;
+        }
+
+        if (getLogger().isDebugEnabled())
+        {
+            getLogger().debug("Selected broadcast class: {} for message: {}", broadcastClass, message);
+        }
+
+        final Broadcast broadcast = getSession().readContent(message, broadcastClass, mimeFilter);
+
+        for (final BroadcastListener broadcastListener : broadcastListeners)
+        {
+            broadcastListener.handle(broadcast);
+        }
+
+        for (final BroadcastListener typedListener : typedListeners)
+        {
+            typedListener.handle(broadcast);
         }
     }
 }
@@ -0,0 +1,558 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.metrics.MetricsRegistry;
+
+/**
+ * The ZeroMQ context, executors and schedulers that {@link Session}s run on, which can be shared.
+ * Executors supplied by the caller are not shut down when the runtime is closed.
+ */
+public final class JapyterRuntime implements Closeable
+{
+    public static final class Builder
+    {
+        private int zmqIoThreads = 1;
+        private int eventLoops = 0;
+        private boolean virtualThreads = false;
+        private ExecutorService channelExecutor;
+        private ScheduledExecutorService scheduler;
+        private ExecutorService workerExecutor;
+        private MetricsRegistry metrics = MetricsRegistry.NOOP;
+
+        private Builder()
+        {
+            // use JapyterRuntime.builder()
+        }
+
+        /**
+         * Set the number of I/O threads available to the shared ZeroMQ context. 1 is the minimum.
+         * Defaults to 1.
+         */
+        public Builder withZmqIoThreads(final int zmqIoThreads)
+        {
+            this.zmqIoThreads = zmqIoThreads;
+            return this;
+        }
+
+        /**
+         * Set the number of event loop threads serving the sockets of all sessions, 0 for a loop
+         * per channel. Listeners and callbacks then run on shared loops and must not block.
+         * Defaults to 0.
+         */
+        public Builder withEventLoops(final int eventLoops)
+        {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * Run receive loops, periodic tasks and Stdin handlers on virtual threads, with Java 21 or
+         * later. Slower than platform threads unless combined with event loops. Defaults to false.
+         */
+        public Builder withVirtualThreads(final boolean virtualThreads)
+        {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * The executor that runs the channel receive loops. Defaults to an owned cached pool.
+         */
+        public Builder withChannelExecutor(final ExecutorService channelExecutor)
+        {
+            this.channelExecutor = channelExecutor;
+            return this;
+        }
+
+        /**
+         * The scheduler for periodic tasks, which needs a thread per session when pings block.
+         * Defaults to an owned scheduler sized accordingly.
+         */
+        public Builder withScheduler(final ScheduledExecutorService scheduler)
+        {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * The executor for short-lived tasks, like signature checks. Defaults to an owned pool.
+         */
+        public Builder withWorkerExecutor(final ExecutorService workerExecutor)
+        {
+            this.workerExecutor = workerExecutor;
+            return this;
+        }
+
+        /**
+         * The registry that receives the measurements of all sessions. Defaults to no measuring.
+         */
+        public Builder withMetrics(final MetricsRegistry metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public JapyterRuntime build()
+        {
+            return new JapyterRuntime(zmqIoThreads, eventLoops, virtualThreads, channelExecutor, scheduler,
+                workerExecutor, metrics);
+        }
+    }
+
+    /**
+     * A snapshot of the resources used by the sessions of a runtime, with an estimated heap usage.
+     */
+    public static final class Footprint
+    {
+        private final int sessionCount;
+        private final int socketCount;
+        private final int channelTaskCount;
+        private final int runtimeThreadCount;
+        private final int zmqIoThreadCount;
+        private final long heapUsedBytes;
+        private final long sessionHeapBytes;
+
+        private Footprint(final JapyterRuntime runtime)
+        {
+            int sockets = 0, channelTasks = 0;
+
+            for (final Session session : runtime.sessions)
+            {
+                sockets += session.getSocketCount();
+                channelTasks += session.getChannelTaskCount();
+            }
+
+            this.sessionCount = runtime.sessions.size();
+            this.socketCount = sockets;
+            this.channelTaskCount = channelTasks;
+            this.runtimeThreadCount = runtime.eventLoopThreads.size() + getPoolSize(runtime.channelExecutor)
+                                      + getPoolSize(runtime.scheduler) + getPoolSize(runtime.workerExecutor);
+            this.zmqIoThreadCount = runtime.zmqContext.getIoThreads();
+            this.heapUsedBytes = getHeapUsedBytes();
+            this.sessionHeapBytes = Math.max(0L, heapUsedBytes - runtime.initialHeapUsedBytes);
+        }
+
+        private static int getPoolSize(final ExecutorService executor)
+        {
+            return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : 0;
+        }
+
+        public int getSessionCount()
+        {
+            return sessionCount;
+        }
+
+        /**
+         * @return the number of ZeroMQ sockets opened by all sessions, including internal ones.
+         */
+        public int getSocketCount()
+        {
+            return socketCount;
+        }
+
+        /**
+         * @return the number of channel receive loops running or waiting to run.
+         */
+        public int getChannelTaskCount()
+        {
+            return channelTaskCount;
+        }
+
+        /**
+         * @return the number of event loop, executor and ZeroMQ I/O threads.
+         */
+        public int getThreadCount()
+        {
+            return runtimeThreadCount + zmqIoThreadCount;
+        }
+
+        public long getHeapUsedBytes()
+        {
+            return heapUsedBytes;
+        }
+
+        public double getSocketsPerSession()
+        {
+            return perSession(socketCount);
+        }
+
+        public double getThreadsPerSession()
+        {
+            return perSession(getThreadCount());
+        }
+
+        /**
+         * @return the estimated heap usage per session, in bytes.
+         */
+        public double getHeapBytesPerSession()
+        {
+            return perSession(sessionHeapBytes);
+        }
+
+        private double perSession(final long total)
+        {
+            return sessionCount > 0 ? (double) total / sessionCount : 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ToStringBuilder.reflectionToString(this);
+        }
+    }
+
+    /**
+     * Runs a periodic task on a virtual thread, skipping runs while the previous one is not done.
+     */
+    private final class VirtualThreadHandOff implements Runnable
+    {
+        private final Runnable task;
+        private final AtomicBoolean running;
+
+        private VirtualThreadHandOff(final Runnable task)
+        {
+            this.task = task;
+            running = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void run()
+        {
+            if (!running.compareAndSet(false, true))
+            {
+                return;
+            }
+
+            try
+            {
+                virtualThreadExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            task.run();
+                        }
+                        finally
+                        {
+                            running.set(false);
+                        }
+                    }
+                });
+            }
+            catch (final RejectedExecutionException ree)
+            {
+                running.set(false);
+            }
+        }
+    }
+
+    private static class RuntimeThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread t = new Thread(r);
+            t.setName((Japyter.class.getSimpleName() + "-" + r.getClass().getSimpleName() + "-" + count.incrementAndGet()).toLowerCase());
+            return t;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JapyterRuntime.class);
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000L;
+
+    private final ZContext zmqContext;
+    private final List<EventLoop> eventLoops;
+    private final List<Thread> eventLoopThreads;
+    private final ExecutorService virtualThreadExecutor;
+    private final ExecutorService channelExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workerExecutor;
+    private final boolean ownsChannelExecutor, ownsScheduler, ownsWorkerExecutor;
+    private final Set<Session> sessions;
+    private final MetricsRegistry metrics;
+    private final long initialHeapUsedBytes;
+
+    private JapyterRuntime(final int zmqIoThreads,
+                           final int eventLoopCount,
+                           final boolean virtualThreads,
+                           final ExecutorService channelExecutor,
+                           final ScheduledExecutorService scheduler,
+                           final ExecutorService workerExecutor,
+                           final MetricsRegistry metrics)
+    {
+        Validate.isTrue(zmqIoThreads >= 1, "zmqIoThreads must be a positive integer");
+        zmqContext = new ZContext(zmqIoThreads);
+        // eagerly create the context, which sessions shadow concurrently
+        zmqContext.getContext();
+
+        if (virtualThreads && VirtualThreads.isAvailable())
+        {
+            virtualThreadExecutor = VirtualThreads.newThreadPerTaskExecutor("japyter-virtual-");
+        }
+        else
+        {
+            if (virtualThreads)
+            {
+                LOGGER.warn("Virtual threads require Java 21 or later, using platform threads on Java {}",
+                    System.getProperty("java.version"));
+            }
+            virtualThreadExecutor = null;
+        }
+
+        // the virtual thread executor is shut down on its own
+        ownsChannelExecutor = channelExecutor == null && virtualThreadExecutor == null;
+        if (channelExecutor != null)
+        {
+            this.channelExecutor = channelExecutor;
+        }
+        else if (virtualThreadExecutor != null)
+        {
+            this.channelExecutor = virtualThreadExecutor;
+        }
+        else
+        {
+            this.channelExecutor = Executors.newCachedThreadPool(new RuntimeThreadFactory());
+        }
+
+        ownsScheduler = scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newScheduledThreadPool(1, new RuntimeThreadFactory())
+                                      : scheduler;
+
+        ownsWorkerExecutor = workerExecutor == null;
+        this.workerExecutor = ownsWorkerExecutor ? Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new RuntimeThreadFactory()) : workerExecutor;
+
+        Validate.isTrue(eventLoopCount >= 0, "eventLoops must be 0 or a positive integer");
+        eventLoops = new ArrayList<>();
+        eventLoopThreads = new ArrayList<>();
+        final ThreadFactory eventLoopThreadFactory = new RuntimeThreadFactory();
+        for (int i = 0; i < eventLoopCount; i++)
+        {
+            final EventLoop eventLoop = new EventLoop(ZContext.shadow(zmqContext), "shared-" + i, false);
+            final Thread eventLoopThread = eventLoopThreadFactory.newThread(eventLoop);
+            eventLoopThread.start();
+
+            eventLoops.add(eventLoop);
+            eventLoopThreads.add(eventLoopThread);
+        }
+
+        sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+        this.metrics = Validate.notNull(metrics, "metrics can't be null");
+        initialHeapUsedBytes = getHeapUsedBytes();
+    }
+
+    /**
+     * Creates a new {@link Builder} for configuring a runtime that can be shared by many clients.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    private static long getHeapUsedBytes()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    ZContext getZmqContext()
+    {
+        return zmqContext;
+    }
+
+    ExecutorService getChannelExecutor()
+    {
+        return channelExecutor;
+    }
+
+    ExecutorService getWorkerExecutor()
+    {
+        return workerExecutor;
+    }
+
+    /**
+     * @return the event loop serving the fewest sessions, or null without event loops.
+     */
+    EventLoop assignEventLoop()
+    {
+        EventLoop selected = null;
+
+        synchronized (eventLoops)
+        {
+            for (final EventLoop eventLoop : eventLoops)
+            {
+                if (selected == null || eventLoop.getAssignedSessionCount() < selected.getAssignedSessionCount())
+                {
+                    selected = eventLoop;
+                }
+            }
+
+            if (selected != null)
+            {
+                selected.assign();
+            }
+        }
+
+        return selected;
+    }
+
+    public MetricsRegistry getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return true if blocking tasks of this runtime run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads()
+    {
+        return virtualThreadExecutor != null;
+    }
+
+    /**
+     * Schedules a periodic task, each run on a virtual thread when using them.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long delayMillis)
+    {
+        final Runnable scheduledTask = virtualThreadExecutor != null ? new VirtualThreadHandOff(task) : task;
+        return scheduler.scheduleWithFixedDelay(scheduledTask, 0L, delayMillis, MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task that runs once, after a delay, like {@link #scheduleWithFixedDelay}.
+     */
+    ScheduledFuture<?> schedule(final Runnable task, final long delayMillis)
+    {
+        final Runnable scheduledTask = virtualThreadExecutor != null ? new VirtualThreadHandOff(task) : task;
+        return scheduler.schedule(scheduledTask, delayMillis, MILLISECONDS);
+    }
+
+    void register(final Session session)
+    {
+        sessions.add(session);
+        resizeScheduler();
+    }
+
+    void unregister(final Session session)
+    {
+        sessions.remove(session);
+        resizeScheduler();
+    }
+
+    /**
+     * Gives the owned scheduler a thread per session when heartbeat pings block.
+     */
+    private synchronized void resizeScheduler()
+    {
+        if (ownsScheduler && eventLoops.isEmpty() && virtualThreadExecutor == null)
+        {
+            ((ScheduledThreadPoolExecutor) scheduler).setCorePoolSize(sessions.size() + 1);
+        }
+    }
+
+    public Footprint getFootprint()
+    {
+        return new Footprint(this);
+    }
+
+    /**
+     * Closes the remaining sessions, then shuts down the resources this runtime owns.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for (final Session session : sessions)
+        {
+            LOGGER.warn("Closing session still open on runtime shutdown: {}", session);
+            session.close();
+        }
+
+        for (final EventLoop eventLoop : eventLoops)
+        {
+            eventLoop.close();
+        }
+        for (final Thread eventLoopThread : eventLoopThreads)
+        {
+            try
+            {
+                eventLoopThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+            }
+            catch (final InterruptedException ie)
+            {
+                // Restore the interrupted status
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        shutdownOwnedExecutor(channelExecutor, ownsChannelExecutor);
+        shutdownOwnedExecutor(virtualThreadExecutor, virtualThreadExecutor != null);
+        shutdownOwnedExecutor(scheduler, ownsScheduler);
+        shutdownOwnedExecutor(workerExecutor, ownsWorkerExecutor);
+
+        zmqContext.destroy();
+
+        LOGGER.info("Runtime terminated");
+    }
+
+    private static void shutdownOwnedExecutor(final ExecutorService es, final boolean owned)
+    {
+        if (!owned)
+        {
+            return;
+        }
+
+        try
+        {
+            es.shutdown();
+
+            if (!es.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, MILLISECONDS))
+            {
+                final List<Runnable> dumpedRunnables = es.shutdownNow();
+                LOGGER.error("Shutdown of {} timed-out, dumped runnables: {}", es, dumpedRunnables);
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            // Restore the interrupted status
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Runs tasks on a shared executor, at most a given number of them at the same time, so a session
+ * can't monopolize the workers of a {@link JapyterRuntime}. Tasks beyond that limit are queued and
+ * started as running ones complete.
+ */
+final class LimitedExecutor implements Executor
+{
+    private final Executor delegate;
+    private final int maxConcurrency;
+    private final Queue<Runnable> queue;
+    private int running;
+    private boolean shutdown;
+
+    LimitedExecutor(final Executor delegate, final int maxConcurrency)
+    {
+        Validate.isTrue(maxConcurrency >= 1, "maxConcurrency must be a positive integer");
+
+        this.delegate = Validate.notNull(delegate, "delegate can't be null");
+        this.maxConcurrency = maxConcurrency;
+        queue = new ArrayDeque<>();
+    }
+
+    @Override
+    public void execute(final Runnable task)
+    {
+        Validate.notNull(task, "task can't be null");
+
+        synchronized (queue)
+        {
+            if (shutdown)
+            {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+
+            if (running >= maxConcurrency)
+            {
+                queue.add(task);
+                return;
+            }
+
+            running++;
+        }
+
+        start(task);
+    }
+
+    /**
+     * Discards queued tasks, cancelling those that are futures so nothing waits on them, and
+     * rejects new ones; running tasks are left to complete.
+     */
+    void shutdown()
+    {
+        synchronized (queue)
+        {
+            shutdown = true;
+
+            for (final Runnable task : queue)
+            {
+                if (task instanceof Future)
+                {
+                    ((Future<?>) task).cancel(false);
+                }
+            }
+            queue.clear();
+        }
+    }
+
+    private void start(final Runnable task)
+    {
+        try
+        {
+            delegate.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runAndContinue(task);
+                }
+            });
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            synchronized (queue)
+            {
+                running--;
+            }
+            throw ree;
+        }
+    }
+
+    private void runAndContinue(final Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            final Runnable next;
+            synchronized (queue)
+            {
+                next = queue.poll();
+                if (next == null)
+                {
+                    running--;
+                }
+            }
+
+            if (next != null)
+            {
+                // keeps the slot of the completed task
+                start(next);
+            }
+        }
+    }
+}
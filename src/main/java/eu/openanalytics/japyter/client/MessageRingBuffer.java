@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+import eu.openanalytics.japyter.model.Message;
+
+/**
+ * Keeps the most recent messages, retained, for listeners that subscribe late.
+ */
+final class MessageRingBuffer
+{
+    private final Message[] messages;
+    private final long[] receivedNanos;
+    private final long retentionNanos;
+    // guarded by this
+    private int oldest;
+    private int size;
+
+    MessageRingBuffer(final int capacity, final long retentionMillis)
+    {
+        Validate.isTrue(capacity > 0, "capacity must be a positive integer");
+        Validate.isTrue(retentionMillis > 0L, "retentionMillis must be a positive integer");
+
+        messages = new Message[capacity];
+        receivedNanos = new long[capacity];
+        retentionNanos = MILLISECONDS.toNanos(retentionMillis);
+    }
+
+    synchronized void add(final Message message, final long nowNanos)
+    {
+        evictExpired(nowNanos);
+
+        final int index = (oldest + size) % messages.length;
+        if (size == messages.length)
+        {
+            messages[index].release();
+        }
+        messages[index] = message.retain();
+        receivedNanos[index] = nowNanos;
+
+        if (size < messages.length)
+        {
+            size++;
+        }
+        else
+        {
+            oldest = (oldest + 1) % messages.length;
+        }
+    }
+
+    /**
+     * @return the messages of a parent, oldest first, retained for the caller to release.
+     */
+    synchronized List<Message> getByParentMsgId(final String parentMsgId, final long nowNanos)
+    {
+        evictExpired(nowNanos);
+
+        final List<Message> matching = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+        {
+            final Message message = messages[(oldest + i) % messages.length];
+            if (parentMsgId.equals(message.peekParentMsgId()))
+            {
+                matching.add(message.retain());
+            }
+        }
+        return matching;
+    }
+
+    synchronized int size(final long nowNanos)
+    {
+        evictExpired(nowNanos);
+        return size;
+    }
+
+    private void evictExpired(final long nowNanos)
+    {
+        while (size > 0 && nowNanos - receivedNanos[oldest] > retentionNanos)
+        {
+            messages[oldest].release();
+            messages[oldest] = null;
+            oldest = (oldest + 1) % messages.length;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * The MIME types a consumer accepts from the <code>data</code> bundle of display data and execute
+ * results. Entries of other types are skipped while decoding, without ever being built, and
+ * accepted string entries of at least a threshold size are left undecoded as
+ * {@link eu.openanalytics.japyter.model.LazyMimeValue}s. Types can end with a <code>/*</code>
+ * wildcard, like <code>image/*</code>.
+ */
+public final class MimeFilter
+{
+    public static final MimeFilter ALL = new MimeFilter(true, Collections.<String> emptySet(), Integer.MAX_VALUE);
+    public static final MimeFilter NONE = new MimeFilter(false, Collections.<String> emptySet(), Integer.MAX_VALUE);
+
+    private static final String WILDCARD_SUBTYPE = "/*";
+
+    private final boolean acceptingAll;
+    private final Set<String> mimeTypes;
+    private final int lazyThresholdBytes;
+
+    private MimeFilter(final boolean acceptingAll, final Set<String> mimeTypes, final int lazyThresholdBytes)
+    {
+        this.acceptingAll = acceptingAll;
+        this.mimeTypes = mimeTypes;
+        this.lazyThresholdBytes = lazyThresholdBytes;
+    }
+
+    /**
+     * @return a filter that accepts the provided types, decoding all of them.
+     */
+    public static MimeFilter accepting(final String... mimeTypes)
+    {
+        Validate.noNullElements(mimeTypes, "mimeTypes can't be null or contain null elements");
+
+        return new MimeFilter(false, Collections.unmodifiableSet(new HashSet<>(Arrays.asList(mimeTypes))),
+            Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return a copy of this filter that leaves accepted string entries of at least
+     *         <code>lazyThresholdBytes</code> encoded bytes undecoded.
+     */
+    public MimeFilter withLazyThreshold(final int lazyThresholdBytes)
+    {
+        Validate.isTrue(lazyThresholdBytes >= 0, "lazyThresholdBytes must be 0 or a positive integer");
+
+        return new MimeFilter(acceptingAll, mimeTypes, lazyThresholdBytes);
+    }
+
+    /**
+     * @return a filter that accepts the types either filter accepts, for consumers sharing the same
+     *         decoded content, and only leaves entries undecoded when both filters would.
+     */
+    public MimeFilter union(final MimeFilter other)
+    {
+        Validate.notNull(other, "other can't be null");
+
+        final Set<String> unionTypes = new HashSet<>(mimeTypes);
+        unionTypes.addAll(other.mimeTypes);
+
+        return new MimeFilter(acceptingAll || other.acceptingAll, Collections.unmodifiableSet(unionTypes),
+            Math.max(lazyThresholdBytes, other.lazyThresholdBytes));
+    }
+
+    public boolean accepts(final String mimeType)
+    {
+        if (acceptingAll || mimeTypes.contains(mimeType))
+        {
+            return true;
+        }
+
+        final int slash = mimeType.indexOf('/');
+        return slash > 0 && mimeTypes.contains(mimeType.substring(0, slash) + WILDCARD_SUBTYPE);
+    }
+
+    /**
+     * @return true if this filter neither skips nor leaves undecoded any entry.
+     */
+    public boolean isPassThrough()
+    {
+        return acceptingAll && lazyThresholdBytes == Integer.MAX_VALUE;
+    }
+
+    public int getLazyThresholdBytes()
+    {
+        return lazyThresholdBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MimeFilter [mimeTypes=" + (acceptingAll ? "*" : mimeTypes) + ", lazyThresholdBytes="
+               + lazyThresholdBytes + "]";
+    }
+}
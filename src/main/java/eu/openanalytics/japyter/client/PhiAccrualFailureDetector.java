@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * The phi accrual failure detector of Hayashibara et al., reporting a suspicion level rather
+ * than up/down: a phi of 1 means a 10% chance the peer is alive, 2 a 1% chance. Times in ms.
+ */
+public final class PhiAccrualFailureDetector
+{
+    public static final double DEFAULT_THRESHOLD = 8.0;
+    public static final long DEFAULT_ACCEPTABLE_PAUSE_MILLIS = 300L;
+    public static final long DEFAULT_MIN_STD_DEVIATION_MILLIS = 50L;
+    public static final int DEFAULT_MAX_SAMPLE_SIZE = 100;
+
+    private final double threshold;
+    private final long acceptablePauseMillis;
+    private final long minStdDeviationMillis;
+    private final long[] intervals;
+    private int intervalCount;
+    private int nextInterval;
+    private double intervalSum;
+    private double squaredIntervalSum;
+    private long lastHeartbeatMillis;
+
+    public PhiAccrualFailureDetector(final long expectedIntervalMillis, final long startMillis)
+    {
+        this(DEFAULT_THRESHOLD, expectedIntervalMillis, DEFAULT_ACCEPTABLE_PAUSE_MILLIS,
+            DEFAULT_MIN_STD_DEVIATION_MILLIS, DEFAULT_MAX_SAMPLE_SIZE, startMillis);
+    }
+
+    /**
+     * @param threshold the phi above which the peer is considered unavailable.
+     * @param expectedIntervalMillis the period at which heartbeats are expected.
+     * @param acceptablePauseMillis the delay beyond the mean interval that is tolerated.
+     * @param minStdDeviationMillis a lower bound for the standard deviation.
+     * @param maxSampleSize the number of most recent intervals to consider.
+     * @param startMillis the time from which the first heartbeat is expected.
+     */
+    public PhiAccrualFailureDetector(final double threshold,
+                                     final long expectedIntervalMillis,
+                                     final long acceptablePauseMillis,
+                                     final long minStdDeviationMillis,
+                                     final int maxSampleSize,
+                                     final long startMillis)
+    {
+        Validate.isTrue(threshold > 0.0, "threshold must be positive");
+        Validate.isTrue(expectedIntervalMillis > 0L, "expectedIntervalMillis must be positive");
+        Validate.isTrue(acceptablePauseMillis >= 0L, "acceptablePauseMillis can't be negative");
+        Validate.isTrue(minStdDeviationMillis > 0L, "minStdDeviationMillis must be positive");
+        Validate.isTrue(maxSampleSize >= 2, "maxSampleSize must be at least 2");
+
+        this.threshold = threshold;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.minStdDeviationMillis = minStdDeviationMillis;
+
+        intervals = new long[maxSampleSize];
+        lastHeartbeatMillis = startMillis;
+
+        // bootstraps the distribution with a deviation of a quarter of the expected interval
+        final long deviation = expectedIntervalMillis / 4L;
+        addInterval(expectedIntervalMillis - deviation);
+        addInterval(expectedIntervalMillis + deviation);
+    }
+
+    public double getThreshold()
+    {
+        return threshold;
+    }
+
+    public synchronized void heartbeat(final long nowMillis)
+    {
+        addInterval(Math.max(0L, nowMillis - lastHeartbeatMillis));
+        lastHeartbeatMillis = nowMillis;
+    }
+
+    public synchronized double phi(final long nowMillis)
+    {
+        final double mean = intervalSum / intervalCount;
+        final double variance = Math.max(0.0, squaredIntervalSum / intervalCount - mean * mean);
+        final double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviationMillis);
+
+        return phi(nowMillis - lastHeartbeatMillis, mean + acceptablePauseMillis, stdDeviation);
+    }
+
+    public boolean isAvailable(final long nowMillis)
+    {
+        return phi(nowMillis) < threshold;
+    }
+
+    public synchronized long getMillisSinceLastHeartbeat(final long nowMillis)
+    {
+        return nowMillis - lastHeartbeatMillis;
+    }
+
+    private void addInterval(final long interval)
+    {
+        if (intervalCount == intervals.length)
+        {
+            final long evicted = intervals[nextInterval];
+            intervalSum -= evicted;
+            squaredIntervalSum -= (double) evicted * evicted;
+        }
+        else
+        {
+            intervalCount++;
+        }
+
+        intervals[nextInterval] = interval;
+        nextInterval = (nextInterval + 1) % intervals.length;
+        intervalSum += interval;
+        squaredIntervalSum += (double) interval * interval;
+    }
+
+    /**
+     * -log10 of the probability of a later heartbeat, with a logistic approximation of the CDF.
+     */
+    static double phi(final long elapsedMillis, final double mean, final double stdDeviation)
+    {
+        final double y = (elapsedMillis - mean) / stdDeviation;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        if (elapsedMillis > mean)
+        {
+            return -Math.log10(e / (1.0 + e));
+        }
+        else
+        {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
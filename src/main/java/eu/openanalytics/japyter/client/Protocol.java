@@ -12,8 +12,8 @@ import static com.fasterxml.jackson.core.JsonEncoding.UTF8;
 import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
 import static java.nio.charset.Charset.defaultCharset;
 import static java.util.Arrays.asList;
-import static org.apache.commons.codec.binary.Hex.encodeHexString;
-import static org.apache.commons.codec.digest.HmacUtils.getInitializedMac;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
 import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
 import static org.apache.commons.lang3.StringUtils.equalsIgnoreCase;
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -26,11 +26,11 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
-import javax.crypto.Mac;
+import java.util.Set;
 
 import org.apache.commons.codec.digest.HmacAlgorithms;
 import org.apache.commons.lang3.ArrayUtils;
@@ -38,6 +38,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import eu.openanalytics.japyter.metrics.MetricsRegistry;
+import eu.openanalytics.japyter.metrics.MetricsRegistry.CodecStage;
+import eu.openanalytics.japyter.model.ExtraBuffer;
 import eu.openanalytics.japyter.model.Message;
 import eu.openanalytics.japyter.model.gen.Broadcast;
 import eu.openanalytics.japyter.model.gen.ClearOutput;
@@ -51,7 +56,6 @@ import eu.openanalytics.japyter.model.gen.ExecuteInput;
 import eu.openanalytics.japyter.model.gen.ExecuteReply;
 import eu.openanalytics.japyter.model.gen.ExecuteRequest;
 import eu.openanalytics.japyter.model.gen.ExecuteResult;
-import eu.openanalytics.japyter.model.gen.Header;
 import eu.openanalytics.japyter.model.gen.HistoryReply;
 import eu.openanalytics.japyter.model.gen.HistoryRequest;
 import eu.openanalytics.japyter.model.gen.InputReply;
@@ -145,6 +149,26 @@ public class Protocol
             return replyMessageType;
         }
 
+        /**
+         * @return true if the request only reads the state of the kernel, so sending it again after
+         *         its reply was lost has no other effect than producing a new reply.
+         */
+        public boolean isIdempotent()
+        {
+            switch (this)
+            {
+                case KERNEL_INFO_REQUEST :
+                case COMPLETE_REQUEST :
+                case INSPECT_REQUEST :
+                case HISTORY_REQUEST :
+                case IS_COMPLETE_REQUEST :
+                case CONNECT_REQUEST :
+                    return true;
+                default :
+                    return false;
+            }
+        }
+
         public static RequestMessageType fromRequestContentClass(final Class<? extends Request> requestContentClass)
         {
             final RequestMessageType rmt = requestContentClasses.get(requestContentClass);
@@ -181,13 +205,15 @@ public class Protocol
 
     public static enum BroadcastType
     {
-        STREAM("stream", Stream.class), DISPLAY_DATA("display_data", DisplayData.class), DATA_PUB("data_pub",
-                        DataPub.class), EXECUTE_INPUT("execute_input", ExecuteInput.class), EXECUTE_RESULT(
-                        "execute_result", ExecuteResult.class), ERROR("error", Error.class), STATUS("status",
-                        Status.class), CLEAR_OUTPUT("clear_output", ClearOutput.class);
+        STREAM("stream", Stream.class, false), DISPLAY_DATA("display_data", DisplayData.class, false), DATA_PUB(
+                        "data_pub", DataPub.class, false), EXECUTE_INPUT("execute_input", ExecuteInput.class,
+                        true), EXECUTE_RESULT("execute_result", ExecuteResult.class, false), ERROR("error",
+                        Error.class, true), STATUS("status", Status.class, true), CLEAR_OUTPUT("clear_output",
+                        ClearOutput.class, false);
 
         private final String value;
         private final Class<? extends Broadcast> broadcastClass;
+        private final List<String> topicPrefixes;
 
         private static Map<String, BroadcastType> values = new HashMap<>();
 
@@ -199,10 +225,14 @@ public class Protocol
             }
         }
 
-        private BroadcastType(final String value, final Class<? extends Broadcast> broadcastClass)
+        private BroadcastType(final String value,
+                              final Class<? extends Broadcast> broadcastClass,
+                              final boolean publishedOnKernelTopic)
         {
             this.value = notBlank(value);
             this.broadcastClass = notNull(broadcastClass);
+            this.topicPrefixes = unmodifiableList(publishedOnKernelTopic ? asList(value,
+                KERNEL_TOPIC_PREFIX) : asList(value));
         }
 
         @Override
@@ -216,6 +246,32 @@ public class Protocol
             return broadcastClass;
         }
 
+        /**
+         * @return the prefixes of the ZeroMQ topics under which kernels publish broadcasts of this
+         *         type: IPython kernels publish streams as <code>stream.&lt;name&gt;</code> and some
+         *         broadcasts under <code>kernel.&lt;kernel-id&gt;.&lt;type&gt;</code>.
+         */
+        public List<String> getTopicPrefixes()
+        {
+            return topicPrefixes;
+        }
+
+        /**
+         * @return true if broadcasts of this type hold a MIME bundle under <code>data</code>.
+         */
+        public boolean hasMimeBundle()
+        {
+            return this == DISPLAY_DATA || this == EXECUTE_RESULT;
+        }
+
+        /**
+         * @return the broadcast type with the provided value, or null if it is unsupported.
+         */
+        public static BroadcastType fromValue(final String value)
+        {
+            return values.get(value);
+        }
+
         public static Class<? extends Broadcast> classFromValue(final String value)
         {
             final BroadcastType broadcastType = values.get(value);
@@ -245,14 +301,27 @@ public class Protocol
 
     public static final String VERSION = "5.0";
     public static final String DELIMITER = "<IDS|MSG>";
+    public static final String KERNEL_TOPIC_PREFIX = "kernel.";
     public static final Charset ENCODING = Charset.forName(UTF8.getJavaName());
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Protocol.class);
     private static final byte[] DELIMITER_BYTES = DELIMITER.getBytes(ENCODING);
     private static final byte[] NO_SIGNATURE_BYTES = EMPTY_BYTE_ARRAY;
+    private static final Set<String> KNOWN_MSG_TYPES = getKnownMsgTypes();
+    private static final ThreadLocal<EncodingBuffer> ENCODING_BUFFERS = new ThreadLocal<EncodingBuffer>()
+    {
+        @Override
+        protected EncodingBuffer initialValue()
+        {
+            return new EncodingBuffer();
+        }
+    };
 
     private final byte[] hmacKey;
     private final HmacAlgorithms hmacAlgorithm;
+    private final HmacSigner hmacSigner;
+    private volatile MetricsRegistry metrics = MetricsRegistry.NOOP;
+    private volatile ExtraBufferAllocator extraBufferAllocator = ExtraBufferAllocator.HEAP;
 
     public Protocol()
     {
@@ -266,11 +335,12 @@ public class Protocol
 
         if (hmacAlgorithm != null && hmacKey != null)
         {
+            hmacSigner = new HmacSigner(hmacKey, hmacAlgorithm);
             LOGGER.info("HMAC signature enabled with: {}", hmacAlgorithm);
         }
         else
         {
-
+            hmacSigner = null;
             LOGGER.info("HMAC signature is disabled");
         }
     }
@@ -305,9 +375,26 @@ public class Protocol
         throw new IllegalArgumentException("Unsupported signature scheme: " + signatureScheme);
     }
 
+    /**
+     * Times serialization, signing and signature verification with a registry.
+     */
+    public void setMetrics(final MetricsRegistry metrics)
+    {
+        this.metrics = notNull(metrics, "metrics can't be null");
+    }
+
+    /**
+     * Holds the extra buffers of received messages where the allocator decides, once their
+     * message has been verified. By default they stay on the heap.
+     */
+    public void setExtraBufferAllocator(final ExtraBufferAllocator extraBufferAllocator)
+    {
+        this.extraBufferAllocator = notNull(extraBufferAllocator, "extraBufferAllocator can't be null");
+    }
+
     public boolean isSigning()
     {
-        return hmacKey != null && hmacAlgorithm != null;
+        return hmacSigner != null;
     }
 
     public byte[] getHmacKey()
@@ -320,43 +407,102 @@ public class Protocol
         return hmacAlgorithm;
     }
 
+    /**
+     * Receives the frames of an encoded message, in order.
+     */
+    public interface FrameSink
+    {
+        void accept(byte[] frame, boolean last) throws IOException;
+    }
+
     public List<byte[]> toFrames(final Message message) throws IOException
     {
-        message.getHeader().setVersion(VERSION);
+        final List<byte[]> frames = new ArrayList<>();
 
-        final List<byte[]> jsonFrames = asList(
-            // writeValueAsBytes uses UTF-8 encoding
-            JSON_OBJECT_MAPPER.writeValueAsBytes(message.getHeader()),
-            JSON_OBJECT_MAPPER.writeValueAsBytes(message.getParentHeader()),
-            JSON_OBJECT_MAPPER.writeValueAsBytes(message.getMetadata()),
-            JSON_OBJECT_MAPPER.writeValueAsBytes(message.getContent()));
+        writeFrames(message, new FrameSink()
+        {
+            @Override
+            public void accept(final byte[] frame, final boolean last)
+            {
+                frames.add(frame);
+            }
+        });
 
-        final List<byte[]> frames = new ArrayList<>();
-        frames.addAll(message.getZmqIdentities());
-        frames.add(DELIMITER_BYTES);
-        frames.add(maybeSignature(jsonFrames));
-        frames.addAll(jsonFrames);
-        frames.addAll(message.getExtraData());
         return frames;
     }
 
-    private byte[] maybeSignature(final List<byte[]> jsonFrames)
+    /**
+     * Encodes a message and streams its frames to the provided sink. The JSON frames are serialized
+     * back to back in a reusable per-thread buffer, which is signed in place, so the only
+     * allocation per JSON frame is the array handed over to ZeroMQ.
+     */
+    public void writeFrames(final Message message, final FrameSink sink) throws IOException
     {
-        if (!isSigning())
+        message.getHeader().setVersion(VERSION);
+
+        final MetricsRegistry currentMetrics = metrics;
+        final boolean timed = currentMetrics != MetricsRegistry.NOOP;
+        final long startNanos = timed ? System.nanoTime() : 0L;
+
+        final EncodingBuffer buffer = ENCODING_BUFFERS.get();
+        buffer.reset();
+
+        final int headerEnd, parentHeaderEnd, metadataEnd;
+
+        // writeValue uses UTF-8 encoding
+        try (JsonGenerator generator = JSON_OBJECT_MAPPER.getFactory().createGenerator(buffer))
         {
-            return NO_SIGNATURE_BYTES;
+            generator.setRootValueSeparator(null);
+
+            JSON_OBJECT_MAPPER.writeValue(generator, message.getHeader());
+            headerEnd = buffer.size();
+            JSON_OBJECT_MAPPER.writeValue(generator, message.getParentHeader());
+            parentHeaderEnd = buffer.size();
+            JSON_OBJECT_MAPPER.writeValue(generator, message.getMetadata());
+            metadataEnd = buffer.size();
+            Codecs.writeContent(message, generator);
         }
+        final int contentEnd = buffer.size();
+        final long serializedNanos = timed ? System.nanoTime() : 0L;
+
+        final byte[] signature = isSigning() ? hmacSigner.sign(buffer.array(), 0, contentEnd) : NO_SIGNATURE_BYTES;
 
-        final Mac mac = getInitializedMac(hmacAlgorithm, hmacKey);
-        for (final byte[] jsonFrame : jsonFrames)
+        if (timed)
         {
-            mac.update(jsonFrame);
+            currentMetrics.codecTimed(CodecStage.SERIALIZATION, serializedNanos - startNanos);
+            currentMetrics.codecTimed(CodecStage.SIGNING, System.nanoTime() - serializedNanos);
         }
 
-        return encodeHexString(mac.doFinal()).getBytes(ENCODING);
+        for (final byte[] zmqIdentity : message.getZmqIdentities())
+        {
+            sink.accept(zmqIdentity, false);
+        }
+        sink.accept(DELIMITER_BYTES, false);
+        sink.accept(signature, false);
+        sink.accept(buffer.copyOfRange(0, headerEnd), false);
+        sink.accept(buffer.copyOfRange(headerEnd, parentHeaderEnd), false);
+        sink.accept(buffer.copyOfRange(parentHeaderEnd, metadataEnd), false);
+
+        final List<ExtraBuffer> extraBuffers = message.getExtraBuffers();
+        sink.accept(buffer.copyOfRange(metadataEnd, contentEnd), extraBuffers.isEmpty());
+
+        final int extraBufferCount = extraBuffers.size();
+        for (int i = 0; i < extraBufferCount; i++)
+        {
+            sink.accept(extraBuffers.get(i).toByteArray(), i == extraBufferCount - 1);
+        }
+    }
+
+    private boolean isSignatureValid(final byte[] signature, final List<byte[]> jsonFrames)
+    {
+        if (!isSigning())
+        {
+            return Arrays.equals(signature, NO_SIGNATURE_BYTES);
+        }
+
+        return hmacSigner.verify(signature, jsonFrames);
     }
 
-    @SuppressWarnings("unchecked")
     private enum FrameHandler
     {
         ZMQ_ID
@@ -388,10 +534,9 @@ public class Protocol
         {
             @Override
             boolean handle(final byte[] frame, final List<byte[]> jsonFrames, final Message message)
-                throws IOException
             {
                 jsonFrames.add(frame);
-                message.withHeader(JSON_OBJECT_MAPPER.readValue(frame, Header.class));
+                message.withRawHeader(frame);
                 return true;
             }
         },
@@ -399,10 +544,9 @@ public class Protocol
         {
             @Override
             boolean handle(final byte[] frame, final List<byte[]> jsonFrames, final Message message)
-                throws IOException
             {
                 jsonFrames.add(frame);
-                message.withParentHeader(JSON_OBJECT_MAPPER.readValue(frame, Header.class));
+                message.withRawParentHeader(frame);
                 return true;
             }
         },
@@ -410,10 +554,9 @@ public class Protocol
         {
             @Override
             boolean handle(final byte[] frame, final List<byte[]> jsonFrames, final Message message)
-                throws IOException
             {
                 jsonFrames.add(frame);
-                message.withMetadata(JSON_OBJECT_MAPPER.readValue(frame, Map.class));
+                message.withRawMetadata(frame);
                 return true;
             }
         },
@@ -421,10 +564,9 @@ public class Protocol
         {
             @Override
             boolean handle(final byte[] frame, final List<byte[]> jsonFrames, final Message message)
-                throws IOException
             {
                 jsonFrames.add(frame);
-                message.withContent(JSON_OBJECT_MAPPER.readValue(frame, Map.class));
+                message.withRawContent(frame);
                 return true;
             }
         },
@@ -438,10 +580,58 @@ public class Protocol
             }
         };
 
-        abstract boolean handle(byte[] frame, final List<byte[]> jsonFrames, Message message)
-            throws IOException;
+        abstract boolean handle(byte[] frame, List<byte[]> jsonFrames, Message message);
     };
 
+    /**
+     * @return the type of an encoded message, without decoding it, or null if it has no header.
+     */
+    static String peekMsgType(final List<byte[]> frames)
+    {
+        for (int i = 0; i < frames.size() - 2; i++)
+        {
+            if (Arrays.equals(frames.get(i), DELIMITER_BYTES))
+            {
+                // the header follows the delimiter and the signature
+                return new Message().withRawHeader(frames.get(i + 2)).peekMsgType();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the type of an encoded message, like {@link #peekMsgType(List)}, or null if it isn't
+     *         one of the protocol: the message isn't verified yet, so any peer could make up types.
+     */
+    static String peekKnownMsgType(final List<byte[]> frames)
+    {
+        final String msgType = peekMsgType(frames);
+        return KNOWN_MSG_TYPES.contains(msgType) ? msgType : null;
+    }
+
+    private static Set<String> getKnownMsgTypes()
+    {
+        final Set<String> msgTypes = new HashSet<>();
+        for (final RequestMessageType requestMessageType : RequestMessageType.values())
+        {
+            msgTypes.add(requestMessageType.toString());
+        }
+        for (final ReplyMessageType replyMessageType : ReplyMessageType.values())
+        {
+            msgTypes.add(replyMessageType.toString());
+        }
+        for (final BroadcastType broadcastType : BroadcastType.values())
+        {
+            msgTypes.add(broadcastType.toString());
+        }
+        for (final CustomMessageType customMessageType : CustomMessageType.values())
+        {
+            msgTypes.add(customMessageType.toString());
+        }
+        msgTypes.remove(RequestMessageType.OTHER.toString());
+        return unmodifiableSet(msgTypes);
+    }
+
     public Message fromFrames(final List<byte[]> frames) throws IOException
     {
         final Message message = new Message();
@@ -468,11 +658,23 @@ public class Protocol
             throw new IOException("Not enough frames received, last frame: " + frameHandler);
         }
 
-        if (!Arrays.equals(message.getHmacSignature(), maybeSignature(jsonFrames)))
+        final MetricsRegistry currentMetrics = metrics;
+        final long verificationStartNanos = currentMetrics != MetricsRegistry.NOOP ? System.nanoTime() : 0L;
+        final boolean signatureValid = isSignatureValid(message.getHmacSignature(), jsonFrames);
+
+        if (currentMetrics != MetricsRegistry.NOOP)
+        {
+            currentMetrics.codecTimed(CodecStage.VERIFICATION, System.nanoTime() - verificationStartNanos);
+        }
+
+        if (!signatureValid)
         {
             throw new IOException("Invalid HMAC signature in received message");
         }
 
+        // buffers of messages that fail verification never leave the heap
+        extraBufferAllocator.allocate(message.getExtraBuffers());
+
         return message;
     }
 }
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+/**
+ * The Reactive Streams 1.0 interfaces, with the contract of <code>org.reactivestreams</code>.
+ */
+public final class ReactiveStreams
+{
+    /**
+     * Provides a potentially unbounded number of elements to the subscribers that demand them.
+     */
+    public interface Publisher<T>
+    {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives a subscription, elements up to its demand, then at most one terminal signal.
+     */
+    public interface Subscriber<T>
+    {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T element);
+
+        void onError(Throwable t);
+
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and one subscriber, through which demand is signalled.
+     */
+    public interface Subscription
+    {
+        void request(long n);
+
+        void cancel();
+    }
+
+    private ReactiveStreams()
+    {
+        // holder of interfaces
+    }
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Future} completed by the channel receiving the matching reply, with callbacks.
+ */
+public class ReplyFuture<T> implements Future<T>
+{
+    public interface Callback<T>
+    {
+        void onSuccess(T result);
+
+        void onFailure(Throwable t);
+    }
+
+    public interface Converter<S, T>
+    {
+        T convert(S source) throws Exception;
+    }
+
+    private enum State
+    {
+        PENDING, SUCCEEDED, FAILED, CANCELLED
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplyFuture.class);
+
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private final List<Callback<? super T>> callbacks = new ArrayList<>();
+
+    private State state = State.PENDING;
+    private T result;
+    private Throwable failure;
+
+    public boolean complete(final T result)
+    {
+        return transitionTo(State.SUCCEEDED, result, null);
+    }
+
+    public boolean fail(final Throwable failure)
+    {
+        return transitionTo(State.FAILED, null, notNull(failure, "failure can't be null"));
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning)
+    {
+        return transitionTo(State.CANCELLED, null, new CancellationException("Reply future cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return state == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return state != State.PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        doneLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!doneLatch.await(timeout, unit))
+        {
+            throw new TimeoutException("No reply received after waiting " + timeout + " " + unit);
+        }
+
+        return getResult();
+    }
+
+    /**
+     * Registers a quick callback, run by the thread completing this future or right away if done.
+     */
+    public ReplyFuture<T> addCallback(final Callback<? super T> callback)
+    {
+        notNull(callback, "callback can't be null");
+
+        synchronized (this)
+        {
+            if (state == State.PENDING)
+            {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+
+        invoke(callback);
+        return this;
+    }
+
+    /**
+     * Creates a future completing with the converted result of this one, cancelling it too.
+     */
+    public <R> ReplyFuture<R> transform(final Converter<? super T, ? extends R> converter)
+    {
+        notNull(converter, "converter can't be null");
+
+        final ReplyFuture<R> transformed = new ReplyFuture<>();
+
+        addCallback(new Callback<T>()
+        {
+            @Override
+            public void onSuccess(final T source)
+            {
+                try
+                {
+                    transformed.complete(converter.convert(source));
+                }
+                catch (final Exception e)
+                {
+                    transformed.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                transformed.fail(t);
+            }
+        });
+
+        transformed.addCallback(new Callback<R>()
+        {
+            @Override
+            public void onSuccess(final R r)
+            {
+                // NOOP
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                if (transformed.isCancelled())
+                {
+                    cancel(false);
+                }
+            }
+        });
+
+        return transformed;
+    }
+
+    private boolean transitionTo(final State newState, final T newResult, final Throwable newFailure)
+    {
+        final List<Callback<? super T>> toNotify;
+
+        synchronized (this)
+        {
+            if (state != State.PENDING)
+            {
+                return false;
+            }
+
+            state = newState;
+            result = newResult;
+            failure = newFailure;
+
+            toNotify = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+
+        doneLatch.countDown();
+
+        for (final Callback<? super T> callback : toNotify)
+        {
+            invoke(callback);
+        }
+
+        return true;
+    }
+
+    private void invoke(final Callback<? super T> callback)
+    {
+        final State doneState;
+        final T doneResult;
+        final Throwable doneFailure;
+
+        synchronized (this)
+        {
+            doneState = state;
+            doneResult = result;
+            doneFailure = failure;
+        }
+
+        try
+        {
+            if (doneState == State.SUCCEEDED)
+            {
+                callback.onSuccess(doneResult);
+            }
+            else
+            {
+                callback.onFailure(doneFailure);
+            }
+        }
+        catch (final Throwable t)
+        {
+            LOGGER.error("Reply future callback failed: {}", callback, t);
+        }
+    }
+
+    private synchronized T getResult() throws ExecutionException
+    {
+        if (state == State.SUCCEEDED)
+        {
+            return result;
+        }
+        else if (state == State.CANCELLED)
+        {
+            throw (CancellationException) failure;
+        }
+        else
+        {
+            throw new ExecutionException(failure);
+        }
+    }
+}
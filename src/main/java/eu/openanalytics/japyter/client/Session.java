@@ -8,44 +8,123 @@
 
 package eu.openanalytics.japyter.client;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.apache.commons.lang3.Validate.notNull;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.ZContext;
+import org.zeromq.ZMQException;
 import org.zeromq.ZMQ.Socket;
 
-import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.Protocol.FrameSink;
+import eu.openanalytics.japyter.metrics.MetricsRegistry;
+import eu.openanalytics.japyter.metrics.MetricsRegistry.CodecStage;
 import eu.openanalytics.japyter.model.Message;
 
 public class Session implements Closeable
 {
-    private static class SessionThreadFactory implements ThreadFactory
+    /**
+     * Tracks a channel task submitted to the runtime, so the session knows when all are done.
+     */
+    private final class ChannelTask implements Runnable
     {
-        private final AtomicInteger count = new AtomicInteger(0);
+        private final Runnable task;
+
+        private ChannelTask(final Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                channelTaskDone();
+            }
+        }
 
         @Override
-        public Thread newThread(final Runnable r)
+        public String toString()
         {
-            final Thread t = new Thread(r);
-            t.setName((Japyter.class.getSimpleName() + "-" + r.getClass().getSimpleName() + "-" + count.incrementAndGet()).toLowerCase());
-            return t;
+            return task.toString();
+        }
+    }
+
+    /**
+     * Signals that a message couldn't be written to a socket, as opposed to failing to encode it.
+     */
+    static final class SocketSendException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        SocketSendException(final String message, final Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    private static final class SocketFrameSink implements FrameSink
+    {
+        private final Socket zmqSocket;
+        private final Message message;
+        private int frameIndex;
+        private long byteCount;
+
+        private SocketFrameSink(final Socket zmqSocket, final Message message)
+        {
+            this.zmqSocket = zmqSocket;
+            this.message = message;
+        }
+
+        @Override
+        public void accept(final byte[] frame, final boolean lastFrame) throws IOException
+        {
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Sending {}frame: {}", (lastFrame ? "last " : ""), new String(frame,
+                    Protocol.ENCODING));
+            }
+
+            final boolean sent;
+            try
+            {
+                sent = lastFrame ? zmqSocket.send(frame) : zmqSocket.sendMore(frame);
+            }
+            catch (final ZMQException zmqe)
+            {
+                throw new SocketSendException("Failed to send frame " + frameIndex + " of message: " + message,
+                    zmqe);
+            }
+
+            if (!sent)
+            {
+                throw new SocketSendException("Failed to send frame " + frameIndex + " of message: " + message,
+                    null);
+            }
+
+            frameIndex++;
+            byteCount += frame.length;
         }
     }
 
@@ -54,16 +133,51 @@ public class Session implements Closeable
 
     private final String id, userName;
     private final Protocol protocol;
+    private final MetricsRegistry metrics;
     private final int receiveTimeoutMillis;
+    private final JapyterRuntime runtime;
+    private final boolean ownsRuntime;
     private final ZContext zmqContext;
+    private final EventLoop eventLoop;
     private final Set<AbstractChannel> channels;
-    private final ExecutorService executor;
-    private final ScheduledExecutorService scheduler;
-
+    private final AtomicInteger channelTaskCount;
+    private final List<ScheduledFuture<?>> scheduledTasks;
+    private final List<LimitedExecutor> workerPools;
+    private final AtomicBoolean reconnecting;
+    private final AtomicLong reconnectCount;
+    private volatile boolean automaticReconnection;
+    private volatile boolean closing;
+
+    /**
+     * Creates a session with its own {@link JapyterRuntime}, which is closed with it.
+     */
     public Session(final String userName,
                    final Protocol protocol,
                    final int receiveTimeoutMillis,
                    final int zmqIoThreads)
+    {
+        this(userName, protocol, receiveTimeoutMillis, JapyterRuntime.builder()
+            .withZmqIoThreads(zmqIoThreads)
+            .build(), true);
+    }
+
+    /**
+     * Creates a session that uses a shared {@link JapyterRuntime}, which is left open when the
+     * session is closed.
+     */
+    public Session(final String userName,
+                   final Protocol protocol,
+                   final int receiveTimeoutMillis,
+                   final JapyterRuntime runtime)
+    {
+        this(userName, protocol, receiveTimeoutMillis, runtime, false);
+    }
+
+    private Session(final String userName,
+                    final Protocol protocol,
+                    final int receiveTimeoutMillis,
+                    final JapyterRuntime runtime,
+                    final boolean ownsRuntime)
     {
         id = UUID.randomUUID().toString();
 
@@ -74,13 +188,26 @@ public class Session implements Closeable
             "receiveTimeoutMillis must be -1, 0 or a positive integer");
         this.receiveTimeoutMillis = receiveTimeoutMillis;
 
-        Validate.isTrue(zmqIoThreads >= 1, "zmqIoThreads must be a positive integer");
-        zmqContext = new ZContext(zmqIoThreads);
+        this.runtime = notNull(runtime, "runtime can't be null");
+        this.ownsRuntime = ownsRuntime;
+        metrics = runtime.getMetrics();
+        protocol.setMetrics(metrics);
+        // a shadow context tracks the sockets of this session only and doesn't terminate the shared context
+        zmqContext = ZContext.shadow(runtime.getZmqContext());
+        eventLoop = runtime.assignEventLoop();
 
-        channels = new HashSet<>();
+        // channels are reconnected from other threads than the one that connects them
+        channels = new CopyOnWriteArraySet<>();
 
-        executor = Executors.newCachedThreadPool(new SessionThreadFactory());
-        scheduler = Executors.newScheduledThreadPool(1, new SessionThreadFactory());
+        channelTaskCount = new AtomicInteger();
+        scheduledTasks = new CopyOnWriteArrayList<>();
+        workerPools = new CopyOnWriteArrayList<>();
+
+        reconnecting = new AtomicBoolean(false);
+        reconnectCount = new AtomicLong();
+        automaticReconnection = true;
+
+        runtime.register(this);
 
         LOGGER.info("Created session ID is: {}", id);
     }
@@ -100,11 +227,22 @@ public class Session implements Closeable
         return receiveTimeoutMillis;
     }
 
-    protected Socket connect(final AbstractChannel channel)
+    protected Socket createSocket(final int type)
     {
-        final Socket zmqSocket = zmqContext.createSocket(channel.getZmqSocketType());
+        final Socket zmqSocket = zmqContext.createSocket(type);
         zmqSocket.setLinger(1000L);
         zmqSocket.setReceiveTimeOut(receiveTimeoutMillis);
+        return zmqSocket;
+    }
+
+    protected void destroySocket(final Socket zmqSocket)
+    {
+        zmqContext.destroySocket(zmqSocket);
+    }
+
+    protected Socket connect(final AbstractChannel channel)
+    {
+        final Socket zmqSocket = createSocket(channel.getZmqSocketType());
         zmqSocket.connect(channel.getAddress());
 
         channels.add(channel);
@@ -113,33 +251,200 @@ public class Session implements Closeable
         return zmqSocket;
     }
 
+    protected Socket reconnect(final AbstractChannel channel)
+    {
+        destroySocket(channel.getZmqSocket());
+
+        final Socket zmqSocket = createSocket(channel.getZmqSocketType());
+        zmqSocket.connect(channel.getAddress());
+        LOGGER.info("Reconnected channel: {} {}", channel.getClass().getSimpleName(), channel.getAddress());
+
+        return zmqSocket;
+    }
+
     protected void disconnect(final AbstractChannel channel)
     {
-        zmqContext.destroySocket(channel.getZmqSocket());
+        destroySocket(channel.getZmqSocket());
     }
 
+    /**
+     * Runs a long-running channel task on the runtime channel executor.
+     */
     protected void execute(final Runnable r)
     {
-        executor.execute(r);
+        channelTaskCount.incrementAndGet();
+
+        try
+        {
+            runtime.getChannelExecutor().execute(new ChannelTask(r));
+        }
+        catch (final RuntimeException re)
+        {
+            channelTaskDone();
+            throw re;
+        }
+    }
+
+    private void channelTaskDone()
+    {
+        if (channelTaskCount.decrementAndGet() == 0)
+        {
+            synchronized (channelTaskCount)
+            {
+                channelTaskCount.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the event loop shared with other sessions, or null without event loops.
+     */
+    EventLoop getEventLoop()
+    {
+        return eventLoop;
+    }
+
+    /**
+     * @return the shared event loop, or else a new loop dedicated to the channel.
+     */
+    EventLoop startEventLoop(final AbstractChannel channel)
+    {
+        if (eventLoop != null)
+        {
+            return eventLoop;
+        }
+
+        final EventLoop dedicatedEventLoop = new EventLoop(zmqContext, channel.getClass().getSimpleName() + "-"
+                                                                       + id, true);
+        execute(dedicatedEventLoop);
+        return dedicatedEventLoop;
+    }
+
+    /**
+     * Creates a pool of at most <code>threads</code> workers from the runtime worker executor.
+     */
+    protected Executor newWorkerPool(final int threads)
+    {
+        final LimitedExecutor workerPool = new LimitedExecutor(runtime.getWorkerExecutor(), threads);
+        workerPools.add(workerPool);
+        return workerPool;
     }
 
     protected void scheduleWithFixedDelay(final Runnable r, final int delayMillis)
     {
-        scheduler.scheduleWithFixedDelay(r, 0L, delayMillis, MILLISECONDS);
+        scheduledTasks.add(runtime.scheduleWithFixedDelay(r, delayMillis));
     }
 
-    private static void shutdownExecutor(final ExecutorService es, final long timeout)
+    /**
+     * Schedules a task that runs once, after a delay, unless the returned future is cancelled
+     * first. Unlike periodic tasks, it isn't cancelled when this session is closed, as it is
+     * expected to be short-lived.
+     */
+    protected ScheduledFuture<?> schedule(final Runnable r, final int delayMillis)
     {
+        return runtime.schedule(r, delayMillis);
+    }
+
+    /**
+     * Replaces the sockets of all channels, for example after the kernel has restarted or the
+     * network has failed, without having to recreate the session and its channels. Idempotent
+     * requests still waiting for a reply are sent again, the others fail right away instead of
+     * waiting for the receive timeout. Calls made while a reconnection is in progress are ignored.
+     */
+    public void reconnect()
+    {
+        if (closing || !reconnecting.compareAndSet(false, true))
+        {
+            return;
+        }
+
         try
         {
-            es.shutdown();
+            reconnectCount.incrementAndGet();
+            LOGGER.warn("Reconnecting channels of session ID: {}", id);
+
+            for (final AbstractChannel channel : channels)
+            {
+                try
+                {
+                    channel.onConnectionLost();
+                }
+                catch (final Throwable t)
+                {
+                    LOGGER.error("Failed to reconnect channel: {} {}", channel.getClass().getSimpleName(),
+                        channel.getAddress(), t);
+                }
+            }
+        }
+        finally
+        {
+            reconnecting.set(false);
+        }
+    }
 
-            LOGGER.info("Shutdown requested for {}, awaiting for a maximum of {}ms", es, timeout);
+    /**
+     * Reconnects, if automatic reconnection is enabled, after a channel has detected that the
+     * connection to the kernel is lost.
+     */
+    protected void connectionLost(final AbstractChannel channel)
+    {
+        if (!automaticReconnection)
+        {
+            return;
+        }
+
+        LOGGER.warn("Connection to the kernel lost, as detected by channel: {} {}", channel.getClass()
+            .getSimpleName(), channel.getAddress());
+        reconnect();
+    }
 
-            if (!es.awaitTermination(timeout, MILLISECONDS))
+    /**
+     * Whether channels are reconnected when the heartbeat detects that the kernel is down, or a
+     * request can't be sent. Enabled by default.
+     */
+    public void setAutomaticReconnection(final boolean automaticReconnection)
+    {
+        this.automaticReconnection = automaticReconnection;
+    }
+
+    /**
+     * @return the number of times the channels of this session have been reconnected.
+     */
+    public long getReconnectCount()
+    {
+        return reconnectCount.get();
+    }
+
+    /**
+     * @return the number of ZeroMQ sockets currently opened by this session.
+     */
+    public int getSocketCount()
+    {
+        return zmqContext.getSockets().size();
+    }
+
+    /**
+     * @return the number of channel tasks that are running or waiting to run.
+     */
+    public int getChannelTaskCount()
+    {
+        return channelTaskCount.get();
+    }
+
+    private void awaitChannelTasks(final long timeout)
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        try
+        {
+            synchronized (channelTaskCount)
             {
-                final List<Runnable> dumpedRunnables = es.shutdownNow();
-                LOGGER.error("Shutdown of {} timed-out, dumped runnables: {}", es, dumpedRunnables);
+                long remaining = timeout;
+                while (channelTaskCount.get() > 0 && remaining > 0)
+                {
+                    channelTaskCount.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
             }
         }
         catch (final InterruptedException ie)
@@ -147,11 +452,19 @@ public class Session implements Closeable
             // Restore the interrupted status
             Thread.currentThread().interrupt();
         }
+
+        if (channelTaskCount.get() > 0)
+        {
+            LOGGER.error("{} channel tasks of session ID {} still running after {}ms",
+                channelTaskCount.get(), id, timeout);
+        }
     }
 
     @Override
     public void close() throws IOException
     {
+        closing = true;
+
         for (final AbstractChannel channel : channels)
         {
             if (channel instanceof AbstractRunningChannel)
@@ -170,9 +483,15 @@ public class Session implements Closeable
             }
         }
 
-        final long shutdownExecutorTimeout = SHUTDOWN_TIMEOUT_PADDING + getReceiveTimeoutMillis();
-        shutdownExecutor(executor, shutdownExecutorTimeout);
-        shutdownExecutor(scheduler, shutdownExecutorTimeout);
+        for (final ScheduledFuture<?> scheduledTask : scheduledTasks)
+        {
+            scheduledTask.cancel(false);
+        }
+        for (final LimitedExecutor workerPool : workerPools)
+        {
+            workerPool.shutdown();
+        }
+        awaitChannelTasks(SHUTDOWN_TIMEOUT_PADDING + getReceiveTimeoutMillis());
 
         for (final AbstractChannel channel : channels)
         {
@@ -190,11 +509,41 @@ public class Session implements Closeable
         }
 
         zmqContext.destroy();
+        runtime.unregister(this);
+
+        if (eventLoop != null)
+        {
+            eventLoop.release();
+        }
+
+        if (ownsRuntime)
+        {
+            runtime.close();
+        }
 
         LOGGER.info("Terminated session ID is: {}", id);
     }
 
+    public MetricsRegistry getMetrics()
+    {
+        return metrics;
+    }
+
     protected void send(final Message message, final Socket zmqSocket) throws IOException
+    {
+        send(null, message, zmqSocket);
+    }
+
+    /**
+     * Sends a message over the socket of a channel, accounting it to this channel.
+     */
+    protected void send(final AbstractChannel channel, final Message message) throws IOException
+    {
+        send(getChannelName(channel), message, channel.getZmqSocket());
+    }
+
+    private void send(final String channelName, final Message message, final Socket zmqSocket)
+        throws IOException
     {
         message.getHeader().setSession(id);
 
@@ -203,49 +552,96 @@ public class Session implements Closeable
             message.getHeader().setUsername(userName);
         }
 
-        final List<byte[]> frames = protocol.toFrames(message);
-        final int framesSize = frames.size();
+        final SocketFrameSink sink = new SocketFrameSink(zmqSocket, message);
+        protocol.writeFrames(message, sink);
+        metrics.messageSent(channelName, message.getHeader().getMsgType(), sink.byteCount);
+    }
 
-        for (int i = 0; i < framesSize; i++)
-        {
-            final boolean lastFrame = i == (framesSize - 1);
+    public Message receive(final Socket zmqSocket) throws IOException
+    {
+        return receive(null, zmqSocket, true);
+    }
 
-            final byte[] frame = frames.get(i);
+    public Message poll(final Socket zmqSocket) throws IOException
+    {
+        return receive(null, zmqSocket, false);
+    }
 
-            if (LOGGER.isDebugEnabled())
-            {
-                LOGGER.debug("Sending {}frame: {}", (lastFrame ? "last " : ""), new String(frame,
-                    Protocol.ENCODING));
-            }
+    /**
+     * Polls the socket of a channel, accounting the received message to this channel.
+     */
+    protected Message poll(final AbstractChannel channel) throws IOException
+    {
+        return receive(getChannelName(channel), channel.getZmqSocket(), false);
+    }
 
-            if (lastFrame)
-            {
-                if (!zmqSocket.send(frame))
-                {
-                    throw new IOException("Failed to send frame " + i + " of message: " + message);
-                }
-            }
-            else
-            {
-                if (!zmqSocket.sendMore(frame))
-                {
-                    throw new IOException("Failed to send frame " + i + " of message: " + message);
-                }
-            }
-        }
+    private Message receive(final String channelName, final Socket zmqSocket, final boolean failOnNull)
+        throws IOException
+    {
+        final List<byte[]> frames = receiveFrames(channelName, zmqSocket, failOnNull);
+
+        return frames != null ? protocol.fromFrames(frames) : null;
     }
 
-    public Message receive(final Socket zmqSocket) throws IOException
+    /**
+     * Receives the raw frames of a message without decoding nor verifying them, or returns null if
+     * no message was received before the receive timeout.
+     */
+    protected List<byte[]> pollFrames(final Socket zmqSocket) throws IOException
     {
-        return receive(zmqSocket, true);
+        return receiveFrames(null, zmqSocket, false);
     }
 
-    public Message poll(final Socket zmqSocket) throws IOException
+    /**
+     * Polls the raw frames of a message from the socket of a channel, accounting them to this
+     * channel.
+     */
+    protected List<byte[]> pollFrames(final AbstractChannel channel) throws IOException
+    {
+        return receiveFrames(getChannelName(channel), channel.getZmqSocket(), false);
+    }
+
+    /**
+     * Binds the content of a received message to its typed class, timing it as
+     * {@link CodecStage#DESERIALIZATION}.
+     */
+    public <T> T readContent(final Message message, final Class<T> contentClass) throws IOException
+    {
+        return readContent(message, contentClass, MimeFilter.ALL);
+    }
+
+    /**
+     * Binds the content of a received message to its typed class, projecting its MIME bundle
+     * through a filter, and times it as {@link CodecStage#DESERIALIZATION}.
+     *
+     * @see Codecs#readContent(Message, Class, MimeFilter)
+     */
+    public <T> T readContent(final Message message, final Class<T> contentClass, final MimeFilter mimeFilter)
+        throws IOException
+    {
+        if (metrics == MetricsRegistry.NOOP)
+        {
+            return Codecs.readContent(message, contentClass, mimeFilter);
+        }
+
+        final long startNanos = System.nanoTime();
+        try
+        {
+            return Codecs.readContent(message, contentClass, mimeFilter);
+        }
+        finally
+        {
+            metrics.codecTimed(CodecStage.DESERIALIZATION, System.nanoTime() - startNanos);
+        }
+    }
+
+    static String getChannelName(final AbstractChannel channel)
     {
-        return receive(zmqSocket, false);
+        return channel.getClass().getSimpleName();
     }
 
-    private Message receive(final Socket zmqSocket, final boolean failOnNull) throws IOException
+    private List<byte[]> receiveFrames(final String channelName, final Socket zmqSocket, final boolean failOnNull)
+        throws IOException
     {
         byte[] frame = zmqSocket.recv();
 
@@ -270,6 +666,16 @@ public class Session implements Closeable
         }
         while (zmqSocket.hasReceiveMore() && ((frame = zmqSocket.recv()) != null));
 
-        return protocol.fromFrames(frames);
+        if (metrics != MetricsRegistry.NOOP)
+        {
+            long byteCount = 0L;
+            for (final byte[] receivedFrame : frames)
+            {
+                byteCount += receivedFrame.length;
+            }
+            metrics.messageReceived(channelName, Protocol.peekKnownMsgType(frames), byteCount);
+        }
+
+        return frames;
     }
 }
@@ -67,23 +67,81 @@ public class Shell extends AbstractSynchronousChannel
         return send(request);
     }
 
+    public ReplyFuture<ExecuteReply> executeAsync(final ExecuteRequest request)
+    {
+        return sendAsync(request);
+    }
+
+    /**
+     * Sends an execute request and returns immediately with a handle on its reply and on its
+     * outputs, as published on the provided IoPub channel.
+     */
+    public Execution submit(final ExecuteRequest request, final IoPub ioPub)
+    {
+        return submit(request, ioPub, MimeFilter.ALL);
+    }
+
+    /**
+     * Sends an execute request like {@link #submit(ExecuteRequest, IoPub)}, only decoding the MIME
+     * types accepted by the filter from its display data and execute results.
+     */
+    public Execution submit(final ExecuteRequest request, final IoPub ioPub, final MimeFilter mimeFilter)
+    {
+        return new Execution(this, notNull(ioPub, "ioPub can't be null"), notNull(request, "request can't be null"),
+            notNull(mimeFilter, "mimeFilter can't be null")).submit();
+    }
+
     public InspectReply inspect(final String code, final int cursorPosition, final InspectDetailLevel level)
         throws IOException
     {
-        return send(new InspectRequest().withCode(notBlank(code, "code can't be blank"))
+        return send(newInspectRequest(code, cursorPosition, level));
+    }
+
+    public ReplyFuture<InspectReply> inspectAsync(final String code,
+                                                  final int cursorPosition,
+                                                  final InspectDetailLevel level)
+    {
+        return sendAsync(newInspectRequest(code, cursorPosition, level));
+    }
+
+    private InspectRequest newInspectRequest(final String code,
+                                             final int cursorPosition,
+                                             final InspectDetailLevel level)
+    {
+        return new InspectRequest().withCode(notBlank(code, "code can't be blank"))
             .withCursorPos(cursorPosition)
-            .withDetailLevel(notNull(level, "level can't be null").getValue()));
+            .withDetailLevel(notNull(level, "level can't be null").getValue());
     }
 
     public CompleteReply complete(final String code, final int cursorPosition) throws IOException
     {
-        return send(new CompleteRequest().withCode(notBlank(code, "code can't be blank")).withCursorPos(
-            cursorPosition));
+        return send(newCompleteRequest(code, cursorPosition));
+    }
+
+    public ReplyFuture<CompleteReply> completeAsync(final String code, final int cursorPosition)
+    {
+        return sendAsync(newCompleteRequest(code, cursorPosition));
+    }
+
+    private CompleteRequest newCompleteRequest(final String code, final int cursorPosition)
+    {
+        return new CompleteRequest().withCode(notBlank(code, "code can't be blank")).withCursorPos(
+            cursorPosition);
     }
 
     public IsCompleteReply isComplete(final String code) throws IOException
     {
-        return send(new IsCompleteRequest().withCode(notBlank(code, "code can't be blank")));
+        return send(newIsCompleteRequest(code));
+    }
+
+    public ReplyFuture<IsCompleteReply> isCompleteAsync(final String code)
+    {
+        return sendAsync(newIsCompleteRequest(code));
+    }
+
+    private IsCompleteRequest newIsCompleteRequest(final String code)
+    {
+        return new IsCompleteRequest().withCode(notBlank(code, "code can't be blank"));
     }
 
     public HistoryReply history(final HistoryRequest request) throws IOException
@@ -91,18 +149,38 @@ public class Shell extends AbstractSynchronousChannel
         return send(request);
     }
 
+    public ReplyFuture<HistoryReply> historyAsync(final HistoryRequest request)
+    {
+        return sendAsync(request);
+    }
+
     public ConnectReply connect() throws IOException
     {
         return send(CONNECT_REQUEST);
     }
 
+    public ReplyFuture<ConnectReply> connectAsync()
+    {
+        return sendAsync(CONNECT_REQUEST);
+    }
+
     public KernelInfoReply kernelInfo() throws IOException
     {
         return send(KERNEL_INFO_REQUEST);
     }
 
+    public ReplyFuture<KernelInfoReply> kernelInfoAsync()
+    {
+        return sendAsync(KERNEL_INFO_REQUEST);
+    }
+
     public ShutdownReply shutdown(final boolean restart) throws IOException
     {
         return send(new ShutdownRequest().withRestart(restart));
     }
+
+    public ReplyFuture<ShutdownReply> shutdownAsync(final boolean restart)
+    {
+        return sendAsync(new ShutdownRequest().withRestart(restart));
+    }
 }
@@ -8,7 +8,6 @@
 
 package eu.openanalytics.japyter.client;
 
-import static eu.openanalytics.japyter.Japyter.JSON_OBJECT_MAPPER;
 import static org.apache.commons.lang3.BooleanUtils.isTrue;
 
 import java.io.IOException;
@@ -25,26 +24,29 @@ import eu.openanalytics.japyter.model.gen.Request;
 
 public class Stdin extends AbstractRunningChannel
 {
-    private class StdinPoller implements Runnable
+    private final class StdinEventHandler implements EventLoop.Handler
     {
         @Override
-        public void run()
+        public void onReadable() throws IOException
         {
-            while (isRunning())
-            {
-                try
-                {
-                    pollAndReply();
-                }
-                catch (final Throwable t)
-                {
-                    if (isRunning())
-                    {
-                        getLogger().error("Polling and replying to stdin handler failed", t);
-                    }
-                }
-            }
+            pollAndReply();
+        }
+
+        @Override
+        public long getMillisUntilTimer()
+        {
+            return -1L;
+        }
 
+        @Override
+        public void onTimer()
+        {
+            // no timer
+        }
+
+        @Override
+        public void onUnregistered()
+        {
             getLogger().info("Stopped");
         }
     }
@@ -69,6 +71,7 @@ public class Stdin extends AbstractRunningChannel
     }
 
     private final StdinHandler handler;
+    private final EventLoop eventLoop;
 
     public Stdin(final String address, final Session session, final StdinHandler handler)
     {
@@ -76,7 +79,22 @@ public class Stdin extends AbstractRunningChannel
 
         this.handler = Validate.notNull(handler, "handler can't be null");
 
-        getSession().execute(new StdinPoller());
+        eventLoop = session.startEventLoop(this);
+        eventLoop.register(getZmqSocket(), new StdinEventHandler());
+    }
+
+    @Override
+    public void stop()
+    {
+        super.stop();
+
+        eventLoop.unregister(getZmqSocket());
+    }
+
+    @Override
+    protected void onConnectionLost()
+    {
+        reconnectOnEventLoop(eventLoop, null);
     }
 
     @Override
@@ -87,29 +105,80 @@ public class Stdin extends AbstractRunningChannel
 
     private void pollAndReply() throws IOException
     {
-        final Message maybeMessage = getSession().poll(getZmqSocket());
+        final Message maybeMessage = getSession().poll(this);
 
         if (maybeMessage == null)
         {
             return;
         }
 
-        reply(maybeMessage);
+        try
+        {
+            reply(maybeMessage);
+        }
+        catch (final Message.DecodingException de)
+        {
+            throw de.toIOException();
+        }
     }
 
     private void reply(final Message message) throws IOException
     {
-        final RequestMessageType type = RequestMessageType.fromValue(message.getHeader().getMsgType());
+        final RequestMessageType type = RequestMessageType.fromValue(message.peekMsgType());
 
         if (getLogger().isDebugEnabled())
         {
             getLogger().debug("Selected type: {} for message: {}", type, message);
         }
 
-        final Request request = JSON_OBJECT_MAPPER.convertValue(message.getContent(),
-            type.getRequestContentClass());
+        final Request request = getSession().readContent(message, type.getRequestContentClass());
 
-        getSession().send(message.createReply(type).withContent(buildContent(request)), getZmqSocket());
+        if (getSession().getEventLoop() == null)
+        {
+            // the event loop is dedicated to this channel so it can wait for the handler
+            getSession().send(this, message.createReply(type).withContent(buildContent(request)));
+            return;
+        }
+
+        // the handler may wait for user input, which must not hold up a shared event loop
+        getSession().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Message reply;
+                try
+                {
+                    reply = message.createReply(type).withContent(buildContent(request));
+                }
+                catch (final Throwable t)
+                {
+                    getLogger().error("Stdin handler failed for message: {}", message, t);
+                    return;
+                }
+
+                eventLoop.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        sendReply(reply);
+                    }
+                });
+            }
+        });
+    }
+
+    private void sendReply(final Message reply)
+    {
+        try
+        {
+            getSession().send(this, reply);
+        }
+        catch (final IOException ioe)
+        {
+            getLogger().error("Failed to send reply: {}", reply, ioe);
+        }
     }
 
     private Reply buildContent(final Request request)
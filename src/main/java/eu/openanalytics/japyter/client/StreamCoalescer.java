@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.commons.lang3.Validate;
+
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+/**
+ * Merges consecutive stream messages with the same name and parent message ID into a single
+ * message, which is passed on when it reaches a maximum size, when its time window is over or
+ * when a message of another kind is received. Not thread safe: must be used by the routing thread
+ * only.
+ */
+final class StreamCoalescer
+{
+    interface MessageSink
+    {
+        void accept(Message message) throws IOException;
+    }
+
+    private final int maxChars;
+    private final long windowNanos;
+    private final MessageSink sink;
+
+    private Message pendingMessage;
+    private String pendingName;
+    private String pendingParentMsgId;
+    private StringBuilder pendingText;
+    private int pendingCount;
+    private long flushDeadlineNanos;
+
+    StreamCoalescer(final int maxChars, final long windowMillis, final MessageSink sink)
+    {
+        Validate.isTrue(maxChars > 0, "maxChars must be a positive integer");
+        Validate.isTrue(windowMillis >= 0, "windowMillis must be 0 or a positive integer");
+
+        this.maxChars = maxChars;
+        this.windowNanos = MILLISECONDS.toNanos(windowMillis);
+        this.sink = Validate.notNull(sink, "sink can't be null");
+    }
+
+    void offer(final Message message) throws IOException
+    {
+        if (!BroadcastType.STREAM.toString().equals(message.peekMsgType()))
+        {
+            flush();
+            sink.accept(message);
+            return;
+        }
+
+        final Stream stream = Codecs.readContent(message, Stream.class);
+        final String parentMsgId = message.peekParentMsgId();
+        final String text = Objects.toString(stream.getText(), "");
+
+        if (pendingMessage != null && Objects.equals(pendingName, stream.getName())
+            && Objects.equals(pendingParentMsgId, parentMsgId))
+        {
+            pendingText.append(text);
+            pendingCount++;
+            // only the pending message is passed on, the merged one is done with
+            message.release();
+        }
+        else
+        {
+            flush();
+
+            pendingMessage = message;
+            pendingName = stream.getName();
+            pendingParentMsgId = parentMsgId;
+            pendingText = new StringBuilder(text);
+            pendingCount = 1;
+            flushDeadlineNanos = System.nanoTime() + windowNanos;
+        }
+
+        if (pendingText.length() >= maxChars)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of milliseconds until pending stream output must be flushed, or -1 if
+     *         there is none.
+     */
+    long getMillisUntilFlush()
+    {
+        if (pendingMessage == null)
+        {
+            return -1L;
+        }
+
+        final long remainingNanos = flushDeadlineNanos - System.nanoTime();
+        return remainingNanos > 0 ? Math.max(1L, NANOSECONDS.toMillis(remainingNanos)) : 0L;
+    }
+
+    void flushIfDue() throws IOException
+    {
+        if (pendingMessage != null && flushDeadlineNanos - System.nanoTime() <= 0)
+        {
+            flush();
+        }
+    }
+
+    void flush() throws IOException
+    {
+        if (pendingMessage == null)
+        {
+            return;
+        }
+
+        final Message message = pendingMessage;
+
+        if (pendingCount > 1)
+        {
+            // the merged message is carried by the first one, whose signature doesn't apply anymore
+            message.withContent(new Stream().withName(pendingName).withText(pendingText.toString()))
+                .withHmacSignature(EMPTY_BYTE_ARRAY);
+        }
+
+        pendingMessage = null;
+        pendingText = null;
+
+        sink.accept(message);
+    }
+}
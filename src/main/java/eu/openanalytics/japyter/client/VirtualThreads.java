@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads when running on a Java runtime that supports them (21 or later). As this
+ * library is compiled for older runtimes, the virtual thread API is looked up reflectively.
+ */
+final class VirtualThreads
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class,
+        "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private VirtualThreads()
+    {
+        // utility class
+    }
+
+    static boolean isAvailable()
+    {
+        return OF_VIRTUAL != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return a factory of virtual threads named with the given prefix and a sequence number.
+     * @throws UnsupportedOperationException if virtual threads are not available.
+     */
+    static ThreadFactory newThreadFactory(final String namePrefix)
+    {
+        checkAvailable();
+
+        try
+        {
+            final Object builder = OF_VIRTUAL.invoke(null);
+            final Class<?> builderClass = OF_VIRTUAL.getReturnType();
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+        }
+        catch (final ReflectiveOperationException roe)
+        {
+            throw new UnsupportedOperationException("Failed to create a virtual thread factory", roe);
+        }
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread for each task.
+     * @throws UnsupportedOperationException if virtual threads are not available.
+     */
+    static ExecutorService newThreadPerTaskExecutor(final String namePrefix)
+    {
+        checkAvailable();
+
+        try
+        {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newThreadFactory(namePrefix));
+        }
+        catch (final ReflectiveOperationException roe)
+        {
+            throw new UnsupportedOperationException("Failed to create a virtual thread executor", roe);
+        }
+    }
+
+    private static void checkAvailable()
+    {
+        if (!isAvailable())
+        {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running: "
+                                                    + System.getProperty("java.version"));
+        }
+    }
+
+    private static Method findMethod(final Class<?> type, final String name, final Class<?>... parameterTypes)
+    {
+        try
+        {
+            return type.getMethod(name, parameterTypes);
+        }
+        catch (final NoSuchMethodException nsme)
+        {
+            LOGGER.debug("{}.{} not found, virtual threads are not available", type.getSimpleName(), name);
+            return null;
+        }
+    }
+}
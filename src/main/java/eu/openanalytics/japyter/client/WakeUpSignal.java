@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
+
+import java.io.Closeable;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * Wakes up a thread blocked in a ZeroMQ {@link Poller}, through an inproc socket pair.
+ */
+final class WakeUpSignal implements Closeable
+{
+    private final ZContext zmqContext;
+    private final Socket receiver;
+    private final Socket sender;
+    private final AtomicBoolean pending;
+    private boolean closed;
+
+    WakeUpSignal(final ZContext zmqContext)
+    {
+        this.zmqContext = zmqContext;
+
+        final String endpoint = "inproc://japyter-wake-up-" + UUID.randomUUID();
+
+        // inproc requires bind before connect
+        receiver = zmqContext.createSocket(ZMQ.PULL);
+        receiver.setLinger(0L);
+        receiver.bind(endpoint);
+        sender = zmqContext.createSocket(ZMQ.PUSH);
+        sender.setLinger(0L);
+        sender.connect(endpoint);
+
+        pending = new AtomicBoolean(false);
+    }
+
+    int register(final Poller poller)
+    {
+        return poller.register(receiver, Poller.POLLIN);
+    }
+
+    /**
+     * Wakes up the polling thread, can be called from any thread.
+     */
+    void signal()
+    {
+        if (pending.compareAndSet(false, true))
+        {
+            synchronized (sender)
+            {
+                if (!closed)
+                {
+                    sender.send(EMPTY_BYTE_ARRAY, ZMQ.DONTWAIT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes pending signals, from the polling thread before it does the work it was woken for.
+     */
+    void clear()
+    {
+        pending.set(false);
+
+        while (receiver.recv(ZMQ.DONTWAIT) != null)
+        {
+            // drain
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (sender)
+        {
+            closed = true;
+            zmqContext.destroySocket(sender);
+        }
+        zmqContext.destroySocket(receiver);
+    }
+}
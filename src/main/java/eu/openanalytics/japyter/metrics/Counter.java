@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts occurrences of an event, like a gap detected in the outputs of executions.
+ */
+public final class Counter implements CounterMXBean
+{
+    private final AtomicLong count = new AtomicLong();
+
+    void increment()
+    {
+        count.incrementAndGet();
+    }
+
+    @Override
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Counter[count=" + count.get() + "]";
+    }
+}
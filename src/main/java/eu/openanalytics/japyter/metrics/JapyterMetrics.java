@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates measurements in memory: message and byte counts per channel and message type,
+ * latency histograms of each codec stage, of replies per channel and request type, and of listener
+ * dispatch per channel and message type, and counts of the gaps found in execution outputs per
+ * kind of gap. Optionally, each of these is exposed as an MXBean, under
+ * the {@value #JMX_DOMAIN} domain.
+ */
+public final class JapyterMetrics implements MetricsRegistry, Closeable
+{
+    public static final String JMX_DOMAIN = "eu.openanalytics.japyter";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JapyterMetrics.class);
+    private static final String KEY_SEPARATOR = "/";
+    private static final String UNKNOWN = "unknown";
+    private static final String JMX_SPECIAL_CHARACTERS = ",=:\"*?";
+
+    private final ConcurrentMap<String, MessageTraffic> traffic;
+    private final Map<CodecStage, LatencyHistogram> codecTimes;
+    private final ConcurrentMap<String, LatencyHistogram> replyLatencies;
+    private final ConcurrentMap<String, LatencyHistogram> dispatchTimes;
+    private final ConcurrentMap<String, Counter> outputGaps;
+
+    // guarded by this
+    private MBeanServer mbeanServer;
+    private String registryName;
+    private final List<ObjectName> registeredNames;
+
+    public JapyterMetrics()
+    {
+        traffic = new ConcurrentHashMap<>();
+        replyLatencies = new ConcurrentHashMap<>();
+        dispatchTimes = new ConcurrentHashMap<>();
+        outputGaps = new ConcurrentHashMap<>();
+
+        // all stages are present upfront so the map is never structurally modified after construction
+        codecTimes = new EnumMap<>(CodecStage.class);
+        for (final CodecStage stage : CodecStage.values())
+        {
+            codecTimes.put(stage, new LatencyHistogram());
+        }
+
+        registeredNames = new ArrayList<>();
+    }
+
+    @Override
+    public void messageSent(final String channel, final String msgType, final long bytes)
+    {
+        getOrCreateTraffic(channel, msgType).sent(bytes);
+    }
+
+    @Override
+    public void messageReceived(final String channel, final String msgType, final long bytes)
+    {
+        getOrCreateTraffic(channel, msgType).received(bytes);
+    }
+
+    @Override
+    public void codecTimed(final CodecStage stage, final long nanos)
+    {
+        codecTimes.get(stage).recordNanos(nanos);
+    }
+
+    @Override
+    public void replyReceived(final String channel, final String requestMsgType, final long latencyNanos)
+    {
+        getOrCreateHistogram(replyLatencies, "ReplyLatency", channel, requestMsgType).recordNanos(latencyNanos);
+    }
+
+    @Override
+    public void listenersDispatched(final String channel, final String msgType, final long nanos)
+    {
+        getOrCreateHistogram(dispatchTimes, "ListenerDispatch", channel, msgType).recordNanos(nanos);
+    }
+
+    @Override
+    public void outputGapDetected(final String gap)
+    {
+        getOrCreateOutputGapCount(gap).increment();
+    }
+
+    /**
+     * @return the traffic of a message type over a channel, or null if there has been none.
+     */
+    public MessageTraffic getTraffic(final String channel, final String msgType)
+    {
+        return traffic.get(key(channel, msgType));
+    }
+
+    /**
+     * @return the traffic of all channels, keyed by channel and message type separated by a slash.
+     */
+    public Map<String, MessageTraffic> getTraffic()
+    {
+        return Collections.unmodifiableMap(new TreeMap<>(traffic));
+    }
+
+    public LatencyHistogram getCodecTime(final CodecStage stage)
+    {
+        return codecTimes.get(Validate.notNull(stage, "stage can't be null"));
+    }
+
+    /**
+     * @return the reply latencies of a request type sent over a channel, or null if no reply has
+     *         been received.
+     */
+    public LatencyHistogram getReplyLatency(final String channel, final String requestMsgType)
+    {
+        return replyLatencies.get(key(channel, requestMsgType));
+    }
+
+    /**
+     * @return the times spent dispatching a message type to the listeners of a channel, or null if
+     *         none has been dispatched.
+     */
+    public LatencyHistogram getListenerDispatchTime(final String channel, final String msgType)
+    {
+        return dispatchTimes.get(key(channel, msgType));
+    }
+
+    /**
+     * @return the number of times a kind of gap has been found in execution outputs, or null if it
+     *         never has.
+     */
+    public Counter getOutputGapCount(final String gap)
+    {
+        return outputGaps.get(gap);
+    }
+
+    /**
+     * Registers an MXBean for every metric, current and future, with a JMX server. The
+     * <code>registryName</code> distinguishes the metrics of different registries registered with
+     * the same server.
+     */
+    public synchronized void registerMBeans(final MBeanServer server, final String registryName)
+    {
+        Validate.validState(mbeanServer == null, "MBeans are already registered");
+
+        this.mbeanServer = Validate.notNull(server, "server can't be null");
+        this.registryName = Validate.notBlank(registryName, "registryName can't be empty");
+
+        for (final Entry<CodecStage, LatencyHistogram> codecTime : codecTimes.entrySet())
+        {
+            final Hashtable<String, String> properties = new Hashtable<>();
+            properties.put("type", "Codec");
+            properties.put("stage", codecTime.getKey().name());
+            registerMBean(properties, codecTime.getValue());
+        }
+        for (final Entry<String, MessageTraffic> messageTraffic : traffic.entrySet())
+        {
+            registerMBean("Traffic", messageTraffic.getKey(), messageTraffic.getValue());
+        }
+        for (final Entry<String, LatencyHistogram> replyLatency : replyLatencies.entrySet())
+        {
+            registerMBean("ReplyLatency", replyLatency.getKey(), replyLatency.getValue());
+        }
+        for (final Entry<String, LatencyHistogram> dispatchTime : dispatchTimes.entrySet())
+        {
+            registerMBean("ListenerDispatch", dispatchTime.getKey(), dispatchTime.getValue());
+        }
+        for (final Entry<String, Counter> outputGap : outputGaps.entrySet())
+        {
+            registerMBean(outputGapProperties(outputGap.getKey()), outputGap.getValue());
+        }
+    }
+
+    public synchronized void unregisterMBeans()
+    {
+        if (mbeanServer == null)
+        {
+            return;
+        }
+
+        for (final ObjectName name : registeredNames)
+        {
+            try
+            {
+                mbeanServer.unregisterMBean(name);
+            }
+            catch (final JMException jme)
+            {
+                LOGGER.warn("Failed to unregister MBean: {}", name, jme);
+            }
+        }
+
+        registeredNames.clear();
+        mbeanServer = null;
+    }
+
+    /**
+     * Unregisters the MBeans, if any.
+     */
+    @Override
+    public void close()
+    {
+        unregisterMBeans();
+    }
+
+    private MessageTraffic getOrCreateTraffic(final String channel, final String msgType)
+    {
+        final String key = key(channel, msgType);
+        final MessageTraffic existingTraffic = traffic.get(key);
+        if (existingTraffic != null)
+        {
+            return existingTraffic;
+        }
+
+        final MessageTraffic newTraffic = new MessageTraffic();
+        final MessageTraffic raceTraffic = traffic.putIfAbsent(key, newTraffic);
+        if (raceTraffic != null)
+        {
+            return raceTraffic;
+        }
+
+        registerNewMBean("Traffic", key, newTraffic);
+        return newTraffic;
+    }
+
+    private LatencyHistogram getOrCreateHistogram(final ConcurrentMap<String, LatencyHistogram> histograms,
+                                                  final String type,
+                                                  final String channel,
+                                                  final String msgType)
+    {
+        final String key = key(channel, msgType);
+        final LatencyHistogram existingHistogram = histograms.get(key);
+        if (existingHistogram != null)
+        {
+            return existingHistogram;
+        }
+
+        final LatencyHistogram newHistogram = new LatencyHistogram();
+        final LatencyHistogram raceHistogram = histograms.putIfAbsent(key, newHistogram);
+        if (raceHistogram != null)
+        {
+            return raceHistogram;
+        }
+
+        registerNewMBean(type, key, newHistogram);
+        return newHistogram;
+    }
+
+    private Counter getOrCreateOutputGapCount(final String gap)
+    {
+        final String key = StringUtils.defaultIfEmpty(gap, UNKNOWN);
+        final Counter existingCounter = outputGaps.get(key);
+        if (existingCounter != null)
+        {
+            return existingCounter;
+        }
+
+        final Counter newCounter = new Counter();
+        final Counter raceCounter = outputGaps.putIfAbsent(key, newCounter);
+        if (raceCounter != null)
+        {
+            return raceCounter;
+        }
+
+        registerNewMBean(outputGapProperties(key), newCounter);
+        return newCounter;
+    }
+
+    private synchronized void registerNewMBean(final Hashtable<String, String> properties, final Object mbean)
+    {
+        if (mbeanServer != null)
+        {
+            registerMBean(properties, mbean);
+        }
+    }
+
+    private synchronized void registerNewMBean(final String type, final String key, final Object mbean)
+    {
+        if (mbeanServer != null)
+        {
+            registerMBean(type, key, mbean);
+        }
+    }
+
+    private void registerMBean(final String type, final String key, final Object mbean)
+    {
+        final Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", type);
+        properties.put("channel", quoteIfNeeded(StringUtils.substringBefore(key, KEY_SEPARATOR)));
+        properties.put("msgType", quoteIfNeeded(StringUtils.substringAfter(key, KEY_SEPARATOR)));
+        registerMBean(properties, mbean);
+    }
+
+    private void registerMBean(final Hashtable<String, String> properties, final Object mbean)
+    {
+        properties.put("registry", quoteIfNeeded(registryName));
+
+        try
+        {
+            final ObjectName name = new ObjectName(JMX_DOMAIN, properties);
+            if (registeredNames.contains(name))
+            {
+                // created while all MBeans were being registered
+                return;
+            }
+
+            mbeanServer.registerMBean(mbean, name);
+            registeredNames.add(name);
+        }
+        catch (final JMException jme)
+        {
+            LOGGER.warn("Failed to register MBean with properties: {}", properties, jme);
+        }
+    }
+
+    private static Hashtable<String, String> outputGapProperties(final String gap)
+    {
+        final Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "OutputGap");
+        properties.put("gap", quoteIfNeeded(gap));
+        return properties;
+    }
+
+    private static String quoteIfNeeded(final String value)
+    {
+        return StringUtils.containsAny(value, JMX_SPECIAL_CHARACTERS) ? ObjectName.quote(value) : value;
+    }
+
+    private static String key(final String channel, final String msgType)
+    {
+        return StringUtils.defaultIfEmpty(channel, UNKNOWN) + KEY_SEPARATOR
+               + StringUtils.defaultIfEmpty(msgType, UNKNOWN);
+    }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Records latencies in microseconds into exponential buckets, lock-free and in constant memory.
+ */
+public final class LatencyHistogram implements LatencyMXBean
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong totalMicros;
+    private final AtomicLong maxMicros;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        totalCount = new AtomicLong();
+        totalMicros = new AtomicLong();
+        maxMicros = new AtomicLong();
+    }
+
+    public void record(final long duration, final TimeUnit unit)
+    {
+        final long micros = Math.max(0L, unit.toMicros(duration));
+
+        counts.incrementAndGet(bucketIndex(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max;
+        while ((max = maxMicros.get()) < micros && !maxMicros.compareAndSet(max, micros))
+        {
+            // retry until max is updated or superseded
+        }
+    }
+
+    public void recordNanos(final long nanos)
+    {
+        record(nanos, NANOSECONDS);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    @Override
+    public long getMaxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    @Override
+    public double getMeanMicros()
+    {
+        final long count = totalCount.get();
+        return count == 0 ? 0.0 : (double) totalMicros.get() / count;
+    }
+
+    @Override
+    public long getP50Micros()
+    {
+        return getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getP99Micros()
+    {
+        return getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getP999Micros()
+    {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound, in microseconds, of the bucket of the percentile, 0 if empty.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        Validate.isTrue(percentile >= 0.0 && percentile <= 100.0, "percentile must be between 0 and 100");
+
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            count += counts.get(i);
+        }
+        if (count == 0L)
+        {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public long getValueAtPercentile(final double percentile, final TimeUnit unit)
+    {
+        return unit.convert(getValueAtPercentile(percentile), MICROSECONDS);
+    }
+
+    @Override
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts.set(i, 0L);
+        }
+        totalCount.set(0L);
+        totalMicros.set(0L);
+        maxMicros.set(0L);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append("count", getCount())
+            .append("meanMicros", Math.round(getMeanMicros()))
+            .append("p50Micros", getP50Micros())
+            .append("p99Micros", getP99Micros())
+            .append("p999Micros", getP999Micros())
+            .append("maxMicros", getMaxMicros())
+            .toString();
+    }
+
+    static int bucketIndex(final long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) micros;
+        }
+
+        // the position of the highest bit selects the power of two, the next bits the sub-bucket
+        final int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        final int subBucket = (int) (micros >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(final int index)
+    {
+        final int magnitude = index / SUB_BUCKETS;
+        final long subBucket = index % SUB_BUCKETS;
+
+        if (magnitude == 0)
+        {
+            return subBucket;
+        }
+
+        final long lowerBound = (SUB_BUCKETS + subBucket) << (magnitude - 1);
+        return lowerBound + (1L << (magnitude - 1)) - 1;
+    }
+}
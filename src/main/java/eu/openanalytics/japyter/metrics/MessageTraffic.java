@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Counts the messages, and their bytes, of one type sent and received over one channel.
+ */
+public final class MessageTraffic implements MessageTrafficMXBean
+{
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    void sent(final long bytes)
+    {
+        sentCount.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+    }
+
+    void received(final long bytes)
+    {
+        receivedCount.incrementAndGet();
+        receivedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public long getSentCount()
+    {
+        return sentCount.get();
+    }
+
+    @Override
+    public long getSentBytes()
+    {
+        return sentBytes.get();
+    }
+
+    @Override
+    public long getReceivedCount()
+    {
+        return receivedCount.get();
+    }
+
+    @Override
+    public long getReceivedBytes()
+    {
+        return receivedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+}
@@ -0,0 +1,23 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+/**
+ * JMX view of a {@link MessageTraffic}.
+ */
+public interface MessageTrafficMXBean
+{
+    long getSentCount();
+
+    long getSentBytes();
+
+    long getReceivedCount();
+
+    long getReceivedBytes();
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+/**
+ * Receives the measurements taken by the client, to be aggregated by an implementation like
+ * {@link JapyterMetrics} or bridged to any metrics library. Methods are called from channel event
+ * loops and worker threads, so they must be thread-safe and fast. Channels are identified by
+ * name, for example <code>Shell</code> or <code>IoPub</code>, and messages by their
+ * <code>msg_type</code>.
+ */
+public interface MetricsRegistry
+{
+    /**
+     * The steps of encoding and decoding messages that are timed.
+     */
+    enum CodecStage
+    {
+        /** Writing the JSON frames of an outgoing message. */
+        SERIALIZATION,
+        /** Computing the HMAC signature of an outgoing message. */
+        SIGNING,
+        /** Checking the HMAC signature of an incoming message. */
+        VERIFICATION,
+        /** Binding the content of an incoming message to its typed class. */
+        DESERIALIZATION
+    }
+
+    /**
+     * A registry that ignores everything, used unless another one is configured so that no time is
+     * spent measuring.
+     */
+    MetricsRegistry NOOP = new MetricsRegistry()
+    {
+        @Override
+        public void messageSent(final String channel, final String msgType, final long bytes)
+        {
+            // ignored
+        }
+
+        @Override
+        public void messageReceived(final String channel, final String msgType, final long bytes)
+        {
+            // ignored
+        }
+
+        @Override
+        public void codecTimed(final CodecStage stage, final long nanos)
+        {
+            // ignored
+        }
+
+        @Override
+        public void replyReceived(final String channel, final String requestMsgType, final long latencyNanos)
+        {
+            // ignored
+        }
+
+        @Override
+        public void listenersDispatched(final String channel, final String msgType, final long nanos)
+        {
+            // ignored
+        }
+
+        @Override
+        public void outputGapDetected(final String gap)
+        {
+            // ignored
+        }
+    };
+
+    void messageSent(String channel, String msgType, long bytes);
+
+    void messageReceived(String channel, String msgType, long bytes);
+
+    void codecTimed(CodecStage stage, long nanos);
+
+    /**
+     * @param latencyNanos the time between sending a request and receiving its reply, which
+     *            includes the time spent by the kernel and on the network, but not decoding the
+     *            reply content.
+     */
+    void replyReceived(String channel, String requestMsgType, long latencyNanos);
+
+    /**
+     * @param nanos the time spent by the listeners of a channel handling a message, including
+     *            decoding its content for them.
+     */
+    void listenersDispatched(String channel, String msgType, long nanos);
+
+    /**
+     * @param gap the kind of gap found in the outputs of an execution, for example
+     *            <code>MISSING_IDLE_STATUS</code>, as IoPub drops messages silently when a
+     *            subscriber doesn't keep up.
+     */
+    void outputGapDetected(String gap);
+}
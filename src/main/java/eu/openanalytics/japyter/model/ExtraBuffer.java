@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.model;
+
+import static org.apache.commons.lang3.Validate.notNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary frame following the content of a message, held on the heap, in direct memory or in
+ * a mapped file. Consumers that keep it {@link #retain()} it, the last release frees it.
+ */
+public final class ExtraBuffer
+{
+    public enum Storage
+    {
+        HEAP, DIRECT, MAPPED
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExtraBuffer.class);
+    private static final String SPILL_FILE_PREFIX = "japyter-buffer-";
+
+    // Java 9 and later free direct memory with Unsafe.invokeCleaner, older versions with the cleaner
+    // of the buffer itself
+    private static final Object UNSAFE = findUnsafe();
+    private static final Method INVOKE_CLEANER = findMethod(UNSAFE, "invokeCleaner", ByteBuffer.class);
+
+    private final ByteBuffer buffer;
+    private final Storage storage;
+    private final File spillFile;
+    private final AtomicInteger referenceCount;
+
+    private ExtraBuffer(final ByteBuffer buffer, final Storage storage, final File spillFile)
+    {
+        this.buffer = buffer;
+        this.storage = storage;
+        this.spillFile = spillFile;
+        referenceCount = new AtomicInteger(1);
+    }
+
+    /**
+     * Wraps an array, which must not be modified afterwards, in a heap buffer.
+     */
+    public static ExtraBuffer wrap(final byte[] bytes)
+    {
+        return new ExtraBuffer(ByteBuffer.wrap(notNull(bytes, "bytes can't be null")), Storage.HEAP, null);
+    }
+
+    /**
+     * @return a copy of this buffer in direct memory.
+     */
+    public ExtraBuffer toDirect()
+    {
+        final ByteBuffer source = asReadOnlyBuffer();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(source.remaining());
+        direct.put(source).flip();
+        return new ExtraBuffer(direct, Storage.DIRECT, null);
+    }
+
+    /**
+     * @return a read-only copy of this buffer in a memory-mapped temporary file.
+     */
+    public ExtraBuffer spillTo(final File directory) throws IOException
+    {
+        final ByteBuffer source = asReadOnlyBuffer();
+        final File file = File.createTempFile(SPILL_FILE_PREFIX, ".bin", directory);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel())
+        {
+            while (source.hasRemaining())
+            {
+                channel.write(source);
+            }
+
+            // the mapping stays valid once the channel is closed
+            final MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0L, channel.size());
+
+            if (file.delete())
+            {
+                return new ExtraBuffer(mapped, Storage.MAPPED, null);
+            }
+
+            file.deleteOnExit();
+            return new ExtraBuffer(mapped, Storage.MAPPED, file);
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            if (!file.delete())
+            {
+                file.deleteOnExit();
+            }
+            throw e;
+        }
+    }
+
+    public Storage getStorage()
+    {
+        return storage;
+    }
+
+    public int size()
+    {
+        return buffer.capacity();
+    }
+
+    public boolean isReleased()
+    {
+        return referenceCount.get() == 0;
+    }
+
+    public int getReferenceCount()
+    {
+        return referenceCount.get();
+    }
+
+    /**
+     * Adds a reference to this buffer, to be given up by a matching {@link #release()}.
+     *
+     * @throws IllegalStateException if this buffer has been released.
+     */
+    public ExtraBuffer retain()
+    {
+        int current;
+        do
+        {
+            current = referenceCount.get();
+            if (current == 0)
+            {
+                throw new IllegalStateException("Buffer has been released");
+            }
+        }
+        while (!referenceCount.compareAndSet(current, current + 1));
+
+        return this;
+    }
+
+    /**
+     * @return a read-only view of the whole buffer, not to be used once released.
+     * @throws IllegalStateException if this buffer has been released.
+     */
+    public ByteBuffer asReadOnlyBuffer()
+    {
+        checkNotReleased();
+
+        final ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return the array of a heap buffer, not to be modified, or a copy of an off-heap one.
+     * @throws IllegalStateException if this buffer has been released.
+     */
+    public byte[] toByteArray()
+    {
+        checkNotReleased();
+
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.capacity())
+        {
+            return buffer.array();
+        }
+
+        final byte[] bytes = new byte[size()];
+        asReadOnlyBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gives up a reference, freeing off-heap memory with the last one. No effect once freed.
+     *
+     * @return true if this call released the last reference.
+     */
+    public boolean release()
+    {
+        int current;
+        do
+        {
+            current = referenceCount.get();
+            if (current == 0)
+            {
+                return false;
+            }
+        }
+        while (!referenceCount.compareAndSet(current, current - 1));
+
+        if (current > 1)
+        {
+            return false;
+        }
+
+        if (storage != Storage.HEAP)
+        {
+            freeMemory();
+        }
+        return true;
+    }
+
+    private void freeMemory()
+    {
+        free(buffer);
+
+        if (spillFile != null && !spillFile.delete())
+        {
+            LOGGER.warn("Failed to delete spilled buffer file: {}", spillFile);
+        }
+    }
+
+    private void checkNotReleased()
+    {
+        if (isReleased())
+        {
+            throw new IllegalStateException("Buffer has been released");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ExtraBuffer [storage=" + storage + ", size=" + size() + ", released=" + isReleased() + "]";
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (obj == this)
+        {
+            return true;
+        }
+        if (!(obj instanceof ExtraBuffer))
+        {
+            return false;
+        }
+
+        final ExtraBuffer other = (ExtraBuffer) obj;
+
+        // released buffers may no longer be read
+        return !isReleased() && !other.isReleased() && asReadOnlyBuffer().equals(other.asReadOnlyBuffer());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return isReleased() ? System.identityHashCode(this) : asReadOnlyBuffer().hashCode();
+    }
+
+    private static void free(final ByteBuffer buffer)
+    {
+        try
+        {
+            if (INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+            {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (final ReflectiveOperationException | RuntimeException e)
+        {
+            LOGGER.debug("Failed to free buffer memory, leaving it to the garbage collector", e);
+        }
+    }
+
+    private static Object findUnsafe()
+    {
+        try
+        {
+            final Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return theUnsafe.get(null);
+        }
+        catch (final ReflectiveOperationException | RuntimeException e)
+        {
+            LOGGER.debug("sun.misc.Unsafe not available", e);
+            return null;
+        }
+    }
+
+    private static Method findMethod(final Object target, final String name, final Class<?>... parameterTypes)
+    {
+        if (target == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return target.getClass().getMethod(name, parameterTypes);
+        }
+        catch (final NoSuchMethodException nsme)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A string entry of a MIME bundle left undecoded in the raw JSON content of its message, which
+ * it reads from on demand: streams decode the JSON escapes, and the base64 encoding of binary
+ * types, as they are read.
+ */
+public final class LazyMimeValue
+{
+    /**
+     * Unescapes a JSON string, quotes excluded, to its UTF-8 bytes.
+     */
+    private static final class JsonStringInputStream extends InputStream
+    {
+        private final byte[] json;
+        private final int end;
+        private final byte[] pending = new byte[4];
+        private int position;
+        private int pendingStart, pendingEnd;
+
+        private JsonStringInputStream(final byte[] json, final int start, final int end)
+        {
+            this.json = json;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (pendingStart < pendingEnd)
+            {
+                return pending[pendingStart++] & 0xFF;
+            }
+
+            if (position >= end)
+            {
+                return -1;
+            }
+
+            final byte b = json[position];
+            if (b != '\\')
+            {
+                position++;
+                return b & 0xFF;
+            }
+
+            unescape();
+            return pending[pendingStart++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            if (length == 0)
+            {
+                return 0;
+            }
+
+            int count = 0;
+
+            while (count < length)
+            {
+                if (pendingStart < pendingEnd)
+                {
+                    buffer[offset + count++] = pending[pendingStart++];
+                    continue;
+                }
+
+                if (position >= end)
+                {
+                    break;
+                }
+
+                // copies the run up to the next escape in one go
+                int runEnd = position;
+                final int maxRunEnd = Math.min(end, position + length - count);
+                while (runEnd < maxRunEnd && json[runEnd] != '\\')
+                {
+                    runEnd++;
+                }
+
+                if (runEnd > position)
+                {
+                    System.arraycopy(json, position, buffer, offset + count, runEnd - position);
+                    count += runEnd - position;
+                    position = runEnd;
+                }
+                else
+                {
+                    unescape();
+                }
+            }
+
+            return count > 0 ? count : -1;
+        }
+
+        private void unescape() throws IOException
+        {
+            if (position + 1 >= end)
+            {
+                throw new IOException("Truncated escape sequence in JSON string");
+            }
+
+            final byte escaped = json[position + 1];
+            position += 2;
+
+            switch (escaped)
+            {
+                case 'b' :
+                    pend('\b');
+                    break;
+                case 'f' :
+                    pend('\f');
+                    break;
+                case 'n' :
+                    pend('\n');
+                    break;
+                case 'r' :
+                    pend('\r');
+                    break;
+                case 't' :
+                    pend('\t');
+                    break;
+                case 'u' :
+                    pend(readCodePoint());
+                    break;
+                default :
+                    // quote, backslash and slash stand for themselves
+                    pend(escaped);
+                    break;
+            }
+        }
+
+        private int readCodePoint() throws IOException
+        {
+            final char high = readHexChar();
+
+            if (Character.isHighSurrogate(high) && position + 1 < end && json[position] == '\\'
+                && json[position + 1] == 'u')
+            {
+                position += 2;
+                final char low = readHexChar();
+                if (Character.isLowSurrogate(low))
+                {
+                    return Character.toCodePoint(high, low);
+                }
+
+                throw new IOException("Unpaired surrogate in JSON string");
+            }
+
+            return high;
+        }
+
+        private char readHexChar() throws IOException
+        {
+            if (position + 4 > end)
+            {
+                throw new IOException("Truncated unicode escape in JSON string");
+            }
+
+            try
+            {
+                final char c = (char) Integer.parseInt(new String(json, position, 4, StandardCharsets.US_ASCII), 16);
+                position += 4;
+                return c;
+            }
+            catch (final NumberFormatException nfe)
+            {
+                throw new IOException("Invalid unicode escape in JSON string", nfe);
+            }
+        }
+
+        private void pend(final int codePoint)
+        {
+            pendingStart = 0;
+
+            if (codePoint < 0x80)
+            {
+                pending[0] = (byte) codePoint;
+                pendingEnd = 1;
+            }
+            else if (codePoint < 0x800)
+            {
+                pending[0] = (byte) (0xC0 | codePoint >> 6);
+                pending[1] = (byte) (0x80 | codePoint & 0x3F);
+                pendingEnd = 2;
+            }
+            else if (codePoint < 0x10000)
+            {
+                pending[0] = (byte) (0xE0 | codePoint >> 12);
+                pending[1] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                pending[2] = (byte) (0x80 | codePoint & 0x3F);
+                pendingEnd = 3;
+            }
+            else
+            {
+                pending[0] = (byte) (0xF0 | codePoint >> 18);
+                pending[1] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                pending[2] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                pending[3] = (byte) (0x80 | codePoint & 0x3F);
+                pendingEnd = 4;
+            }
+        }
+    }
+
+    private final String mimeType;
+    private final byte[] rawContent;
+    private final int start, end;
+
+    /**
+     * @param rawContent the raw JSON content of the message.
+     * @param start the index of the first byte of the string value, after its opening quote.
+     * @param end the index of its closing quote.
+     */
+    public LazyMimeValue(final String mimeType, final byte[] rawContent, final int start, final int end)
+    {
+        Validate.notNull(mimeType, "mimeType can't be null");
+        Validate.notNull(rawContent, "rawContent can't be null");
+        Validate.isTrue(0 <= start && start <= end && end <= rawContent.length, "invalid value bounds");
+
+        this.mimeType = mimeType;
+        this.rawContent = rawContent;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    /**
+     * @return the size of the value as encoded in the JSON content, in bytes.
+     */
+    public int getEncodedLength()
+    {
+        return end - start;
+    }
+
+    /**
+     * @return true if the value is the base64 encoding of binary data, like Jupyter does for all
+     *         types but text, JSON, XML and JavaScript.
+     */
+    public boolean isBase64Encoded()
+    {
+        return !(mimeType.startsWith("text/") || mimeType.endsWith("json") || mimeType.endsWith("+xml")
+                 || mimeType.equals("application/javascript"));
+    }
+
+    /**
+     * @return a stream of the decoded data: the binary data of base64 encoded types, the UTF-8 text
+     *         of the others.
+     */
+    public InputStream openStream()
+    {
+        final InputStream text = openTextStream();
+        return isBase64Encoded() ? new Base64InputStream(text) : text;
+    }
+
+    /**
+     * @return a stream of the UTF-8 bytes of the string value, still base64 encoded for binary
+     *         types.
+     */
+    public InputStream openTextStream()
+    {
+        return new JsonStringInputStream(rawContent, start, end);
+    }
+
+    /**
+     * @return the string value, as it would have been decoded eagerly.
+     */
+    public String getText() throws IOException
+    {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream(getEncodedLength());
+        final byte[] buffer = new byte[8192];
+
+        try (InputStream in = openTextStream())
+        {
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                text.write(buffer, 0, count);
+            }
+        }
+
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LazyMimeValue [mimeType=" + mimeType + ", encodedLength=" + getEncodedLength() + "]";
+    }
+}
@@ -11,26 +11,109 @@ package eu.openanalytics.japyter.model;
 import static java.util.UUID.randomUUID;
 import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
 import static org.apache.commons.lang3.Validate.notNull;
-import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
-import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
-import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
 
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
 import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.Protocol;
 import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.model.gen.Broadcast;
 import eu.openanalytics.japyter.model.gen.Header;
 import eu.openanalytics.japyter.model.gen.Reply;
 import eu.openanalytics.japyter.model.gen.Request;
 
+/**
+ * A Jupyter message, whose received frames are only decoded on first access.
+ */
 public class Message
 {
-    private final List<byte[]> zmqIdentities, extraData;
+    /**
+     * Thrown when a frame of a received message can't be decoded on first access.
+     */
+    public static final class DecodingException extends IllegalStateException
+    {
+        private static final long serialVersionUID = 1L;
+
+        DecodingException(final String message, final IOException cause)
+        {
+            super(message, cause);
+        }
+
+        @Override
+        public synchronized IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+
+        public IOException toIOException()
+        {
+            return new IOException(getMessage(), getCause());
+        }
+    }
+
+    /**
+     * A view of the extra buffers as arrays, which writes through to them.
+     */
+    private final class ExtraDataView extends AbstractList<byte[]>
+    {
+        @Override
+        public byte[] get(final int index)
+        {
+            return extraBuffers.get(index).toByteArray();
+        }
+
+        @Override
+        public byte[] set(final int index, final byte[] extraDatum)
+        {
+            return extraBuffers.set(index, wrap(extraDatum)).toByteArray();
+        }
+
+        @Override
+        public void add(final int index, final byte[] extraDatum)
+        {
+            extraBuffers.add(index, wrap(extraDatum));
+        }
+
+        @Override
+        public byte[] remove(final int index)
+        {
+            return extraBuffers.remove(index).toByteArray();
+        }
+
+        @Override
+        public int size()
+        {
+            return extraBuffers.size();
+        }
+
+        private ExtraBuffer wrap(final byte[] extraDatum)
+        {
+            return ExtraBuffer.wrap(notNull(extraDatum, "extraDatum can't be null"));
+        }
+    }
+
+    private static final String MSG_ID_FIELD = "msg_id";
+    private static final String MSG_TYPE_FIELD = "msg_type";
+
+    private final List<byte[]> zmqIdentities;
+    private final List<ExtraBuffer> extraBuffers;
+    private final List<byte[]> extraData;
     private byte[] hmacSignature;
+    private byte[] rawHeader, rawParentHeader, rawMetadata, rawContent;
     private Map<String, Object> metadata, content;
+    private Object typedContent;
     private Header header, parentHeader;
 
     /**
@@ -40,11 +123,8 @@ public class Message
     {
         zmqIdentities = new ArrayList<>();
         hmacSignature = EMPTY_BYTE_ARRAY;
-        header = new Header();
-        parentHeader = new Header();
-        metadata = new HashMap<>();
-        content = new HashMap<>();
-        extraData = new ArrayList<>();
+        extraBuffers = new ArrayList<>();
+        extraData = new ExtraDataView();
     }
 
     /**
@@ -86,51 +166,116 @@ public class Message
         return this;
     }
 
-    public Message withHeader(final Header header)
+    public synchronized Message withHeader(final Header header)
     {
         this.header = notNull(header, "header can't be null");
+        rawHeader = null;
         return this;
     }
 
-    public Message withParentHeader(final Header parentHeader)
+    public synchronized Message withParentHeader(final Header parentHeader)
     {
         this.parentHeader = notNull(parentHeader, "parentHeader can't be null");
+        rawParentHeader = null;
         return this;
     }
 
-    public Message withMetadata(final Map<String, Object> metadata)
+    public synchronized Message withMetadata(final Map<String, Object> metadata)
     {
         this.metadata = notNull(metadata, "metadata can't be null");
+        rawMetadata = null;
         return this;
     }
 
-    public Message withContent(final Map<String, Object> content)
+    public synchronized Message withContent(final Map<String, Object> content)
     {
         this.content = notNull(content, "content can't be null");
+        rawContent = null;
+        typedContent = null;
         return this;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Sets typed content, only converted to a {@link Map} by {@link #getContent()}.
+     */
     public Message withContent(final Request content)
     {
-        this.content = Japyter.JSON_OBJECT_MAPPER.convertValue(notNull(content, "content can't be null"),
-            Map.class);
+        return withTypedContent(notNull(content, "content can't be null"));
+    }
+
+    /**
+     * Sets typed content, only converted to a {@link Map} by {@link #getContent()}.
+     */
+    public Message withContent(final Reply content)
+    {
+        return withTypedContent(notNull(content, "content can't be null"));
+    }
 
+    /**
+     * Sets typed content, only converted to a {@link Map} by {@link #getContent()}.
+     */
+    public Message withContent(final Broadcast content)
+    {
+        return withTypedContent(notNull(content, "content can't be null"));
+    }
+
+    private synchronized Message withTypedContent(final Object typedContent)
+    {
+        this.typedContent = typedContent;
+        content = null;
+        rawContent = null;
         return this;
     }
 
-    @SuppressWarnings("unchecked")
-    public Message withContent(final Reply content)
+    /**
+     * Sets the raw JSON of the header, which will be decoded on first access.
+     */
+    public synchronized Message withRawHeader(final byte[] rawHeader)
+    {
+        this.rawHeader = notNull(rawHeader, "rawHeader can't be null");
+        header = null;
+        return this;
+    }
+
+    /**
+     * Sets the raw JSON of the parent header, which will be decoded on first access.
+     */
+    public synchronized Message withRawParentHeader(final byte[] rawParentHeader)
+    {
+        this.rawParentHeader = notNull(rawParentHeader, "rawParentHeader can't be null");
+        parentHeader = null;
+        return this;
+    }
+
+    /**
+     * Sets the raw JSON of the metadata, which will be decoded on first access.
+     */
+    public synchronized Message withRawMetadata(final byte[] rawMetadata)
     {
-        this.content = Japyter.JSON_OBJECT_MAPPER.convertValue(notNull(content, "content can't be null"),
-            Map.class);
+        this.rawMetadata = notNull(rawMetadata, "rawMetadata can't be null");
+        metadata = null;
+        return this;
+    }
 
+    /**
+     * Sets the raw JSON of the content, which will be decoded on first access.
+     */
+    public synchronized Message withRawContent(final byte[] rawContent)
+    {
+        this.rawContent = notNull(rawContent, "rawContent can't be null");
+        content = null;
+        typedContent = null;
         return this;
     }
 
     public Message withExtraDatum(final byte[] extraDatum)
     {
-        extraData.add(notNull(extraDatum, "extraDatum can't be null"));
+        return withExtraBuffer(ExtraBuffer.wrap(notNull(extraDatum, "extraDatum can't be null")));
+    }
+
+    public Message withExtraBuffer(final ExtraBuffer extraBuffer)
+    {
+        extraBuffers.add(notNull(extraBuffer, "extraBuffer can't be null"));
         return this;
     }
 
@@ -139,51 +284,275 @@ public class Message
         return zmqIdentities;
     }
 
+    /**
+     * @return a modifiable view of the extra buffers as arrays, copied from off-heap ones.
+     */
     public List<byte[]> getExtraData()
     {
         return extraData;
     }
 
+    public List<ExtraBuffer> getExtraBuffers()
+    {
+        return extraBuffers;
+    }
+
+    /**
+     * Retains the extra buffers of this message, for a consumer that keeps using them.
+     */
+    public Message retain()
+    {
+        for (final ExtraBuffer extraBuffer : extraBuffers)
+        {
+            extraBuffer.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Releases a reference to the extra buffers of this message.
+     */
+    public void release()
+    {
+        for (final ExtraBuffer extraBuffer : extraBuffers)
+        {
+            extraBuffer.release();
+        }
+    }
+
     public byte[] getHmacSignature()
     {
         return hmacSignature;
     }
 
-    public Header getHeader()
+    public synchronized Header getHeader()
     {
+        if (header == null)
+        {
+            header = rawHeader != null ? decode(rawHeader, Header.class, "header") : new Header();
+        }
+
         return header;
     }
 
-    public Header getParentHeader()
+    public synchronized Header getParentHeader()
     {
+        if (parentHeader == null)
+        {
+            parentHeader = rawParentHeader != null ? decode(rawParentHeader, Header.class, "parent header")
+                                                  : new Header();
+        }
+
         return parentHeader;
     }
 
-    public Map<String, Object> getMetadata()
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> getMetadata()
     {
+        if (metadata == null)
+        {
+            metadata = rawMetadata != null ? decode(rawMetadata, Map.class, "metadata")
+                                          : new HashMap<String, Object>();
+        }
+
         return metadata;
     }
 
-    public Map<String, Object> getContent()
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> getContent()
     {
+        if (content == null)
+        {
+            if (rawContent != null)
+            {
+                content = decode(rawContent, Map.class, "content");
+            }
+            else if (typedContent != null)
+            {
+                // the map becomes the content from now on, as it may get modified
+                content = Japyter.JSON_OBJECT_MAPPER.convertValue(typedContent, Map.class);
+                typedContent = null;
+            }
+            else
+            {
+                content = new HashMap<String, Object>();
+            }
+        }
+
         return content;
     }
 
+    /**
+     * @return the typed content, or null if the content is held as a {@link Map}.
+     */
+    public synchronized Object getTypedContent()
+    {
+        return typedContent;
+    }
+
+    /**
+     * @return the raw JSON of the received content, or null if it has been replaced.
+     */
+    public synchronized byte[] getRawContent()
+    {
+        return rawContent;
+    }
+
+    /**
+     * @return the message type, without decoding the header if it hasn't been decoded yet.
+     */
+    public synchronized String peekMsgType()
+    {
+        if (header == null && rawHeader != null)
+        {
+            return peek(rawHeader, MSG_TYPE_FIELD);
+        }
+
+        return getHeader().getMsgType();
+    }
+
+    /**
+     * @return the message ID, without decoding the header if it hasn't been decoded yet.
+     */
+    public synchronized String peekMsgId()
+    {
+        if (header == null && rawHeader != null)
+        {
+            return peek(rawHeader, MSG_ID_FIELD);
+        }
+
+        return getHeader().getMsgId();
+    }
+
+    /**
+     * @return the parent message ID, without decoding the parent header.
+     */
+    public synchronized String peekParentMsgId()
+    {
+        if (parentHeader == null && rawParentHeader != null)
+        {
+            return peek(rawParentHeader, MSG_ID_FIELD);
+        }
+
+        return getParentHeader().getMsgId();
+    }
+
+    private static <T> T decode(final byte[] json, final Class<T> type, final String part)
+    {
+        try
+        {
+            return Japyter.JSON_OBJECT_MAPPER.readValue(json, type);
+        }
+        catch (final IOException ioe)
+        {
+            throw new DecodingException("Failed to decode message " + part, ioe);
+        }
+    }
+
+    /**
+     * Looks for a top level string field without building any object.
+     */
+    private static String peek(final byte[] json, final String fieldName)
+    {
+        try (JsonParser parser = Japyter.JSON_OBJECT_MAPPER.getFactory().createParser(json))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                final boolean found = fieldName.equals(parser.getCurrentName());
+                final JsonToken valueToken = parser.nextToken();
+
+                if (found)
+                {
+                    return valueToken == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+
+                parser.skipChildren();
+            }
+
+            return null;
+        }
+        catch (final IOException ioe)
+        {
+            throw new DecodingException("Failed to peek at field: " + fieldName, ioe);
+        }
+    }
+
+    private synchronized Object describeContent()
+    {
+        if (content != null)
+        {
+            return content;
+        }
+        if (typedContent != null)
+        {
+            return typedContent;
+        }
+        return rawContent != null ? new String(rawContent, Protocol.ENCODING) : "{}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Map<String, Object> getComparableContent()
+    {
+        if (content == null && typedContent != null)
+        {
+            return Japyter.JSON_OBJECT_MAPPER.convertValue(typedContent, Map.class);
+        }
+
+        return getContent();
+    }
+
     @Override
     public String toString()
     {
-        return reflectionToString(this);
+        return new ToStringBuilder(this).append("zmqIdentities", zmqIdentities)
+            .append("hmacSignature", hmacSignature)
+            .append("header", getHeader())
+            .append("parentHeader", getParentHeader())
+            .append("metadata", getMetadata())
+            .append("content", describeContent())
+            .append("extraBuffers", extraBuffers)
+            .toString();
     }
 
     @Override
     public boolean equals(final Object obj)
     {
-        return reflectionEquals(this, obj);
+        if (obj == this)
+        {
+            return true;
+        }
+        if (!(obj instanceof Message))
+        {
+            return false;
+        }
+
+        final Message other = (Message) obj;
+
+        return new EqualsBuilder().append(zmqIdentities, other.zmqIdentities)
+            .append(hmacSignature, other.hmacSignature)
+            .append(getHeader(), other.getHeader())
+            .append(getParentHeader(), other.getParentHeader())
+            .append(getMetadata(), other.getMetadata())
+            .append(getComparableContent(), other.getComparableContent())
+            .append(extraBuffers, other.extraBuffers)
+            .isEquals();
     }
 
     @Override
     public int hashCode()
     {
-        return reflectionHashCode(this);
+        return new HashCodeBuilder().append(zmqIdentities)
+            .append(hmacSignature)
+            .append(getHeader())
+            .append(getParentHeader())
+            .append(getMetadata())
+            .append(getComparableContent())
+            .append(extraBuffers)
+            .toHashCode();
     }
 }
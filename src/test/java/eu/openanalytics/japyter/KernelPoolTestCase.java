@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.client.Heartbeat;
+import eu.openanalytics.japyter.client.ReplyFuture;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+public class KernelPoolTestCase
+{
+    private List<MockKernel> mockKernels;
+    private KernelPool kernelPool;
+
+    @Before
+    public void startPool() throws IOException
+    {
+        mockKernels = new ArrayList<>();
+        kernelPool = new KernelPool();
+
+        for (int i = 0; i < 2; i++)
+        {
+            final MockKernel mockKernel = new MockKernel();
+            mockKernels.add(mockKernel);
+            kernelPool.add(Japyter.fromConfig(mockKernel.getConfig())
+                .withReceiveTimeout(500)
+                .withHeartbeatPeriodMillis(100)
+                .build());
+        }
+    }
+
+    @After
+    public void stopPool() throws IOException
+    {
+        kernelPool.close();
+
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            mockKernel.close();
+        }
+    }
+
+    @Test
+    public void executionsGoToTheLeastLoadedKernel() throws Exception
+    {
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            mockKernel.holdReplies();
+        }
+
+        final List<ReplyFuture<ExecuteReply>> replies = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+        {
+            replies.add(kernelPool.execute(new ExecuteRequest().withCode("1+1")));
+        }
+
+        assertThat(kernelPool.getStats().getOutstandingCount(), is(6));
+        assertThat(kernelPool.getStats().getMaxOutstandingPerKernel(), is(3));
+
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            mockKernel.releaseReplies();
+        }
+
+        for (final ReplyFuture<ExecuteReply> reply : replies)
+        {
+            assertThat(reply.get(5, SECONDS).getStatus(), is(ExecuteReply.Status.OK));
+        }
+
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            assertThat(mockKernel.getExecuteRequestCount(), is(3));
+        }
+
+        final KernelPool.Stats stats = kernelPool.getStats();
+        assertThat(stats.getSubmittedCount(), is(6L));
+        assertThat(stats.getCompletedCount(), is(6L));
+        assertThat(stats.getOutstandingCount(), is(0));
+    }
+
+    @Test
+    public void deadKernelsAreTakenOutOfRotation() throws Exception
+    {
+        mockKernels.get(0).stopHeartbeat();
+        final Heartbeat deadHeartbeat = kernelPool.getKernels().get(0).getHeartbeat();
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (deadHeartbeat.getState() != Heartbeat.State.DOWN && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50L);
+        }
+        assertThat(kernelPool.getStats().getHealthyKernelCount(), is(1));
+
+        for (int i = 0; i < 4; i++)
+        {
+            kernelPool.execute(new ExecuteRequest().withCode("1+1")).get(5, SECONDS);
+        }
+
+        assertThat(mockKernels.get(0).getExecuteRequestCount(), is(0));
+        assertThat(mockKernels.get(1).getExecuteRequestCount(), is(4));
+
+        mockKernels.get(1).stopHeartbeat();
+        final Heartbeat otherDeadHeartbeat = kernelPool.getKernels().get(1).getHeartbeat();
+        while (otherDeadHeartbeat.getState() != Heartbeat.State.DOWN && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50L);
+        }
+
+        try
+        {
+            kernelPool.execute(new ExecuteRequest().withCode("1+1")).get(5, SECONDS);
+        }
+        catch (final ExecutionException ee)
+        {
+            assertThat(ee.getCause() instanceof IOException, is(true));
+        }
+        assertThat(kernelPool.getStats().getRejectedCount(), is(1L));
+    }
+}
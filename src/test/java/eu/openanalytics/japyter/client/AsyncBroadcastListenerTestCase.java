@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.client.AbstractAsyncListener.OverflowPolicy;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class AsyncBroadcastListenerTestCase
+{
+    /**
+     * Blocks on the first broadcast until released, so the following ones pile up in the queue.
+     */
+    private static final class SlowListener implements BroadcastListener
+    {
+        private final CountDownLatch firstReceived = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch allReceived;
+        private final List<Broadcast> received = new CopyOnWriteArrayList<>();
+
+        private SlowListener(final int expectedCount)
+        {
+            allReceived = new CountDownLatch(expectedCount);
+        }
+
+        @Override
+        public void handle(final Broadcast b)
+        {
+            received.add(b);
+            firstReceived.countDown();
+
+            try
+            {
+                released.await();
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            allReceived.countDown();
+        }
+
+        private List<Broadcast> releaseAndAwaitAll() throws InterruptedException
+        {
+            released.countDown();
+            assertThat(allReceived.await(5, SECONDS), is(true));
+            return received;
+        }
+    }
+
+    private ExecutorService executor;
+
+    @Before
+    public void startExecutor()
+    {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void stopExecutor()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void dropOldest() throws Exception
+    {
+        final SlowListener slowListener = new SlowListener(3);
+        final AsyncBroadcastListener asyncListener = new AsyncBroadcastListener(slowListener, executor, 2,
+            OverflowPolicy.DROP_OLDEST);
+        final Broadcast[] broadcasts = fillUp(asyncListener, slowListener, 4);
+
+        assertThat(asyncListener.getQueueDepth(), is(2));
+        assertThat(asyncListener.getDroppedCount(), is(1L));
+        assertThat(slowListener.releaseAndAwaitAll(), contains(broadcasts[0], broadcasts[2], broadcasts[3]));
+    }
+
+    @Test
+    public void dropNewest() throws Exception
+    {
+        final SlowListener slowListener = new SlowListener(3);
+        final AsyncBroadcastListener asyncListener = new AsyncBroadcastListener(slowListener, executor, 2,
+            OverflowPolicy.DROP_NEWEST);
+        final Broadcast[] broadcasts = fillUp(asyncListener, slowListener, 4);
+
+        assertThat(asyncListener.getDroppedCount(), is(1L));
+        assertThat(slowListener.releaseAndAwaitAll(), contains(broadcasts[0], broadcasts[1], broadcasts[2]));
+    }
+
+    @Test
+    public void coalesce() throws Exception
+    {
+        final SlowListener slowListener = new SlowListener(3);
+        final AsyncBroadcastListener asyncListener = new AsyncBroadcastListener(slowListener, executor, 2,
+            OverflowPolicy.COALESCE);
+        final Broadcast[] broadcasts = fillUp(asyncListener, slowListener, 4);
+
+        // a stream can't be merged with the queued status, so the oldest gets dropped
+        final Stream stream = new Stream().withName("stdout").withText("out");
+        asyncListener.handle(stream);
+
+        assertThat(asyncListener.getCoalescedCount(), is(1L));
+        assertThat(asyncListener.getDroppedCount(), is(1L));
+        assertThat(slowListener.releaseAndAwaitAll(), contains(broadcasts[0], broadcasts[3], stream));
+    }
+
+    @Test
+    public void outputIsNeverCoalesced() throws Exception
+    {
+        final SlowListener slowListener = new SlowListener(3);
+        final AsyncBroadcastListener asyncListener = new AsyncBroadcastListener(slowListener, executor, 2,
+            OverflowPolicy.COALESCE);
+        final Broadcast[] broadcasts = fillUp(asyncListener, slowListener, 1);
+
+        final Stream first = new Stream().withName("stdout").withText("first");
+        final Stream second = new Stream().withName("stdout").withText("second");
+        final Stream third = new Stream().withName("stdout").withText("third");
+        asyncListener.handle(first);
+        asyncListener.handle(second);
+        asyncListener.handle(third);
+
+        // the lost stream shows up as a drop
+        assertThat(asyncListener.getCoalescedCount(), is(0L));
+        assertThat(asyncListener.getDroppedCount(), is(1L));
+        assertThat(slowListener.releaseAndAwaitAll(), contains(broadcasts[0], second, third));
+    }
+
+    @Test
+    public void block() throws Exception
+    {
+        final SlowListener slowListener = new SlowListener(4);
+        final AsyncBroadcastListener asyncListener = new AsyncBroadcastListener(slowListener, executor, 2,
+            OverflowPolicy.BLOCK);
+        final Broadcast[] broadcasts = fillUp(asyncListener, slowListener, 3);
+
+        final Status blocked = new Status();
+        final Thread receivingThread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                asyncListener.handle(blocked);
+            }
+        };
+        receivingThread.start();
+
+        while (receivingThread.getState() != Thread.State.WAITING)
+        {
+            Thread.sleep(10L);
+        }
+
+        assertThat(slowListener.releaseAndAwaitAll(),
+            contains(broadcasts[0], broadcasts[1], broadcasts[2], blocked));
+        receivingThread.join(5000L);
+        assertThat(asyncListener.getDroppedCount(), is(0L));
+    }
+
+    /**
+     * Sends broadcasts, making sure the first one is being handled before sending the others.
+     */
+    private Broadcast[] fillUp(final AsyncBroadcastListener asyncListener,
+                               final SlowListener slowListener,
+                               final int count) throws InterruptedException
+    {
+        final Broadcast[] broadcasts = new Broadcast[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            broadcasts[i] = new Status().withAdditionalProperty("n", i);
+            asyncListener.handle(broadcasts[i]);
+
+            if (i == 0)
+            {
+                assertThat(slowListener.firstReceived.await(5, SECONDS), is(true));
+            }
+        }
+
+        return broadcasts;
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.Error;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class BatchExecutorTestCase
+{
+    private MockKernel mockKernel;
+    private Japyter japyter;
+
+    @Before
+    public void startKernel() throws Exception
+    {
+        mockKernel = MockKernel.builder().withOutput(2, 8).build();
+        japyter = Japyter.fromConfig(mockKernel.getConfig()).withReceiveTimeout(5000).build();
+
+        // a first batch subscribes to IoPub, then lets the subscription reach the kernel
+        japyter.executeBatch(new ArrayList<ExecuteRequest>());
+        Thread.sleep(200L);
+    }
+
+    @After
+    public void stopKernel() throws IOException
+    {
+        japyter.close();
+        mockKernel.close();
+    }
+
+    @Test
+    public void resultsAreInRequestOrderWithTheirOutputs() throws Exception
+    {
+        final List<ExecuteRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            requests.add(new ExecuteRequest().withCode(Integer.toString(i)));
+        }
+
+        final List<CellResult> results = japyter.executeBatch(requests);
+
+        assertThat(results.size(), is(50));
+        for (int i = 0; i < 50; i++)
+        {
+            final CellResult result = results.get(i);
+            assertThat(result.getRequest(), is(sameInstance(requests.get(i))));
+            assertThat(result.getReply().getStatus(), is(ExecuteReply.Status.OK));
+            assertThat(result.getOutputs().size(), is(2));
+            assertThat(((Stream) result.getOutputs().get(0)).getText().length(), is(8));
+            assertThat(result.isCancelled(), is(false));
+        }
+        assertThat(mockKernel.getExecuteRequestCount(), is(50));
+    }
+
+    @Test
+    public void laterCellsAreCancelledOnError() throws Exception
+    {
+        final List<CellResult> results = japyter.executeBatchAsync(
+            Arrays.asList(new ExecuteRequest().withCode("1"), new ExecuteRequest().withCode("raise"),
+                new ExecuteRequest().withCode("sleep 1000"), new ExecuteRequest().withCode("sleep 1000")))
+            .get(5, SECONDS);
+
+        assertThat(results.get(0).getReply().getStatus(), is(ExecuteReply.Status.OK));
+        assertThat(results.get(1).getReply().getStatus(), is(ExecuteReply.Status.ERROR));
+        assertThat(results.get(1).getOutputs().get(2), is(instanceOf(Error.class)));
+        for (final CellResult cancelled : results.subList(2, 4))
+        {
+            assertThat(cancelled.isCancelled(), is(true));
+            assertThat(cancelled.getReply(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void errorsDoNotStopTheBatchWhenStopOnErrorIsOff() throws Exception
+    {
+        final List<CellResult> results = japyter.executeBatch(Arrays.asList(
+            new ExecuteRequest().withCode("raise").withStopOnError(false), new ExecuteRequest().withCode("sleep 100")));
+
+        assertThat(results.get(0).getReply().getStatus(), is(ExecuteReply.Status.ERROR));
+        assertThat(results.get(1).getReply().getStatus(), is(ExecuteReply.Status.OK));
+        assertThat(results.get(1).isCancelled(), is(false));
+    }
+}
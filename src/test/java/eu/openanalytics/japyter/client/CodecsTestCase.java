@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.LazyMimeValue;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Data_;
+import eu.openanalytics.japyter.model.gen.ExecuteResult;
+import eu.openanalytics.japyter.model.gen.Metadata__;
+
+public class CodecsTestCase
+{
+    private static final String HTML = "<p title=\"a\\b\">caf\u00e9 \u2603 \ud83d\ude00</p>\n\t";
+
+    private final Protocol protocol = new Protocol();
+
+    @Test
+    public void rejectedBundleEntriesAreSkipped() throws IOException
+    {
+        final Message message = newReceivedResult(new byte[16]);
+
+        final ExecuteResult result = Codecs.readContent(message, ExecuteResult.class,
+            MimeFilter.accepting("text/*"));
+
+        assertThat(result.getData().getAdditionalProperties().keySet(), containsInAnyOrder("text/plain", "text/html"));
+        assertThat(result.getData().getAdditionalProperties().get("text/html"), is((Object) HTML));
+        assertThat(result.getExecutionCount(), is(7));
+        assertThat(result.getMetadata().getAdditionalProperties().get("isolated"), is((Object) true));
+    }
+
+    @Test
+    public void largeAcceptedEntriesAreReadLazily() throws IOException
+    {
+        final byte[] png = new byte[10000];
+        for (int i = 0; i < png.length; i++)
+        {
+            png[i] = (byte) (i * 31);
+        }
+        final Message message = newReceivedResult(png);
+
+        final ExecuteResult result = Codecs.readContent(message, ExecuteResult.class,
+            MimeFilter.accepting("image/png", "text/plain", "text/html").withLazyThreshold(20));
+        final Map<String, Object> data = result.getData().getAdditionalProperties();
+
+        assertThat(data.get("text/plain"), is((Object) "42"));
+
+        final LazyMimeValue image = (LazyMimeValue) data.get("image/png");
+        assertThat(image.isBase64Encoded(), is(true));
+        assertThat(readFully(image.openStream()), is(png));
+
+        assertThat(data.get("text/html"), is(instanceOf(LazyMimeValue.class)));
+        final LazyMimeValue html = (LazyMimeValue) data.get("text/html");
+        assertThat(html.getText(), is(HTML));
+        assertThat(new String(readFully(html.openStream()), Protocol.ENCODING), is(HTML));
+    }
+
+    @Test
+    public void passThroughFilterDecodesEverything() throws IOException
+    {
+        final Message message = newReceivedResult(new byte[16]);
+
+        assertThat(Codecs.readContent(message, ExecuteResult.class, MimeFilter.ALL),
+            is(Codecs.readContent(message, ExecuteResult.class)));
+    }
+
+    private Message newReceivedResult(final byte[] png) throws IOException
+    {
+        final ExecuteResult result = new ExecuteResult().withExecutionCount(7).withData(
+            new Data_().withAdditionalProperty("text/plain", "42")
+                .withAdditionalProperty("text/html", HTML)
+                .withAdditionalProperty("image/png", Base64.encodeBase64String(png))
+                .withAdditionalProperty("application/json", Collections.singletonMap("values", new int[]{1, 2})))
+            .withMetadata(new Metadata__().withAdditionalProperty("isolated", true));
+
+        final Message message = new Message().withContent(result);
+        message.getHeader().withMsgType(BroadcastType.EXECUTE_RESULT.toString());
+
+        // the received message only has the raw content
+        return protocol.fromFrames(protocol.toFrames(message));
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[100];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
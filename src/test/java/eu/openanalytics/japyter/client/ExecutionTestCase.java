@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.Execution.Gap;
+import eu.openanalytics.japyter.client.ReactiveStreams.Subscriber;
+import eu.openanalytics.japyter.client.ReactiveStreams.Subscription;
+import eu.openanalytics.japyter.metrics.JapyterMetrics;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Error;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.HistoryReply;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class ExecutionTestCase
+{
+    private static final class RecordingSubscriber implements Subscriber<Broadcast>
+    {
+        private final List<Broadcast> outputs = new CopyOnWriteArrayList<>();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile Throwable failure;
+
+        @Override
+        public void onSubscribe(final Subscription s)
+        {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(final Broadcast output)
+        {
+            outputs.add(output);
+        }
+
+        @Override
+        public void onError(final Throwable t)
+        {
+            failure = t;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            terminated.countDown();
+        }
+    }
+
+    private MockKernel mockKernel;
+    private JapyterMetrics metrics;
+    private Japyter japyter;
+
+    @Before
+    public void startKernel() throws Exception
+    {
+        mockKernel = MockKernel.builder().withOutput(3, 8).build();
+        metrics = new JapyterMetrics();
+        japyter = Japyter.fromConfig(mockKernel.getConfig()).withReceiveTimeout(2000).withMetrics(metrics).build();
+
+        // a first execution subscribes to IoPub, then lets the subscription reach the kernel
+        japyter.submit(new ExecuteRequest().withCode("0")).getReplyFuture().get(5, SECONDS);
+        Thread.sleep(200L);
+    }
+
+    @After
+    public void stopKernel() throws IOException
+    {
+        japyter.close();
+        mockKernel.close();
+        metrics.close();
+    }
+
+    @Test
+    public void outputsAreOnlyPublishedOnDemand() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("1"));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        final ExecuteReply reply = execution.getCompletionFuture().get(5, SECONDS);
+        assertThat(reply.getStatus(), is(ExecuteReply.Status.OK));
+
+        execution.getOutputs().subscribe(subscriber);
+        assertThat(subscriber.outputs.size(), is(0));
+
+        subscriber.subscription.request(2);
+        assertThat(subscriber.outputs.size(), is(2));
+        assertThat(subscriber.terminated.getCount(), is(1L));
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertThat(subscriber.terminated.await(5, SECONDS), is(true));
+        assertThat(subscriber.failure, is(nullValue()));
+        assertThat(subscriber.outputs.size(), is(3));
+        assertThat(((Stream) subscriber.outputs.get(0)).getText().length(), is(8));
+    }
+
+    @Test
+    public void outputsAreStreamedUntilTheExecutionIsIdle() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("raise"));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        execution.getOutputs().subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertThat(subscriber.terminated.await(5, SECONDS), is(true));
+        assertThat(subscriber.outputs.get(3), is(instanceOf(Error.class)));
+        assertThat(execution.getReplyFuture().get(5, SECONDS).getStatus(), is(ExecuteReply.Status.ERROR));
+        assertThat(execution.getCompletionFuture().get(5, SECONDS).getStatus(), is(ExecuteReply.Status.ERROR));
+    }
+
+    @Test
+    public void outputsOnlyAcceptOneSubscriber() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("1"));
+        execution.getOutputs().subscribe(new RecordingSubscriber());
+
+        final RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+        execution.getOutputs().subscribe(secondSubscriber);
+
+        assertThat(secondSubscriber.failure, is(instanceOf(IllegalStateException.class)));
+        execution.getCompletionFuture().get(5, SECONDS);
+    }
+
+    @Test
+    public void completeExecutionsHaveNoGaps() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("1"));
+        final ExecuteReply reply = execution.getCompletionFuture().get(5, SECONDS);
+
+        assertThat(execution.getGaps(), is(empty()));
+
+        final HistoryReply history = execution.fetchHistory().get(5, SECONDS);
+        assertThat(history.getHistory().size(), is(1));
+        assertThat(history.getHistory().get(0),
+            is(Arrays.<Object>asList(0, reply.getExecutionCount(), Arrays.asList("1", null))));
+    }
+
+    @Test
+    public void lostBroadcastsAreReportedAsGaps() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("raise lose execute_input,error"));
+        execution.getCompletionFuture().get(5, SECONDS);
+
+        assertThat(execution.getGaps(), contains(Gap.MISSING_EXECUTE_INPUT, Gap.MISSING_ERROR));
+        assertThat(metrics.getOutputGapCount(Gap.MISSING_ERROR.name()).getCount(), is(1L));
+    }
+
+    @Test
+    public void lostIdleStatusCompletesAfterTheReceiveTimeout() throws Exception
+    {
+        final Execution execution = japyter.submit(new ExecuteRequest().withCode("1 lose status"));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        execution.getOutputs().subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        final long startNanos = System.nanoTime();
+        execution.getReplyFuture().get(5, SECONDS);
+        execution.getCompletionFuture().get(5, SECONDS);
+
+        assertThat((System.nanoTime() - startNanos) / 1000000L, is(greaterThanOrEqualTo(1900L)));
+        assertThat(execution.getGaps(), contains(Gap.MISSING_BUSY_STATUS, Gap.MISSING_IDLE_STATUS));
+        assertThat(subscriber.terminated.await(5, SECONDS), is(true));
+        assertThat(subscriber.outputs.size(), is(3));
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.metrics.LatencyHistogram;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+public class HeartbeatTestCase
+{
+    private MockKernel mockKernel;
+
+    @Before
+    public void startKernel()
+    {
+        mockKernel = new MockKernel();
+    }
+
+    @After
+    public void stopKernel() throws IOException
+    {
+        mockKernel.close();
+    }
+
+    @Test
+    public void deadKernelIsDetectedAndRecoveredFrom() throws Exception
+    {
+        try (Japyter japyter = Japyter.fromConfig(mockKernel.getConfig())
+            .withReceiveTimeout(500)
+            .withHeartbeatPeriodMillis(100)
+            .build())
+        {
+            assertDetectionAndRecovery(japyter);
+        }
+    }
+
+    @Test
+    public void deadKernelIsDetectedAndRecoveredFromOnEventLoops() throws Exception
+    {
+        try (JapyterRuntime runtime = JapyterRuntime.builder().withEventLoops(1).build())
+        {
+            try (Japyter japyter = Japyter.fromConfig(mockKernel.getConfig())
+                .withReceiveTimeout(500)
+                .withHeartbeatPeriodMillis(100)
+                .withRuntime(runtime)
+                .build())
+            {
+                assertDetectionAndRecovery(japyter);
+            }
+        }
+    }
+
+    private void assertDetectionAndRecovery(final Japyter japyter) throws Exception
+    {
+        final Heartbeat heartbeat = japyter.getHeartbeat();
+        awaitState(heartbeat, Heartbeat.State.UP);
+        // lets the failure detector learn the regular interval
+        Thread.sleep(1000L);
+        assertThat(heartbeat.getState(), is(Heartbeat.State.UP));
+
+        mockKernel.stopHeartbeat();
+        final long stoppedMillis = System.currentTimeMillis();
+        awaitState(heartbeat, Heartbeat.State.DOWN);
+        assertThat(System.currentTimeMillis() - stoppedMillis, lessThan(1000L));
+        assertThat(heartbeat.getMissedPingCount(), greaterThan(0L));
+        awaitReconnection(japyter.getSession());
+
+        // echoes come through again on the replaced socket
+        mockKernel.startHeartbeat();
+        awaitState(heartbeat, Heartbeat.State.UP);
+
+        final LatencyHistogram roundTripTimes = heartbeat.getRoundTripTimes();
+        assertThat(roundTripTimes.getCount(), greaterThan(1L));
+        assertThat(roundTripTimes.getValueAtPercentile(99.0), is(lessThan(roundTripTimes.getMaxMicros() + 1L)));
+
+        // the reconnected shell works
+        assertThat(japyter.getShell().execute(new ExecuteRequest().withCode("1+1")).getStatus(),
+            is(ExecuteReply.Status.OK));
+    }
+
+    private static void awaitReconnection(final Session session) throws InterruptedException
+    {
+        // the session is notified at the first missed ping after the kernel became suspected
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (session.getReconnectCount() == 0L && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(session.getReconnectCount(), greaterThan(0L));
+    }
+
+    private static void awaitState(final Heartbeat heartbeat, final Heartbeat.State state)
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (heartbeat.getState() != state && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(heartbeat.getState(), is(state));
+    }
+}
@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.IoPub.MessageListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.ExtraBuffer;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Data;
+import eu.openanalytics.japyter.model.gen.DisplayData;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class IoPubTestCase
+{
+    private static final class QueuingListener implements BroadcastListener
+    {
+        private final BlockingQueue<Broadcast> broadcasts = new LinkedBlockingQueue<>();
+
+        @Override
+        public void handle(final Broadcast b)
+        {
+            broadcasts.add(b);
+        }
+
+        private Broadcast next() throws InterruptedException
+        {
+            return broadcasts.poll(5, SECONDS);
+        }
+    }
+
+    private static final String HMAC_KEY = "f32beb57-4bc5-4cd0-8689-aa90b774ddc0";
+    private static final String STATUS_TOPIC = "kernel.4a3c5c56-2b2e-4f4b-a2c1-0e5b1f7b2a3d.status";
+    private static final String STREAM_TOPIC = "stream.stdout";
+
+    private ZContext kernelContext;
+    private Socket kernelPublisher;
+    private Protocol protocol;
+    private Session session;
+    private IoPub ioPub;
+
+    @Before
+    public void startIoPub()
+    {
+        kernelContext = new ZContext(1);
+        // XPUB so the test knows when the client subscription has been received
+        kernelPublisher = kernelContext.createSocket(ZMQ.XPUB);
+        kernelPublisher.setReceiveTimeOut(5000);
+        final int port = kernelPublisher.bindToRandomPort("tcp://127.0.0.1");
+
+        protocol = new Protocol(HMAC_KEY, "hmac-sha256");
+        session = new Session("test", protocol, 1000, 1);
+        ioPub = new IoPub("tcp://127.0.0.1:" + port, session);
+    }
+
+    @After
+    public void stopIoPub() throws IOException
+    {
+        session.close();
+        kernelContext.destroy();
+    }
+
+    @Test
+    public void typedListenersOnlyReceiveTheirTypeAndShareTheDecodedBroadcast() throws Exception
+    {
+        final QueuingListener allListener = new QueuingListener();
+        final QueuingListener statusListener = new QueuingListener();
+        final QueuingListener otherStatusListener = new QueuingListener();
+        final QueuingListener streamListener = new QueuingListener();
+
+        ioPub.subscribe(allListener);
+        ioPub.subscribe(BroadcastType.STATUS, statusListener);
+        ioPub.subscribe(BroadcastType.STATUS, otherStatusListener);
+        ioPub.subscribe(BroadcastType.STREAM, streamListener);
+        awaitSubscription();
+
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.BUSY));
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("hello"));
+
+        final Broadcast status = statusListener.next();
+        assertThat(status, is(instanceOf(Status.class)));
+        assertThat(otherStatusListener.next(), is(sameInstance(status)));
+        assertThat(allListener.next(), is(sameInstance(status)));
+
+        final Broadcast stream = streamListener.next();
+        assertThat(((Stream) stream).getText(), is("hello"));
+        assertThat(allListener.next(), is(sameInstance(stream)));
+
+        assertThat(statusListener.broadcasts.isEmpty(), is(true));
+        assertThat(streamListener.broadcasts.isEmpty(), is(true));
+    }
+
+    @Test
+    public void onlyTopicsOfTypedListenersAreSubscribed() throws Exception
+    {
+        final QueuingListener statusListener = new QueuingListener();
+        ioPub.subscribe(BroadcastType.STATUS, statusListener);
+
+        final Set<String> subscribedTopics = new HashSet<>();
+        for (int i = 0; i < 3; i++)
+        {
+            subscribedTopics.add(receiveSubscription(true));
+        }
+        assertThat(subscribedTopics, containsInAnyOrder("status", "kernel.", "<IDS|MSG>"));
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("filtered"));
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.IDLE));
+
+        assertThat(((Status) statusListener.next()).getExecutionState(), is(ExecutionState.IDLE));
+
+        // a message listener needs everything
+        ioPub.subscribe(new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                // NOOP
+            }
+        });
+        assertThat(receiveSubscription(true), is(""));
+        for (int i = 0; i < 3; i++)
+        {
+            assertThat(subscribedTopics.remove(receiveSubscription(false)), is(true));
+        }
+    }
+
+    @Test
+    public void consecutiveStreamsAreCoalesced() throws Exception
+    {
+        ioPub.enableStreamCoalescing(1000, 60000L);
+
+        final QueuingListener listener = new QueuingListener();
+        ioPub.subscribe(listener);
+        awaitSubscription();
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("a"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("b"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("c"), "parent-2");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stderr").withText("d"), "parent-2");
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.IDLE), "parent-2");
+
+        assertThat(((Stream) listener.next()).getText(), is("ab"));
+        assertThat(((Stream) listener.next()).getText(), is("c"));
+        assertThat(((Stream) listener.next()).getText(), is("d"));
+        assertThat(listener.next(), is(instanceOf(Status.class)));
+    }
+
+    @Test
+    public void coalescedStreamsAreFlushedAfterTheirTimeWindow() throws Exception
+    {
+        ioPub.enableStreamCoalescing(1000, 50L);
+
+        final QueuingListener listener = new QueuingListener();
+        ioPub.subscribe(BroadcastType.STREAM, listener);
+        awaitSubscription();
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("a"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("b"), "parent-1");
+
+        assertThat(((Stream) listener.next()).getText(), is("ab"));
+    }
+
+    @Test
+    public void coalescedStreamsAreFlushedWhenStopping() throws Exception
+    {
+        ioPub.enableStreamCoalescing(1000, 60000L);
+
+        final QueuingListener listener = new QueuingListener();
+        ioPub.subscribe(BroadcastType.STREAM, listener);
+        awaitSubscription();
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("a"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stderr").withText("b"), "parent-1");
+
+        // once the first stream is out, the second one is pending
+        assertThat(((Stream) listener.next()).getText(), is("a"));
+
+        ioPub.stop();
+
+        assertThat(((Stream) listener.next()).getText(), is("b"));
+    }
+
+    @Test
+    public void mimeBundlesAreDecodedForTheUnionOfListenerFilters() throws Exception
+    {
+        final QueuingListener textListener = new QueuingListener();
+        final QueuingListener htmlListener = new QueuingListener();
+        ioPub.subscribe(BroadcastType.DISPLAY_DATA, textListener, MimeFilter.accepting("text/plain"));
+        ioPub.subscribe(BroadcastType.DISPLAY_DATA, htmlListener, MimeFilter.accepting("text/html"));
+        // the display_data and delimiter topics
+        receiveSubscription(true);
+        receiveSubscription(true);
+
+        publish("display_data", BroadcastType.DISPLAY_DATA, new DisplayData().withData(new Data()
+            .withAdditionalProperty("text/plain", "plot")
+            .withAdditionalProperty("text/html", "<img/>")
+            .withAdditionalProperty("image/png", "iVBORw0KGgo=")));
+
+        final DisplayData displayData = (DisplayData) textListener.next();
+        assertThat(htmlListener.next(), is(sameInstance((Broadcast) displayData)));
+        assertThat(displayData.getData().getAdditionalProperties().keySet(),
+            containsInAnyOrder("text/plain", "text/html"));
+    }
+
+    @Test
+    public void parentListenersOnlyReceiveTheirRequestUntilIdle() throws Exception
+    {
+        final BlockingQueue<Message> firstMessages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Message> secondMessages = new LinkedBlockingQueue<>();
+        ioPub.subscribe("parent-1", new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                firstMessages.add(m);
+            }
+        });
+        ioPub.subscribe("parent-2", new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                secondMessages.add(m);
+            }
+        });
+        awaitSubscription();
+        assertThat(ioPub.getParentListenerCount(), is(2));
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("a"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("b"), "parent-2");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("c"), "parent-3");
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.IDLE), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("d"), "parent-1");
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.IDLE), "parent-2");
+
+        assertThat(firstMessages.poll(5, SECONDS).peekMsgType(), is("stream"));
+        assertThat(firstMessages.poll(5, SECONDS).peekMsgType(), is("status"));
+        assertThat(secondMessages.poll(5, SECONDS).peekMsgType(), is("stream"));
+        assertThat(secondMessages.poll(5, SECONDS).peekMsgType(), is("status"));
+
+        // both subscriptions have expired with their idle status, so nothing else was received
+        assertThat(ioPub.getParentListenerCount(), is(0));
+        assertThat(firstMessages.isEmpty(), is(true));
+    }
+
+    @Test
+    public void lateParentListenersAreHandedEarlyMessagesFirst() throws Exception
+    {
+        ioPub.enableEarlyMessageBuffer(16, 60000L);
+        awaitSubscription();
+
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("a"), "parent-1");
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("b"), "parent-2");
+        publish(STATUS_TOPIC, BroadcastType.STATUS, new Status().withExecutionState(ExecutionState.IDLE), "parent-1");
+        for (int i = 0; i < 500 && ioPub.getEarlyMessageCount() < 3; i++)
+        {
+            Thread.sleep(10L);
+        }
+
+        final BlockingQueue<Message> firstMessages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Message> secondMessages = new LinkedBlockingQueue<>();
+        ioPub.subscribe("parent-1", new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                firstMessages.add(m);
+            }
+        });
+        ioPub.subscribe("parent-2", new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                secondMessages.add(m);
+            }
+        });
+        publish(STREAM_TOPIC, BroadcastType.STREAM, new Stream().withName("stdout").withText("c"), "parent-2");
+
+        assertThat(firstMessages.poll(5, SECONDS).peekMsgType(), is("stream"));
+        assertThat(firstMessages.poll(5, SECONDS).peekMsgType(), is("status"));
+
+        assertThat(session.readContent(secondMessages.poll(5, SECONDS), Stream.class).getText(), is("b"));
+        assertThat(session.readContent(secondMessages.poll(5, SECONDS), Stream.class).getText(), is("c"));
+        assertThat(ioPub.getParentListenerCount(), is(1));
+    }
+
+    @Test
+    public void extraBuffersAreReleasedOnceDispatchedUnlessRetained() throws Exception
+    {
+        protocol.setExtraBufferAllocator(new ExtraBufferAllocator(16, Integer.MAX_VALUE, null));
+
+        final BlockingQueue<Message> retainedMessages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Message> handledMessages = new LinkedBlockingQueue<>();
+        ioPub.subscribe(new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                retainedMessages.add(m.retain());
+            }
+        });
+        ioPub.subscribe(new MessageListener()
+        {
+            @Override
+            public void handle(final Message m)
+            {
+                handledMessages.add(m);
+            }
+        });
+        awaitSubscription();
+
+        final Message message = new Message().withZmqIdentity(STREAM_TOPIC.getBytes(Protocol.ENCODING))
+            .withContent(new Stream().withName("stdout").withText("binary"))
+            .withExtraDatum(new byte[64]);
+        message.getHeader().withMsgType(BroadcastType.STREAM.toString()).withMsgId("stream-binary");
+        final List<byte[]> frames = protocol.toFrames(message);
+        for (int i = 0; i < frames.size() - 1; i++)
+        {
+            kernelPublisher.sendMore(frames.get(i));
+        }
+        kernelPublisher.send(frames.get(frames.size() - 1));
+
+        final Message retained = retainedMessages.poll(5, SECONDS);
+        assertThat(handledMessages.poll(5, SECONDS), is(sameInstance(retained)));
+
+        final ExtraBuffer extraBuffer = retained.getExtraBuffers().get(0);
+        assertThat(extraBuffer.getStorage(), is(ExtraBuffer.Storage.DIRECT));
+        for (int i = 0; i < 500 && extraBuffer.getReferenceCount() > 1; i++)
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(extraBuffer.getReferenceCount(), is(1));
+        assertThat(extraBuffer.asReadOnlyBuffer().remaining(), is(64));
+
+        retained.release();
+        assertThat(extraBuffer.isReleased(), is(true));
+    }
+
+    private void awaitSubscription()
+    {
+        receiveSubscription(true);
+    }
+
+    private String receiveSubscription(final boolean subscribe)
+    {
+        final byte[] subscription = kernelPublisher.recv();
+        assertThat(subscription[0], is((byte) (subscribe ? 1 : 0)));
+        return new String(subscription, 1, subscription.length - 1, Protocol.ENCODING);
+    }
+
+    private void publish(final String topic, final BroadcastType type, final Broadcast content)
+        throws IOException
+    {
+        publish(topic, type, content, null);
+    }
+
+    private void publish(final String topic,
+                         final BroadcastType type,
+                         final Broadcast content,
+                         final String parentMsgId) throws IOException
+    {
+        final Message message = new Message().withZmqIdentity(topic.getBytes(Protocol.ENCODING))
+            .withContent(content);
+        message.getHeader().withMsgType(type.toString()).withMsgId(type + "-" + System.nanoTime());
+        message.getParentHeader().withMsgId(parentMsgId);
+
+        final List<byte[]> frames = protocol.toFrames(message);
+        for (int i = 0; i < frames.size() - 1; i++)
+        {
+            kernelPublisher.sendMore(frames.get(i));
+        }
+        kernelPublisher.send(frames.get(frames.size() - 1));
+    }
+}
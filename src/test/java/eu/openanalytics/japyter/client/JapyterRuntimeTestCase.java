@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Status;
+
+public class JapyterRuntimeTestCase
+{
+    private static final int CLIENT_COUNT = 3;
+
+    private List<MockKernel> mockKernels;
+    private ExecutorService channelExecutor;
+    private JapyterRuntime runtime;
+
+    @Before
+    public void startRuntime()
+    {
+        mockKernels = new ArrayList<>();
+        for (int i = 0; i < CLIENT_COUNT; i++)
+        {
+            mockKernels.add(new MockKernel());
+        }
+
+        channelExecutor = Executors.newFixedThreadPool(CLIENT_COUNT);
+        runtime = JapyterRuntime.builder().withChannelExecutor(channelExecutor).build();
+    }
+
+    @After
+    public void stopRuntime() throws Exception
+    {
+        runtime.close();
+        channelExecutor.shutdownNow();
+
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            mockKernel.close();
+        }
+    }
+
+    @Test
+    public void clientsShareTheRuntime() throws Exception
+    {
+        final List<Japyter> clients = new ArrayList<>();
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            clients.add(Japyter.fromConfig(mockKernel.getConfig())
+                .withReceiveTimeout(500)
+                .withHeartbeatPeriodMillis(0)
+                .withRuntime(runtime)
+                .build());
+        }
+
+        for (final Japyter client : clients)
+        {
+            assertThat(client.getShell().executeAsync(new ExecuteRequest().withCode("1+1")).get(5, SECONDS)
+                .getStatus(), is(ExecuteReply.Status.OK));
+        }
+
+        final JapyterRuntime.Footprint footprint = runtime.getFootprint();
+        assertThat(footprint.getSessionCount(), is(CLIENT_COUNT));
+        // one shell receive loop per client
+        assertThat(footprint.getChannelTaskCount(), is(CLIENT_COUNT));
+        assertThat(footprint.getSocketCount(), greaterThan(CLIENT_COUNT));
+        assertThat(footprint.getThreadsPerSession(), lessThanOrEqualTo(2.0));
+
+        // closing a client leaves the runtime usable by the others
+        clients.get(0).close();
+
+        assertThat(runtime.getFootprint().getSessionCount(), is(CLIENT_COUNT - 1));
+        assertThat(runtime.getFootprint().getChannelTaskCount(), is(CLIENT_COUNT - 1));
+        assertThat(clients.get(1).getShell().executeAsync(new ExecuteRequest().withCode("1+1")).get(5, SECONDS)
+            .getStatus(), is(ExecuteReply.Status.OK));
+    }
+
+    @Test
+    public void blockedScheduledTasksDontDelayOthers() throws Exception
+    {
+        final List<Japyter> clients = new ArrayList<>();
+        for (final MockKernel mockKernel : mockKernels)
+        {
+            clients.add(Japyter.fromConfig(mockKernel.getConfig())
+                .withHeartbeatPeriodMillis(0)
+                .withRuntime(runtime)
+                .build());
+        }
+
+        // as if each session pinged an unresponsive kernel
+        final CountDownLatch unblocked = new CountDownLatch(1);
+        for (int i = 0; i < CLIENT_COUNT; i++)
+        {
+            runtime.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        unblocked.await(5, SECONDS);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, 0L);
+        }
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        runtime.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.countDown();
+            }
+        }, 50L);
+
+        try
+        {
+            assertThat(ran.await(1, SECONDS), is(true));
+        }
+        finally
+        {
+            unblocked.countDown();
+            for (final Japyter client : clients)
+            {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void virtualThreadsServeChannelsWhenAvailable() throws Exception
+    {
+        final JapyterRuntime virtualRuntime = JapyterRuntime.builder().withVirtualThreads(true).build();
+
+        try
+        {
+            assertThat(virtualRuntime.isUsingVirtualThreads(), is(VirtualThreads.isAvailable()));
+
+            final Japyter client = Japyter.fromConfig(mockKernels.get(0).getConfig())
+                .withReceiveTimeout(500)
+                .withHeartbeatPeriodMillis(50)
+                .withRuntime(virtualRuntime)
+                .build();
+
+            assertThat(client.getShell().execute(new ExecuteRequest().withCode("1+1")).getStatus(),
+                is(ExecuteReply.Status.OK));
+
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (client.getHeartbeat().getState() != Heartbeat.State.UP && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10L);
+            }
+            assertThat(client.getHeartbeat().getState(), is(Heartbeat.State.UP));
+        }
+        finally
+        {
+            virtualRuntime.close();
+        }
+    }
+
+    @Test
+    public void eventLoopsServeAllChannels() throws Exception
+    {
+        final JapyterRuntime reactorRuntime = JapyterRuntime.builder().withEventLoops(2).build();
+
+        try
+        {
+            final List<Japyter> clients = new ArrayList<>();
+            final List<BlockingQueue<Broadcast>> statuses = new ArrayList<>();
+
+            for (final MockKernel mockKernel : mockKernels)
+            {
+                final Japyter client = Japyter.fromConfig(mockKernel.getConfig())
+                    .withReceiveTimeout(500)
+                    .withHeartbeatPeriodMillis(50)
+                    .withRuntime(reactorRuntime)
+                    .build();
+                clients.add(client);
+
+                final BlockingQueue<Broadcast> clientStatuses = new LinkedBlockingQueue<>();
+                statuses.add(clientStatuses);
+                client.getIoPub().subscribe(BroadcastType.STATUS, new BroadcastListener()
+                {
+                    @Override
+                    public void handle(final Broadcast b)
+                    {
+                        clientStatuses.add(b);
+                    }
+                });
+            }
+
+            for (int i = 0; i < CLIENT_COUNT; i++)
+            {
+                // the IoPub subscription is asynchronous so wait for statuses to come through
+                final Japyter client = clients.get(i);
+                final long deadline = System.currentTimeMillis() + 5000L;
+                Broadcast status = null;
+                while (status == null && System.currentTimeMillis() < deadline)
+                {
+                    assertThat(client.getShell().executeAsync(new ExecuteRequest().withCode("1+1"))
+                        .get(5, SECONDS)
+                        .getStatus(), is(ExecuteReply.Status.OK));
+                    status = statuses.get(i).poll(100, MILLISECONDS);
+                }
+                assertThat(status instanceof Status, is(true));
+            }
+
+            for (final Japyter client : clients)
+            {
+                final long deadline = System.currentTimeMillis() + 5000L;
+                while (client.getHeartbeat().getState() != Heartbeat.State.UP
+                       && System.currentTimeMillis() < deadline)
+                {
+                    Thread.sleep(10L);
+                }
+                assertThat(client.getHeartbeat().getState(), is(Heartbeat.State.UP));
+            }
+
+            final JapyterRuntime.Footprint footprint = reactorRuntime.getFootprint();
+            assertThat(footprint.getSessionCount(), is(CLIENT_COUNT));
+            // no channel holds a thread of its own
+            assertThat(footprint.getChannelTaskCount(), is(0));
+
+            clients.get(0).close();
+            assertThat(clients.get(1).getShell().executeAsync(new ExecuteRequest().withCode("1+1"))
+                .get(5, SECONDS)
+                .getStatus(), is(ExecuteReply.Status.OK));
+        }
+        finally
+        {
+            reactorRuntime.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class PhiAccrualFailureDetectorTestCase
+{
+    @Test
+    public void suspicionRisesWithTheDelaySinceTheLastHeartbeat()
+    {
+        final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100L, 0L);
+
+        long now = 0L;
+        for (int i = 0; i < 50; i++)
+        {
+            now += 100L;
+            detector.heartbeat(now);
+        }
+
+        assertThat(detector.phi(now + 100L), lessThan(1.0));
+        // a pause of half a second isn't a failure
+        assertThat(detector.isAvailable(now + 500L), is(true));
+        // but a second of silence is
+        assertThat(detector.isAvailable(now + 1000L), is(false));
+        assertThat(detector.phi(now + 1000L), greaterThan(detector.phi(now + 800L)));
+    }
+
+    @Test
+    public void silentPeersAreSuspectedWithoutAnyHeartbeat()
+    {
+        final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100L, 0L);
+
+        assertThat(detector.isAvailable(200L), is(true));
+        assertThat(detector.isAvailable(1000L), is(false));
+    }
+}
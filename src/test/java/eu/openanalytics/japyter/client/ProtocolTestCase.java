@@ -10,19 +10,30 @@ package eu.openanalytics.japyter.client;
 
 import static eu.openanalytics.japyter.client.Protocol.ENCODING;
 import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isEmptyOrNullString;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.Test;
 
+import eu.openanalytics.japyter.client.Protocol.FrameSink;
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.model.ExtraBuffer;
+import eu.openanalytics.japyter.model.ExtraBuffer.Storage;
 import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
 
 public class ProtocolTestCase
 {
@@ -52,6 +63,160 @@ public class ProtocolTestCase
         new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha1024");
     }
 
+    @Test(expected = IOException.class)
+    public void tamperedHmacSignature() throws IOException
+    {
+        final Protocol protocol = new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha256");
+        final List<byte[]> frames = protocol.toFrames(newTestMessage((byte) 31));
+
+        final byte[] signature = frames.get(2);
+        signature[signature.length - 1] = (byte) (signature[signature.length - 1] == 'a' ? 'b' : 'a');
+
+        protocol.fromFrames(frames);
+    }
+
+    @Test
+    public void streamedFramesMatchCollectedFrames() throws IOException
+    {
+        final Protocol protocol = new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha256");
+
+        for (byte config = 0; config < 32; config++)
+        {
+            final Message message = newTestMessage(config);
+            final List<byte[]> frames = new ArrayList<>();
+            final List<Boolean> lastFlags = new ArrayList<>();
+
+            protocol.writeFrames(message, new FrameSink()
+            {
+                @Override
+                public void accept(final byte[] frame, final boolean last)
+                {
+                    frames.add(frame);
+                    lastFlags.add(last);
+                }
+            });
+
+            final List<byte[]> expectedFrames = protocol.toFrames(message);
+            assertThat(frames.size(), is(expectedFrames.size()));
+            for (int i = 0; i < frames.size(); i++)
+            {
+                assertThat(frames.get(i), is(expectedFrames.get(i)));
+                assertThat(lastFlags.get(i), is(i == frames.size() - 1));
+            }
+
+            // the signature covers the JSON frames as they have been streamed
+            assertThat(protocol.fromFrames(frames).peekMsgId(), is("test-message-id"));
+        }
+    }
+
+    @Test
+    public void messageIdsAndTypeArePeekedWithoutDecoding() throws IOException
+    {
+        final Protocol protocol = new Protocol();
+        final Message message = protocol.fromFrames(protocol.toFrames(newTestMessage((byte) 31)));
+
+        assertThat(message.peekMsgType(), is("connect_request"));
+        assertThat(message.peekMsgId(), is("test-message-id"));
+        assertThat(message.peekParentMsgId(), is("test-parent-message-id"));
+        assertThat(new String(message.getRawContent(), ENCODING), is("{\"content-key\":\"content-value\"}"));
+
+        assertThat(message.getContent().get("content-key"), is((Object) "content-value"));
+    }
+
+    @Test
+    public void headersArePeekedAtWithoutBeingDecoded()
+    {
+        // truncated after the peeked fields, so any attempt at decoding would fail
+        final Message message = new Message()
+            .withRawHeader("{\"msg_id\":\"test-message-id\",\"msg_type\":\"status\",\"date\":".getBytes(ENCODING))
+            .withRawParentHeader("{\"msg_id\":\"test-parent-message-id\",\"date\":".getBytes(ENCODING));
+
+        assertThat(message.peekMsgType(), is("status"));
+        assertThat(message.peekMsgId(), is("test-message-id"));
+        assertThat(message.peekParentMsgId(), is("test-parent-message-id"));
+    }
+
+    @Test
+    public void undecodableFramesAreReportedWithTheirIOException()
+    {
+        final Message message = new Message().withRawHeader("{\"msg_id\":".getBytes(ENCODING));
+
+        try
+        {
+            message.getHeader();
+            fail("Decoding should have failed");
+        }
+        catch (final Message.DecodingException de)
+        {
+            assertThat(de.getCause(), is(instanceOf(IOException.class)));
+            assertThat(de.toIOException().getCause(), is(sameInstance((Throwable) de.getCause())));
+        }
+    }
+
+    @Test
+    public void onlyKnownMsgTypesArePeekedForMetrics() throws IOException
+    {
+        final Protocol protocol = new Protocol();
+        final Message message = newTestMessage((byte) 31);
+
+        assertThat(Protocol.peekKnownMsgType(protocol.toFrames(message)), is("connect_request"));
+
+        message.getHeader().withMsgType("made_up_request");
+        assertThat(Protocol.peekKnownMsgType(protocol.toFrames(message)), is(nullValue()));
+    }
+
+    @Test
+    public void typedContentIsBoundDirectly() throws IOException
+    {
+        final Protocol protocol = new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha256");
+        final ExecuteRequest executeRequest = new ExecuteRequest().withCode("1+1").withSilent(false);
+        final Message message = new Message(RequestMessageType.EXECUTE_REQUEST).withContent(executeRequest);
+
+        assertThat(Codecs.readContent(message, ExecuteRequest.class), is(sameInstance(executeRequest)));
+
+        final Message roundtripedMessage = protocol.fromFrames(protocol.toFrames(message));
+
+        assertThat(Codecs.readContent(roundtripedMessage, ExecuteRequest.class), is(executeRequest));
+        assertThat(roundtripedMessage.getContent().get("code"), is((Object) "1+1"));
+    }
+
+    @Test
+    public void typedContentIsKeptByToStringAndEquals()
+    {
+        final ExecuteRequest executeRequest = new ExecuteRequest().withCode("1+1").withSilent(false);
+        final Message message = new Message(RequestMessageType.EXECUTE_REQUEST).withContent(executeRequest);
+        final Message mapMessage = new Message().withHeader(message.getHeader()).withContent(executeRequest);
+        mapMessage.getContent();
+
+        assertThat(message.toString(), containsString("1+1"));
+        assertThat(message.equals(mapMessage), is(true));
+        assertThat(message.hashCode(), is(mapMessage.hashCode()));
+        assertThat(message.getTypedContent(), is(sameInstance((Object) executeRequest)));
+    }
+
+    @Test
+    public void receivedExtraBuffersMoveOffHeapFromThresholds() throws IOException
+    {
+        final Protocol protocol = new Protocol("f32beb57-4bc5-4cd0-8689-aa90b774ddc0", "hmac-sha256");
+        protocol.setExtraBufferAllocator(new ExtraBufferAllocator(16, 1024, null));
+
+        final Message message = newTestMessage((byte) 0).withExtraDatum(new byte[8])
+            .withExtraDatum(new byte[100])
+            .withExtraDatum(new byte[2000]);
+
+        final Message roundtripedMessage = protocol.fromFrames(protocol.toFrames(message));
+        final List<ExtraBuffer> extraBuffers = roundtripedMessage.getExtraBuffers();
+
+        assertThat(extraBuffers.get(0).getStorage(), is(Storage.HEAP));
+        assertThat(extraBuffers.get(1).getStorage(), is(Storage.DIRECT));
+        assertThat(extraBuffers.get(2).getStorage(), is(Storage.MAPPED));
+        assertThat(extraBuffers, is(message.getExtraBuffers()));
+        assertThat(extraBuffers.get(2).asReadOnlyBuffer().isReadOnly(), is(true));
+
+        roundtripedMessage.release();
+        assertThat(extraBuffers.get(2).isReleased(), is(true));
+    }
+
     private void testProtocol(final Protocol protocol) throws IOException
     {
         for (byte config = 0; config < 32; config++)
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Header;
+
+public class ShellTestCase
+{
+    private static final String HMAC_KEY = "f32beb57-4bc5-4cd0-8689-aa90b774ddc0";
+
+    private ZContext kernelContext;
+    private Socket kernelRouter;
+    private Protocol protocol;
+    private Session session;
+    private Shell shell;
+
+    @Before
+    public void startShell()
+    {
+        kernelContext = new ZContext(1);
+        kernelRouter = kernelContext.createSocket(ZMQ.ROUTER);
+        kernelRouter.setReceiveTimeOut(5000);
+        final int port = kernelRouter.bindToRandomPort("tcp://127.0.0.1");
+
+        protocol = new Protocol(HMAC_KEY, "hmac-sha256");
+        session = new Session("test", protocol, 5000, 1);
+        shell = new Shell("tcp://127.0.0.1:" + port, session);
+    }
+
+    @After
+    public void stopShell() throws IOException
+    {
+        session.close();
+        kernelContext.destroy();
+    }
+
+    @Test
+    public void pipelinedRequestsAreMatchedToOutOfOrderReplies() throws Exception
+    {
+        final int requestCount = 10;
+
+        final List<ReplyFuture<Message>> replyFutures = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++)
+        {
+            final Message request = new Message(RequestMessageType.KERNEL_INFO_REQUEST);
+            request.getContent().put("n", i);
+            replyFutures.add(shell.sendAsync(request));
+        }
+
+        final List<Message> requests = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++)
+        {
+            requests.add(receiveRequest());
+        }
+
+        // a stale reply must be dropped without disturbing the requests in flight
+        final Message staleReply = requests.get(0)
+            .createReply(RequestMessageType.KERNEL_INFO_REQUEST)
+            .withParentHeader(new Header().withMsgId("unknown-message-id"));
+        sendReply(requests.get(0), staleReply);
+
+        for (int i = requestCount - 1; i >= 0; i--)
+        {
+            final Message request = requests.get(i);
+            final Message reply = request.createReply(RequestMessageType.KERNEL_INFO_REQUEST);
+            reply.getContent().put("n", request.getContent().get("n"));
+            sendReply(request, reply);
+        }
+
+        for (int i = 0; i < requestCount; i++)
+        {
+            assertThat(replyFutures.get(i).get(5, SECONDS).getContent().get("n"), is((Object) i));
+        }
+
+        assertThat(shell.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void lateReplyDoesNotPoisonNextCall() throws Exception
+    {
+        final ReplyFuture<Message> abandoned = shell.sendAsync(new Message(
+            RequestMessageType.KERNEL_INFO_REQUEST));
+        final Message abandonedRequest = receiveRequest();
+        abandoned.cancel(false);
+
+        final ReplyFuture<Message> current = shell.sendAsync(new Message(RequestMessageType.KERNEL_INFO_REQUEST));
+        final Message currentRequest = receiveRequest();
+
+        sendReply(abandonedRequest, abandonedRequest.createReply(RequestMessageType.KERNEL_INFO_REQUEST));
+        final Message currentReply = currentRequest.createReply(RequestMessageType.KERNEL_INFO_REQUEST);
+        sendReply(currentRequest, currentReply);
+
+        assertThat(current.get(5, SECONDS).getHeader().getMsgId(), is(currentReply.getHeader().getMsgId()));
+
+        // neither the abandoned nor the answered request is left behind
+        assertThat(shell.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void idempotentRequestsAreReplayedAfterReconnection() throws Exception
+    {
+        final ReplyFuture<Message> kernelInfo = shell.sendAsync(new Message(RequestMessageType.KERNEL_INFO_REQUEST));
+        final ReplyFuture<Message> execution = shell.sendAsync(new Message(RequestMessageType.EXECUTE_REQUEST));
+        final Message lostKernelInfoRequest = receiveRequest();
+        receiveRequest();
+
+        // as if the kernel restarted: the requests received so far are never replied to
+        session.reconnect();
+
+        try
+        {
+            execution.get(5, SECONDS);
+            fail("Non-idempotent request in flight must fail on reconnection");
+        }
+        catch (final ExecutionException ee)
+        {
+            assertThat(ee.getCause() instanceof IOException, is(true));
+        }
+
+        final Message replayedRequest = receiveRequest();
+        assertThat(replayedRequest.getHeader().getMsgId(), is(lostKernelInfoRequest.getHeader().getMsgId()));
+        sendReply(replayedRequest, replayedRequest.createReply(RequestMessageType.KERNEL_INFO_REQUEST));
+
+        assertThat(kernelInfo.get(5, SECONDS).peekParentMsgId(), is(lostKernelInfoRequest.getHeader().getMsgId()));
+        assertThat(session.getReconnectCount(), is(1L));
+        assertThat(shell.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void blockingCallsFailFastFromTheEventLoop() throws Exception
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch called = new CountDownLatch(1);
+
+        shell.sendAsync(new Message(RequestMessageType.KERNEL_INFO_REQUEST)).addCallback(new Callback<Message>()
+        {
+            @Override
+            public void onSuccess(final Message reply)
+            {
+                try
+                {
+                    shell.send(new Message(RequestMessageType.KERNEL_INFO_REQUEST));
+                }
+                catch (final Exception e)
+                {
+                    failure.set(e);
+                }
+                called.countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                failure.set(t);
+                called.countDown();
+            }
+        });
+
+        final Message request = receiveRequest();
+        sendReply(request, request.createReply(RequestMessageType.KERNEL_INFO_REQUEST));
+
+        assertThat(called.await(5, SECONDS), is(true));
+        assertThat(failure.get() instanceof IllegalStateException, is(true));
+        assertThat(shell.getInFlightCount(), is(0));
+    }
+
+    private Message receiveRequest() throws IOException
+    {
+        final List<byte[]> frames = new ArrayList<>();
+        do
+        {
+            frames.add(kernelRouter.recv());
+        }
+        while (kernelRouter.hasReceiveMore());
+
+        return protocol.fromFrames(frames);
+    }
+
+    private void sendReply(final Message request, final Message reply) throws IOException
+    {
+        for (final byte[] zmqIdentity : request.getZmqIdentities())
+        {
+            reply.withZmqIdentity(zmqIdentity);
+        }
+
+        final List<byte[]> frames = protocol.toFrames(reply);
+        for (int i = 0; i < frames.size() - 1; i++)
+        {
+            kernelRouter.sendMore(frames.get(i));
+        }
+        kernelRouter.send(frames.get(frames.size() - 1));
+    }
+}
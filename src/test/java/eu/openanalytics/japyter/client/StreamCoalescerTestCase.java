@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.client;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class StreamCoalescerTestCase
+{
+    @Test
+    public void mergedMessagesAreReleased() throws IOException
+    {
+        final List<Message> sunkMessages = new ArrayList<>();
+        final StreamCoalescer streamCoalescer = new StreamCoalescer(1000, 60000L,
+            new StreamCoalescer.MessageSink()
+            {
+                @Override
+                public void accept(final Message message)
+                {
+                    sunkMessages.add(message);
+                }
+            });
+
+        final Message first = newStreamMessage("a");
+        final Message second = newStreamMessage("b");
+        final Message third = newStreamMessage("c");
+
+        streamCoalescer.offer(first);
+        streamCoalescer.offer(second);
+        streamCoalescer.offer(third);
+        streamCoalescer.flush();
+
+        assertThat(sunkMessages, contains(first));
+        assertThat(((Stream) first.getTypedContent()).getText(), is("abc"));
+        assertThat(first.getExtraBuffers().get(0).getReferenceCount(), is(1));
+        assertThat(second.getExtraBuffers().get(0).getReferenceCount(), is(0));
+        assertThat(third.getExtraBuffers().get(0).getReferenceCount(), is(0));
+    }
+
+    private Message newStreamMessage(final String text)
+    {
+        final Message message = new Message().withContent(new Stream().withName("stdout").withText(text))
+            .withExtraDatum(new byte[8]);
+        message.getHeader().withMsgType(BroadcastType.STREAM.toString());
+        message.getParentHeader().withMsgId("parent-1");
+        return message;
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.metrics.MetricsRegistry.CodecStage;
+import eu.openanalytics.japyter.mock.MockKernel;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+import eu.openanalytics.japyter.model.gen.Status;
+
+public class JapyterMetricsTestCase
+{
+    private MockKernel mockKernel;
+    private JapyterMetrics metrics;
+
+    @Before
+    public void startKernel()
+    {
+        mockKernel = new MockKernel();
+        metrics = new JapyterMetrics();
+    }
+
+    @After
+    public void stopKernel() throws IOException
+    {
+        metrics.close();
+        mockKernel.close();
+    }
+
+    @Test
+    public void executionIsMeasuredAndExposedOverJmx() throws Exception
+    {
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        metrics.registerMBeans(mbeanServer, "test");
+
+        try (Japyter japyter = Japyter.fromConfig(mockKernel.getConfig()).withMetrics(metrics).build())
+        {
+            final CountDownLatch idle = new CountDownLatch(1);
+            japyter.getIoPub().subscribe(BroadcastType.STATUS, new BroadcastListener()
+            {
+                @Override
+                public void handle(final Broadcast b)
+                {
+                    if (((Status) b).getExecutionState() == ExecutionState.IDLE)
+                    {
+                        idle.countDown();
+                    }
+                }
+            });
+            // let the subscription reach the kernel before it publishes the idle status
+            Thread.sleep(200L);
+
+            assertThat(japyter.getShell().execute(new ExecuteRequest().withCode("1+1")).getStatus(),
+                is(ExecuteReply.Status.OK));
+            assertThat(idle.await(5, SECONDS), is(true));
+        }
+
+        final MessageTraffic executeRequests = metrics.getTraffic("Shell", "execute_request");
+        assertThat(executeRequests, is(notNullValue()));
+        assertThat(executeRequests.getSentCount(), is(1L));
+        assertThat(executeRequests.getSentBytes(), is(greaterThan(0L)));
+        assertThat(metrics.getTraffic("Shell", "execute_reply").getReceivedCount(), is(1L));
+        assertThat(metrics.getTraffic("IoPub", "status").getReceivedCount(), is(greaterThan(0L)));
+
+        assertThat(metrics.getReplyLatency("Shell", "execute_request").getCount(), is(1L));
+        assertThat(metrics.getListenerDispatchTime("IoPub", "status").getCount(), is(greaterThan(0L)));
+        for (final CodecStage stage : CodecStage.values())
+        {
+            assertThat(stage.name(), metrics.getCodecTime(stage).getCount(), is(greaterThan(0L)));
+        }
+
+        final ObjectName replyLatencyName = new ObjectName(JapyterMetrics.JMX_DOMAIN
+                                                           + ":type=ReplyLatency,channel=Shell,"
+                                                           + "msgType=execute_request,registry=test");
+        assertThat(mbeanServer.isRegistered(replyLatencyName), is(true));
+        assertThat((Long) mbeanServer.getAttribute(replyLatencyName, "Count"), is(1L));
+
+        metrics.unregisterMBeans();
+        assertThat(mbeanServer.isRegistered(replyLatencyName), is(false));
+    }
+}
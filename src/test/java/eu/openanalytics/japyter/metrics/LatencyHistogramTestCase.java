@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.metrics;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class LatencyHistogramTestCase
+{
+    @Test
+    public void percentilesAreWithinBucketPrecision()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long micros = 1L; micros <= 10000L; micros++)
+        {
+            histogram.record(micros, MICROSECONDS);
+        }
+
+        assertThat(histogram.getCount(), is(10000L));
+        assertThat(histogram.getMaxMicros(), is(10000L));
+        assertThat((double) histogram.getValueAtPercentile(50.0), is(closeTo(5000.0, 5000.0 / 8)));
+        assertThat((double) histogram.getValueAtPercentile(99.0), is(closeTo(9900.0, 9900.0 / 8)));
+        assertThat(histogram.getValueAtPercentile(100.0), is(10000L));
+    }
+}
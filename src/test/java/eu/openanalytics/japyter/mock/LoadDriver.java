@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.mock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.JapyterRuntime;
+import eu.openanalytics.japyter.client.ReplyFuture;
+import eu.openanalytics.japyter.client.ReplyFuture.Callback;
+import eu.openanalytics.japyter.metrics.LatencyHistogram;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+
+/**
+ * Runs many client sessions against {@link MockKernel}s in the same JVM, each session executing
+ * code in a closed loop, one request at a time, and reports the throughput and latency
+ * percentiles. Run {@link #main(String[])} with <code>name=value</code> arguments named after the
+ * builder methods, for example <code>sessions=2000 latencyMillis=5-20 outputChunks=10</code>.
+ * <p>
+ * Every session listening on IoPub receives the output of all sessions sharing its kernel, and
+ * each ZeroMQ socket holds several file descriptors: raise the open file limit, or spread the
+ * sessions over several JVMs, when running thousands of sessions.
+ */
+public final class LoadDriver
+{
+    public static final class Builder
+    {
+        private int sessions = 1000;
+        private int kernels = 4;
+        private int eventLoops = 4;
+        private int requestsPerSession = 100;
+        private long requestTimeoutMillis = 10000L;
+        private int heartbeatPeriodMillis;
+        private boolean ioPubListening = true;
+        private MockKernel.Builder kernelBuilder = MockKernel.builder();
+
+        private Builder()
+        {
+            // use LoadDriver.builder()
+        }
+
+        public Builder withSessions(final int sessions)
+        {
+            this.sessions = sessions;
+            return this;
+        }
+
+        /**
+         * The number of mock kernels the sessions are spread over. Defaults to 4.
+         */
+        public Builder withKernels(final int kernels)
+        {
+            this.kernels = kernels;
+            return this;
+        }
+
+        /**
+         * The number of event loops of the client runtime, or 0 for a thread per channel. Defaults
+         * to 4.
+         */
+        public Builder withEventLoops(final int eventLoops)
+        {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        public Builder withRequestsPerSession(final int requestsPerSession)
+        {
+            this.requestsPerSession = requestsPerSession;
+            return this;
+        }
+
+        /**
+         * The time after which a request that got no reply is counted as timed out, and the
+         * session moves on. Defaults to 10 seconds.
+         */
+        public Builder withRequestTimeoutMillis(final long requestTimeoutMillis)
+        {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The heartbeat period of each session, or 0 to disable it. Defaults to 0.
+         */
+        public Builder withHeartbeatPeriodMillis(final int heartbeatPeriodMillis)
+        {
+            this.heartbeatPeriodMillis = heartbeatPeriodMillis;
+            return this;
+        }
+
+        /**
+         * Subscribe each session to IoPub broadcasts, so that the output of the kernels is received
+         * too. Defaults to true.
+         */
+        public Builder withIoPubListening(final boolean ioPubListening)
+        {
+            this.ioPubListening = ioPubListening;
+            return this;
+        }
+
+        /**
+         * The behavior of the mock kernels: latency, output volume and failures.
+         */
+        public Builder withKernel(final MockKernel.Builder kernelBuilder)
+        {
+            this.kernelBuilder = kernelBuilder;
+            return this;
+        }
+
+        public LoadDriver build()
+        {
+            return new LoadDriver(this);
+        }
+    }
+
+    public static final class Report
+    {
+        private final int sessions;
+        private final long succeeded, failed, timedOut, broadcasts;
+        private final long elapsedNanos;
+        private final LatencyHistogram latencies;
+
+        private Report(final int sessions,
+                       final long succeeded,
+                       final long failed,
+                       final long timedOut,
+                       final long broadcasts,
+                       final long elapsedNanos,
+                       final LatencyHistogram latencies)
+        {
+            this.sessions = sessions;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.timedOut = timedOut;
+            this.broadcasts = broadcasts;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return the number of requests that got an OK reply.
+         */
+        public long getSucceeded()
+        {
+            return succeeded;
+        }
+
+        /**
+         * @return the number of requests that got an error reply or failed to be sent.
+         */
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        public long getTimedOut()
+        {
+            return timedOut;
+        }
+
+        public long getBroadcasts()
+        {
+            return broadcasts;
+        }
+
+        public long getElapsedMillis()
+        {
+            return NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return the replies received per second, errors included.
+         */
+        public double getThroughput()
+        {
+            return (succeeded + failed) * 1e9 / Math.max(1L, elapsedNanos);
+        }
+
+        /**
+         * @return the latencies of all replies, errors included.
+         */
+        public LatencyHistogram getLatencies()
+        {
+            return latencies;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d sessions, %d ok, %d failed, %d timed out, %d broadcasts in %dms: "
+                                 + "%.0f replies/s, latency p50=%dus p99=%dus p999=%dus max=%dus",
+                sessions, succeeded, failed, timedOut, broadcasts, getElapsedMillis(), getThroughput(),
+                latencies.getP50Micros(), latencies.getP99Micros(), latencies.getP999Micros(),
+                latencies.getMaxMicros());
+        }
+    }
+
+    /**
+     * Executes code over and over in one session, sending the next request from the completion of
+     * the previous one.
+     */
+    private final class Conversation implements Callback<ExecuteReply>
+    {
+        private final Japyter client;
+        private int remainingRequests;
+        private long sentNanos;
+        private ScheduledFuture<?> timeout;
+
+        private Conversation(final Japyter client)
+        {
+            this.client = client;
+            this.remainingRequests = requestsPerSession;
+        }
+
+        private synchronized void executeNext()
+        {
+            if (remainingRequests == 0)
+            {
+                done.countDown();
+                return;
+            }
+
+            remainingRequests--;
+            sentNanos = System.nanoTime();
+
+            final ReplyFuture<ExecuteReply> reply = client.getShell().executeAsync(
+                new ExecuteRequest().withCode("1+1"));
+            timeout = timeouts.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    reply.fail(new TimeoutException("No reply after " + requestTimeoutMillis + "ms"));
+                }
+            }, requestTimeoutMillis, MILLISECONDS);
+            reply.addCallback(this);
+        }
+
+        @Override
+        public void onSuccess(final ExecuteReply result)
+        {
+            replied();
+            (result.getStatus() == ExecuteReply.Status.OK ? succeeded : failed).incrementAndGet();
+            executeNext();
+        }
+
+        @Override
+        public void onFailure(final Throwable t)
+        {
+            if (t instanceof TimeoutException)
+            {
+                timedOut.incrementAndGet();
+            }
+            else
+            {
+                replied();
+                failed.incrementAndGet();
+            }
+            executeNext();
+        }
+
+        private synchronized void replied()
+        {
+            timeout.cancel(false);
+            latencies.recordNanos(System.nanoTime() - sentNanos);
+        }
+    }
+
+    private final int sessions;
+    private final int kernels;
+    private final int eventLoops;
+    private final int requestsPerSession;
+    private final long requestTimeoutMillis;
+    private final int heartbeatPeriodMillis;
+    private final boolean ioPubListening;
+    private final MockKernel.Builder kernelBuilder;
+
+    private final LatencyHistogram latencies;
+    private final AtomicLong succeeded, failed, timedOut, broadcasts;
+    private final ScheduledThreadPoolExecutor timeouts;
+    private CountDownLatch done;
+
+    private LoadDriver(final Builder builder)
+    {
+        Validate.isTrue(builder.sessions > 0, "sessions must be positive");
+        Validate.isTrue(builder.kernels > 0, "kernels must be positive");
+        Validate.isTrue(builder.requestsPerSession > 0, "requestsPerSession must be positive");
+        Validate.isTrue(builder.requestTimeoutMillis > 0L, "requestTimeoutMillis must be positive");
+
+        sessions = builder.sessions;
+        kernels = builder.kernels;
+        eventLoops = builder.eventLoops;
+        requestsPerSession = builder.requestsPerSession;
+        requestTimeoutMillis = builder.requestTimeoutMillis;
+        heartbeatPeriodMillis = builder.heartbeatPeriodMillis;
+        ioPubListening = builder.ioPubListening;
+        kernelBuilder = Validate.notNull(builder.kernelBuilder, "kernelBuilder can't be null");
+
+        latencies = new LatencyHistogram();
+        succeeded = new AtomicLong();
+        failed = new AtomicLong();
+        timedOut = new AtomicLong();
+        broadcasts = new AtomicLong();
+        timeouts = new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory());
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Starts the kernels and connects all the sessions, then runs the conversations until they are
+     * all done and tears everything down. Only the conversations are timed. Can be called once.
+     */
+    public Report run() throws IOException, InterruptedException
+    {
+        Validate.validState(done == null, "a load driver can only run once");
+
+        final List<MockKernel> mockKernels = new ArrayList<>();
+        final List<Japyter> clients = new ArrayList<>();
+        final JapyterRuntime runtime = JapyterRuntime.builder().withEventLoops(eventLoops).build();
+
+        try
+        {
+            for (int i = 0; i < kernels; i++)
+            {
+                mockKernels.add(kernelBuilder.build());
+            }
+
+            final BroadcastListener broadcastCounter = new BroadcastListener()
+            {
+                @Override
+                public void handle(final Broadcast b)
+                {
+                    broadcasts.incrementAndGet();
+                }
+            };
+
+            for (int i = 0; i < sessions; i++)
+            {
+                final Japyter client = Japyter.fromConfig(mockKernels.get(i % kernels).getConfig())
+                    .withHeartbeatPeriodMillis(heartbeatPeriodMillis)
+                    .withRuntime(runtime)
+                    .build();
+                clients.add(client);
+
+                if (ioPubListening)
+                {
+                    client.getIoPub().subscribe(broadcastCounter);
+                }
+            }
+
+            done = new CountDownLatch(sessions);
+            final long startNanos = System.nanoTime();
+
+            for (final Japyter client : clients)
+            {
+                new Conversation(client).executeNext();
+            }
+
+            // every request either completes or times out
+            done.await();
+            final long elapsedNanos = System.nanoTime() - startNanos;
+
+            return new Report(sessions, succeeded.get(), failed.get(), timedOut.get(), broadcasts.get(),
+                elapsedNanos, latencies);
+        }
+        finally
+        {
+            timeouts.shutdownNow();
+
+            for (final Japyter client : clients)
+            {
+                client.close();
+            }
+            runtime.close();
+
+            for (final MockKernel mockKernel : mockKernels)
+            {
+                mockKernel.close();
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final Builder builder = builder();
+        final MockKernel.Builder kernelBuilder = MockKernel.builder();
+
+        for (final String arg : args)
+        {
+            final String name = StringUtils.substringBefore(arg, "=");
+            final String value = StringUtils.substringAfter(arg, "=");
+
+            switch (name)
+            {
+                case "sessions" :
+                    builder.withSessions(Integer.parseInt(value));
+                    break;
+                case "kernels" :
+                    builder.withKernels(Integer.parseInt(value));
+                    break;
+                case "eventLoops" :
+                    builder.withEventLoops(Integer.parseInt(value));
+                    break;
+                case "requestsPerSession" :
+                    builder.withRequestsPerSession(Integer.parseInt(value));
+                    break;
+                case "requestTimeoutMillis" :
+                    builder.withRequestTimeoutMillis(Long.parseLong(value));
+                    break;
+                case "heartbeatPeriodMillis" :
+                    builder.withHeartbeatPeriodMillis(Integer.parseInt(value));
+                    break;
+                case "ioPubListening" :
+                    builder.withIoPubListening(Boolean.parseBoolean(value));
+                    break;
+                case "latencyMillis" :
+                    kernelBuilder.withLatency(Long.parseLong(StringUtils.substringBefore(value, "-")),
+                        Long.parseLong(value.contains("-") ? StringUtils.substringAfter(value, "-") : value));
+                    break;
+                case "outputChunks" :
+                    kernelBuilder.withOutput(Integer.parseInt(value), 80);
+                    break;
+                case "errorRate" :
+                    kernelBuilder.withErrorRate(Double.parseDouble(value));
+                    break;
+                case "dropRate" :
+                    kernelBuilder.withDropRate(Double.parseDouble(value));
+                    break;
+                default :
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        System.out.println(builder.withKernel(kernelBuilder).build().run());
+    }
+}
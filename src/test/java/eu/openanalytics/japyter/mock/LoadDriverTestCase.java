@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.mock;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class LoadDriverTestCase
+{
+    @Test
+    public void everyRequestIsAccountedFor() throws Exception
+    {
+        final LoadDriver.Report report = LoadDriver.builder()
+            .withSessions(50)
+            .withKernels(2)
+            .withEventLoops(2)
+            .withRequestsPerSession(20)
+            .withRequestTimeoutMillis(500L)
+            .withKernel(MockKernel.builder().withLatency(0L, 2L).withErrorRate(0.1).withDropRate(0.01).withSeed(42L))
+            .build()
+            .run();
+
+        assertThat(report.getSucceeded() + report.getFailed() + report.getTimedOut(), is(1000L));
+        assertThat(report.getFailed(), is(greaterThan(0L)));
+        assertThat(report.getTimedOut(), is(greaterThan(0L)));
+        assertThat(report.getLatencies().getCount(), is(report.getSucceeded() + report.getFailed()));
+        assertThat(report.getThroughput(), is(greaterThan(0.0)));
+    }
+}
@@ -0,0 +1,608 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.mock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+import eu.openanalytics.japyter.client.Protocol;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.client.Protocol.RequestMessageType;
+import eu.openanalytics.japyter.model.Message;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Config;
+import eu.openanalytics.japyter.model.gen.Error;
+import eu.openanalytics.japyter.model.gen.ExecuteInput;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.HistoryReply;
+import eu.openanalytics.japyter.model.gen.Status;
+import eu.openanalytics.japyter.model.gen.Status.ExecutionState;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+/**
+ * An in-JVM stand-in for a kernel, serving the shell channel over a ROUTER socket, IoPub over a
+ * PUB socket and the heartbeat over a REP socket, on the loopback interface. Messages are
+ * signed and verified like a real kernel does, unless no key is configured.
+ * <p>
+ * Execution requests are answered after a scripted latency, with scripted output published in
+ * between the busy and idle statuses. Failures are injected at random, by replying with an error
+ * or not replying at all, or on demand, by holding replies back or stopping the heartbeat. Code
+ * starting with <code>raise</code> always fails and <code>sleep &lt;millis&gt;</code> takes that
+ * long instead of the scripted latency. Code containing <code>lose &lt;msg_type&gt;,...</code> never
+ * publishes the broadcasts of these types, as if IoPub dropped them. History requests are answered
+ * with the code of past executions.
+ * Executions overlap, like requests spread over a pool of kernels, so a single mock kernel can
+ * take the load of many sessions.
+ */
+public final class MockKernel implements Closeable
+{
+    public static final class Builder
+    {
+        private String key = DEFAULT_KEY;
+        private String signatureScheme = DEFAULT_SIGNATURE_SCHEME;
+        private long minLatencyMillis;
+        private long maxLatencyMillis;
+        private int outputChunks;
+        private int outputChunkChars = 80;
+        private double errorRate;
+        private double dropRate;
+        private long seed = System.nanoTime();
+
+        private Builder()
+        {
+            // use MockKernel.builder()
+        }
+
+        /**
+         * Sign and verify messages with this key and scheme, or not at all if the key is empty.
+         * Defaults to a random key and <code>hmac-sha256</code>.
+         */
+        public Builder withSignature(final String key, final String signatureScheme)
+        {
+            this.key = key;
+            this.signatureScheme = signatureScheme;
+            return this;
+        }
+
+        /**
+         * Reply to each execution request after a latency drawn uniformly between the bounds.
+         * Defaults to no latency.
+         */
+        public Builder withLatency(final long minLatencyMillis, final long maxLatencyMillis)
+        {
+            this.minLatencyMillis = minLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Publish this many <code>stdout</code> stream messages of <code>chunkChars</code>
+         * characters for each execution. Defaults to no output.
+         */
+        public Builder withOutput(final int chunks, final int chunkChars)
+        {
+            this.outputChunks = chunks;
+            this.outputChunkChars = chunkChars;
+            return this;
+        }
+
+        /**
+         * The fraction of executions that fail with an error reply and an error broadcast.
+         * Defaults to 0.
+         */
+        public Builder withErrorRate(final double errorRate)
+        {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * The fraction of executions that never get a reply, as if the message was lost. Defaults
+         * to 0.
+         */
+        public Builder withDropRate(final double dropRate)
+        {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * Seeds the draws of latencies and failures, so that a scenario can be replayed.
+         */
+        public Builder withSeed(final long seed)
+        {
+            this.seed = seed;
+            return this;
+        }
+
+        public MockKernel build()
+        {
+            return new MockKernel(this);
+        }
+    }
+
+    private enum Outcome
+    {
+        OK, ERROR, DROP
+    };
+
+    private static final class ScheduledExecution implements Comparable<ScheduledExecution>
+    {
+        private final Message request;
+        private final Outcome outcome;
+        private final int executionCount;
+        private final long dueNanos;
+
+        private ScheduledExecution(final Message request,
+                                   final Outcome outcome,
+                                   final int executionCount,
+                                   final long dueNanos)
+        {
+            this.request = request;
+            this.outcome = outcome;
+            this.executionCount = executionCount;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public int compareTo(final ScheduledExecution other)
+        {
+            return Long.compare(dueNanos - other.dueNanos, 0L);
+        }
+    }
+
+    private static final String DEFAULT_KEY = UUID.randomUUID().toString();
+    private static final String DEFAULT_SIGNATURE_SCHEME = "hmac-sha256";
+    private static final long POLL_MILLIS = 10L;
+    private static final String RAISE_CODE = "raise";
+    private static final String SLEEP_CODE = "sleep ";
+    private static final String LOSE_CODE = "lose ";
+
+    private final ZContext context;
+    private final Socket shell;
+    private final Socket ioPub;
+    private final Socket heartbeat;
+    private final Protocol protocol;
+    private final Config config;
+    private final String statusTopic;
+
+    private final long minLatencyNanos;
+    private final long latencyRangeNanos;
+    private final int outputChunks;
+    private final String outputChunk;
+    private final double errorRate;
+    private final double dropRate;
+
+    private final AtomicBoolean running;
+    private final AtomicBoolean heartbeatEnabled;
+    private final AtomicBoolean holdingReplies;
+    private final AtomicBoolean releaseRequested;
+    private final AtomicInteger executeRequestCount;
+    private final AtomicLong replyCount;
+    private final AtomicLong errorCount;
+    private final AtomicLong dropCount;
+    // only accessed by the kernel thread
+    private final Random random;
+    private final List<ScheduledExecution> heldExecutions;
+    private final Map<Integer, String> executedCode;
+    private final PriorityQueue<ScheduledExecution> scheduledExecutions;
+    private final Thread thread;
+
+    /**
+     * Builds a mock kernel that replies at once, without output nor failures.
+     */
+    public MockKernel()
+    {
+        this(builder());
+    }
+
+    private MockKernel(final Builder builder)
+    {
+        Validate.isTrue(builder.minLatencyMillis >= 0L && builder.maxLatencyMillis >= builder.minLatencyMillis,
+            "latency bounds must be positive and ordered");
+        Validate.isTrue(builder.outputChunks >= 0 && builder.outputChunkChars > 0,
+            "output must be a positive number of non-empty chunks");
+        Validate.inclusiveBetween(0.0, 1.0, builder.errorRate + builder.dropRate,
+            "errorRate and dropRate must add up to a fraction");
+
+        minLatencyNanos = MILLISECONDS.toNanos(builder.minLatencyMillis);
+        latencyRangeNanos = MILLISECONDS.toNanos(builder.maxLatencyMillis - builder.minLatencyMillis);
+        outputChunks = builder.outputChunks;
+        outputChunk = StringUtils.repeat('x', builder.outputChunkChars - 1) + "\n";
+        errorRate = builder.errorRate;
+        dropRate = builder.dropRate;
+
+        context = new ZContext(1);
+        shell = context.createSocket(ZMQ.ROUTER);
+        ioPub = context.createSocket(ZMQ.PUB);
+        heartbeat = context.createSocket(ZMQ.REP);
+
+        final boolean signing = StringUtils.isNotEmpty(builder.key);
+        protocol = signing ? new Protocol(builder.key, builder.signatureScheme) : new Protocol();
+        config = new Config().withTransport("tcp")
+            .withIp("127.0.0.1")
+            .withKey(signing ? builder.key : "")
+            .withSignatureScheme(builder.signatureScheme)
+            .withShellPort(shell.bindToRandomPort("tcp://127.0.0.1"))
+            .withIopubPort(ioPub.bindToRandomPort("tcp://127.0.0.1"))
+            .withHbPort(heartbeat.bindToRandomPort("tcp://127.0.0.1"));
+        statusTopic = "kernel." + UUID.randomUUID() + ".status";
+
+        running = new AtomicBoolean(true);
+        heartbeatEnabled = new AtomicBoolean(true);
+        holdingReplies = new AtomicBoolean(false);
+        releaseRequested = new AtomicBoolean(false);
+        executeRequestCount = new AtomicInteger();
+        replyCount = new AtomicLong();
+        errorCount = new AtomicLong();
+        dropCount = new AtomicLong();
+        random = new Random(builder.seed);
+        heldExecutions = new ArrayList<>();
+        executedCode = new HashMap<>();
+        scheduledExecutions = new PriorityQueue<>();
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                serve();
+            }
+        }, "mock-kernel");
+        thread.start();
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public Config getConfig()
+    {
+        return config;
+    }
+
+    public int getExecuteRequestCount()
+    {
+        return executeRequestCount.get();
+    }
+
+    /**
+     * @return the number of execution replies sent, errors included.
+     */
+    public long getReplyCount()
+    {
+        return replyCount.get();
+    }
+
+    public long getErrorCount()
+    {
+        return errorCount.get();
+    }
+
+    public long getDropCount()
+    {
+        return dropCount.get();
+    }
+
+    /**
+     * Holds execution replies back until {@link #releaseReplies()} is called.
+     */
+    public void holdReplies()
+    {
+        holdingReplies.set(true);
+    }
+
+    public void releaseReplies()
+    {
+        holdingReplies.set(false);
+        releaseRequested.set(true);
+    }
+
+    /**
+     * Stops answering heartbeat pings, as a dead kernel would.
+     */
+    public void stopHeartbeat()
+    {
+        heartbeatEnabled.set(false);
+    }
+
+    public void startHeartbeat()
+    {
+        heartbeatEnabled.set(true);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        running.set(false);
+
+        try
+        {
+            thread.join(5000L);
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        context.destroy();
+    }
+
+    private void serve()
+    {
+        while (running.get())
+        {
+            try
+            {
+                final Poller poller = new Poller(2);
+                final int shellIndex = poller.register(shell, Poller.POLLIN);
+                final int heartbeatIndex = heartbeatEnabled.get() ? poller.register(heartbeat, Poller.POLLIN) : -1;
+
+                poller.poll(getPollTimeoutMillis());
+
+                if (poller.pollin(shellIndex))
+                {
+                    handleShellRequest(receive(shell));
+                }
+
+                if (heartbeatIndex >= 0 && poller.pollin(heartbeatIndex))
+                {
+                    heartbeat.send(heartbeat.recv());
+                }
+
+                if (releaseRequested.compareAndSet(true, false))
+                {
+                    for (final ScheduledExecution execution : heldExecutions)
+                    {
+                        complete(execution);
+                    }
+                    heldExecutions.clear();
+                }
+
+                completeDueExecutions();
+            }
+            catch (final Throwable t)
+            {
+                if (running.get())
+                {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private long getPollTimeoutMillis()
+    {
+        final ScheduledExecution nextExecution = scheduledExecutions.peek();
+
+        if (nextExecution == null)
+        {
+            return POLL_MILLIS;
+        }
+
+        final long millisUntilDue = NANOSECONDS.toMillis(nextExecution.dueNanos - System.nanoTime());
+        return Math.max(0L, Math.min(POLL_MILLIS, millisUntilDue));
+    }
+
+    private void completeDueExecutions() throws IOException
+    {
+        final long nowNanos = System.nanoTime();
+        ScheduledExecution execution;
+
+        while ((execution = scheduledExecutions.peek()) != null && execution.dueNanos - nowNanos <= 0L)
+        {
+            scheduledExecutions.poll();
+            complete(execution);
+        }
+    }
+
+    private void handleShellRequest(final Message request) throws IOException
+    {
+        final RequestMessageType type = RequestMessageType.fromValue(request.peekMsgType());
+
+        if (type == RequestMessageType.HISTORY_REQUEST)
+        {
+            send(shell, request.createReply(type).withContent(getHistory(request)), request);
+            return;
+        }
+
+        if (type != RequestMessageType.EXECUTE_REQUEST)
+        {
+            send(shell, request.createReply(type), request);
+            return;
+        }
+
+        final String code = request.getContent().get("code").toString();
+        final int executionCount = executeRequestCount.incrementAndGet();
+        executedCode.put(executionCount, code);
+        publishStatus(request, ExecutionState.BUSY);
+        publish("execute_input", BroadcastType.EXECUTE_INPUT, new ExecuteInput().withCode(code)
+            .withExecutionCount(executionCount), request);
+
+        final Outcome outcome = code.startsWith(RAISE_CODE) ? Outcome.ERROR : drawOutcome();
+        final ScheduledExecution execution = new ScheduledExecution(request, outcome, executionCount,
+            System.nanoTime() + scriptLatencyNanos(code));
+
+        if (holdingReplies.get())
+        {
+            heldExecutions.add(execution);
+        }
+        else
+        {
+            scheduledExecutions.add(execution);
+        }
+    }
+
+    /**
+     * @return the executions in the requested range, without output as the mock has no results.
+     */
+    private HistoryReply getHistory(final Message request)
+    {
+        final int start = ((Number) request.getContent().get("start")).intValue();
+        final int stop = ((Number) request.getContent().get("stop")).intValue();
+        final boolean output = Boolean.TRUE.equals(request.getContent().get("output"));
+
+        final List<List<Object>> history = new ArrayList<>();
+        for (int line = start; line < stop; line++)
+        {
+            final String code = executedCode.get(line);
+            if (code != null)
+            {
+                history.add(Arrays.<Object>asList(0, line, output ? Arrays.asList(code, null) : code));
+            }
+        }
+        return new HistoryReply().withHistory(history);
+    }
+
+    private Outcome drawOutcome()
+    {
+        final double draw = random.nextDouble();
+
+        if (draw < dropRate)
+        {
+            return Outcome.DROP;
+        }
+
+        return draw < dropRate + errorRate ? Outcome.ERROR : Outcome.OK;
+    }
+
+    private long scriptLatencyNanos(final String code)
+    {
+        if (code.startsWith(SLEEP_CODE))
+        {
+            return MILLISECONDS.toNanos(Long.parseLong(code.substring(SLEEP_CODE.length()).trim()));
+        }
+
+        return drawLatencyNanos();
+    }
+
+    private long drawLatencyNanos()
+    {
+        return minLatencyNanos + (latencyRangeNanos > 0L ? (long) (random.nextDouble() * latencyRangeNanos) : 0L);
+    }
+
+    private void complete(final ScheduledExecution execution) throws IOException
+    {
+        final Message request = execution.request;
+
+        if (execution.outcome == Outcome.DROP)
+        {
+            dropCount.incrementAndGet();
+            return;
+        }
+
+        for (int i = 0; i < outputChunks; i++)
+        {
+            publish("stream.stdout", BroadcastType.STREAM, new Stream().withName("stdout").withText(outputChunk),
+                request);
+        }
+
+        final ExecuteReply reply = new ExecuteReply().withExecutionCount(execution.executionCount);
+
+        if (execution.outcome == Outcome.ERROR)
+        {
+            final List<String> traceback = Arrays.asList("MockError: injected failure");
+            reply.withStatus(ExecuteReply.Status.ERROR)
+                .withEname("MockError")
+                .withEvalue("injected failure")
+                .withTraceback(traceback);
+            publish("error", BroadcastType.ERROR, new Error().withExecutionCount(execution.executionCount)
+                .withEname("MockError")
+                .withEvalue("injected failure")
+                .withTraceback(traceback), request);
+            errorCount.incrementAndGet();
+        }
+        else
+        {
+            reply.withStatus(ExecuteReply.Status.OK);
+        }
+
+        send(shell, request.createReply(RequestMessageType.EXECUTE_REQUEST).withContent(reply), request);
+        replyCount.incrementAndGet();
+
+        publishStatus(request, ExecutionState.IDLE);
+    }
+
+    private void publishStatus(final Message request, final ExecutionState executionState) throws IOException
+    {
+        publish(statusTopic, BroadcastType.STATUS, new Status().withExecutionState(executionState), request);
+    }
+
+    private void publish(final String topic,
+                         final BroadcastType type,
+                         final Broadcast content,
+                         final Message request) throws IOException
+    {
+        final String code = String.valueOf(request.getContent().get("code"));
+        if (code.contains(LOSE_CODE)
+            && Arrays.asList(StringUtils.substringAfter(code, LOSE_CODE).split(",")).contains(type.toString()))
+        {
+            return;
+        }
+
+        final Message broadcast = new Message().withZmqIdentity(topic.getBytes(Protocol.ENCODING))
+            .withParentHeader(request.getHeader())
+            .withContent(content);
+        broadcast.getHeader().withMsgType(type.toString()).withMsgId(UUID.randomUUID().toString());
+
+        send(ioPub, broadcast, null);
+    }
+
+    private void send(final Socket socket, final Message message, final Message request) throws IOException
+    {
+        if (request != null)
+        {
+            for (final byte[] zmqIdentity : request.getZmqIdentities())
+            {
+                message.withZmqIdentity(zmqIdentity);
+            }
+        }
+
+        final List<byte[]> frames = protocol.toFrames(message);
+        for (int i = 0; i < frames.size() - 1; i++)
+        {
+            socket.sendMore(frames.get(i));
+        }
+        socket.send(frames.get(frames.size() - 1));
+    }
+
+    private Message receive(final Socket socket) throws IOException
+    {
+        final List<byte[]> frames = new ArrayList<>();
+        do
+        {
+            frames.add(socket.recv());
+        }
+        while (socket.hasReceiveMore());
+
+        return protocol.fromFrames(frames);
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.mock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import eu.openanalytics.japyter.Japyter;
+import eu.openanalytics.japyter.client.IoPub.BroadcastListener;
+import eu.openanalytics.japyter.client.Protocol.BroadcastType;
+import eu.openanalytics.japyter.model.gen.Broadcast;
+import eu.openanalytics.japyter.model.gen.Error;
+import eu.openanalytics.japyter.model.gen.ExecuteReply;
+import eu.openanalytics.japyter.model.gen.ExecuteRequest;
+import eu.openanalytics.japyter.model.gen.Stream;
+
+public class MockKernelTestCase
+{
+    @Test
+    public void outputAndErrorsAreScripted() throws Exception
+    {
+        try (MockKernel mockKernel = MockKernel.builder().withOutput(3, 10).withErrorRate(1.0).build();
+             Japyter japyter = Japyter.fromConfig(mockKernel.getConfig()).build())
+        {
+            final BlockingQueue<Broadcast> broadcasts = new LinkedBlockingQueue<>();
+            final BroadcastListener queuingListener = new BroadcastListener()
+            {
+                @Override
+                public void handle(final Broadcast b)
+                {
+                    broadcasts.add(b);
+                }
+            };
+            japyter.getIoPub().subscribe(BroadcastType.STREAM, queuingListener);
+            japyter.getIoPub().subscribe(BroadcastType.ERROR, queuingListener);
+            // lets the subscription reach the kernel before it publishes
+            Thread.sleep(200L);
+
+            final ExecuteReply reply = japyter.getShell().execute(new ExecuteRequest().withCode("1/0"));
+            assertThat(reply.getStatus(), is(ExecuteReply.Status.ERROR));
+            assertThat(reply.getEname(), is("MockError"));
+
+            for (int i = 0; i < 3; i++)
+            {
+                assertThat(((Stream) broadcasts.poll(5, SECONDS)).getText().length(), is(10));
+            }
+            assertThat(broadcasts.poll(5, SECONDS), is(instanceOf(Error.class)));
+            assertThat(mockKernel.getErrorCount(), is(1L));
+        }
+    }
+
+    @Test
+    public void latencyIsScripted() throws Exception
+    {
+        try (MockKernel mockKernel = MockKernel.builder().withLatency(200L, 200L).build();
+             Japyter japyter = Japyter.fromConfig(mockKernel.getConfig()).build())
+        {
+            final long startMillis = System.currentTimeMillis();
+            assertThat(japyter.getShell().execute(new ExecuteRequest().withCode("1+1")).getStatus(),
+                is(ExecuteReply.Status.OK));
+            assertThat(System.currentTimeMillis() - startMillis, is(greaterThanOrEqualTo(200L)));
+        }
+    }
+
+    @Test
+    public void droppedRepliesNeverArrive() throws Exception
+    {
+        try (MockKernel mockKernel = MockKernel.builder().withDropRate(1.0).build();
+             Japyter japyter = Japyter.fromConfig(mockKernel.getConfig()).withReceiveTimeout(300).build())
+        {
+            try
+            {
+                japyter.getShell().execute(new ExecuteRequest().withCode("1+1"));
+                fail("no reply expected");
+            }
+            catch (final IOException ioe)
+            {
+                assertThat(mockKernel.getDropCount(), is(1L));
+                assertThat(mockKernel.getReplyCount(), is(0L));
+            }
+        }
+    }
+
+    @Test
+    public void unsignedMessagesAreSupported() throws Exception
+    {
+        try (MockKernel mockKernel = MockKernel.builder().withSignature("", "").build();
+             Japyter japyter = Japyter.fromConfig(mockKernel.getConfig()).build())
+        {
+            assertThat(japyter.getShell().execute(new ExecuteRequest().withCode("1+1")).getStatus(),
+                is(ExecuteReply.Status.OK));
+        }
+    }
+}
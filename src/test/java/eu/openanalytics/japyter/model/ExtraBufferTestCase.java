@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Open Analytics NV and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package eu.openanalytics.japyter.model;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.openanalytics.japyter.model.ExtraBuffer.Storage;
+
+public class ExtraBufferTestCase
+{
+    @Rule
+    public TemporaryFolder spillFolder = new TemporaryFolder();
+
+    @Test
+    public void offHeapCopiesHoldTheSameBytes() throws Exception
+    {
+        final byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) i;
+        }
+        final ExtraBuffer heap = ExtraBuffer.wrap(bytes);
+
+        final ExtraBuffer direct = heap.toDirect();
+        assertThat(direct.getStorage(), is(Storage.DIRECT));
+        assertThat(direct, is(heap));
+        assertThat(direct.toByteArray(), is(bytes));
+
+        final File directory = spillFolder.getRoot();
+        final ExtraBuffer mapped = direct.spillTo(directory);
+        assertThat(mapped.getStorage(), is(Storage.MAPPED));
+        assertThat(mapped, is(heap));
+
+        final ByteBuffer view = mapped.asReadOnlyBuffer();
+        assertThat(view.isReadOnly(), is(true));
+        assertThat(view.get(4095), is((byte) 4095));
+
+        direct.release();
+        mapped.release();
+        assertThat(directory.list().length, is(0));
+    }
+
+    @Test
+    public void releasedBuffersCanNoLongerBeRead() throws Exception
+    {
+        final ExtraBuffer direct = ExtraBuffer.wrap(new byte[64]).toDirect();
+
+        direct.release();
+        direct.release();
+
+        assertThat(direct.isReleased(), is(true));
+        try
+        {
+            direct.asReadOnlyBuffer();
+            fail("released buffer can't be read");
+        }
+        catch (final IllegalStateException ise)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void retainedBuffersAreOnlyFreedByTheLastRelease() throws Exception
+    {
+        final ExtraBuffer direct = ExtraBuffer.wrap(new byte[64]).toDirect();
+
+        assertThat(direct.retain(), is(sameInstance(direct)));
+        assertThat(direct.release(), is(false));
+        assertThat(direct.asReadOnlyBuffer().remaining(), is(64));
+
+        assertThat(direct.release(), is(true));
+        assertThat(direct.isReleased(), is(true));
+
+        try
+        {
+            direct.retain();
+            fail("released buffer can't be retained");
+        }
+        catch (final IllegalStateException ise)
+        {
+            // expected
+        }
+    }
+}